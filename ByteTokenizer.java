@@ -0,0 +1,94 @@
+/*
+    Splits a file into words on its raw bytes and maps every
+    word straight to a term ID of a TermTable, without making
+    a String per word.
+
+    Words are runs of ASCII letters, the same as the [a-zA-Z]+
+    pattern, counted from position 1. They are found on the
+    raw bytes, which gives the same words as decoding the file
+    first for any ASCII-compatible encoding, and lets us
+    record the byte offset of every word for the phrase
+    extraction. Letters are lowercased in place in the buffer
+    while the word is hashed, so the buffer then holds the
+    term bytes to look up.
+
+    Files are read into one buffer that is reused for every
+    file, so a tokenizer is owned by a single thread.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public final class ByteTokenizer {
+    // Byte -> lowercase letter, or 0 for the bytes that are not letters.
+    private static final byte[] LOWERCASE = new byte[256];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            LOWERCASE[c] = (byte) c;
+            LOWERCASE[c - 'a' + 'A'] = (byte) c;
+        }
+    }
+
+    // Receives the words found by tokenize.
+    public interface TokenConsumer {
+        // The word with termID is at document position and starts at byte offset in the text.
+        void accept(int termID, int position, int offset);
+    }
+
+    private byte[] buffer = new byte[1 << 16];
+    private int length;
+
+    // Reads the file at path into the buffer, replacing the previous file; returns its length in bytes.
+    public int read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException(path + " is too large to index");
+            }
+            if (size > this.buffer.length) {
+                this.buffer = new byte[(int) Math.max(size, this.buffer.length * 2L)];
+            }
+            ByteBuffer target = ByteBuffer.wrap(this.buffer, 0, (int) size);
+            while (target.hasRemaining() && channel.read(target) >= 0) {
+                // read until the file ends
+            }
+            this.length = target.position();
+            return this.length;
+        }
+    }
+
+    // Tokenizes the file last read; returns the number of words.
+    public int tokenize(TermTable terms, TokenConsumer consumer) {
+        return tokenize(this.buffer, this.length, terms, consumer);
+    }
+
+    /*
+     * Tokenizes text[0, length), lowercasing its letters in place, and passes
+     * the term ID of every word in terms to consumer. Returns the number of
+     * words.
+     */
+    public static int tokenize(byte[] text, int length, TermTable terms, TokenConsumer consumer) {
+        int position = 0;
+        int offset = 0;
+        while (offset < length) {
+            byte letter = LOWERCASE[text[offset] & 0xFF];
+            if (letter == 0) {
+                offset++;
+                continue;
+            }
+            int start = offset;
+            int hash = 0;
+            do {
+                text[offset++] = letter;
+                hash = 31 * hash + letter;
+            } while (offset < length && (letter = LOWERCASE[text[offset] & 0xFF]) != 0);
+
+            consumer.accept(terms.add(text, start, offset - start, hash), ++position, start);
+        }
+        return position;
+    }
+} // class
@@ -0,0 +1,320 @@
+/*
+    Query-side view of an index written by IndexFormat. The
+    files are opened through FileChannel.map and postings are
+    read in place; only the header fields and the first 8
+    bytes of every term dictionary block are copied onto the
+    heap, so opening an index takes milliseconds.
+
+    The pair index of the directory, if it has one, is opened
+    along with it. A pair index is itself a DiskIndex of terms
+    and postings only, without documents.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class DiskIndex implements IndexReader, AutoCloseable {
+    private final MappedFile terms;
+    private final MappedFile postings;
+    private final MappedFile positions;
+    private final MappedFile docSets;
+    private final MappedFile docs;
+    private final MappedFile offsets;
+
+    private final TermDictionary termDictionary;
+    private final int entriesStart;
+    private final int documentCount;
+    private final int pathBytesStart;
+
+    // The pair index of this index, or null.
+    private final PairIndex pairIndex;
+
+    // Sum of the token counts of all documents, added up on first use; -1 until then.
+    private volatile long tokenCount = -1;
+
+    private DiskIndex(MappedFile terms, MappedFile postings, MappedFile positions, MappedFile docSets,
+            MappedFile docs, MappedFile offsets, PairIndex pairIndex) {
+        this.terms = terms;
+        this.postings = postings;
+        this.positions = positions;
+        this.docSets = docSets;
+        this.docs = docs;
+        this.offsets = offsets;
+        this.pairIndex = pairIndex;
+
+        this.termDictionary = new TermDictionary(terms.buffer, IndexFormat.HEADER_SIZE);
+        this.entriesStart = IndexFormat.HEADER_SIZE + this.termDictionary.getSize();
+        this.documentCount = docs == null ? 0 : docs.buffer.getInt(IndexFormat.HEADER_SIZE);
+        this.pathBytesStart = IndexFormat.HEADER_SIZE + 4 + (this.documentCount + 1) * 4;
+    }
+
+    // Maps the index files in directory; fails if any is missing or of another version.
+    public static DiskIndex open(Path directory) throws IOException {
+        Path pairDirectory = directory.resolve(IndexFormat.PAIRS_DIRECTORY);
+        return new DiskIndex(
+                MappedFile.open(directory.resolve(IndexFormat.TERMS_FILE), IndexFormat.TERMS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.POSTINGS_FILE), IndexFormat.POSTINGS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.POSITIONS_FILE), IndexFormat.POSITIONS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.DOCSETS_FILE), IndexFormat.DOCSETS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.DOCS_FILE), IndexFormat.DOCS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.OFFSETS_FILE), IndexFormat.OFFSETS_MAGIC),
+                PairIndex.exists(pairDirectory) ? PairIndex.open(pairDirectory) : null);
+    }
+
+    // Maps only the files written by an IndexFormat.TermWriter in directory, without documents.
+    static DiskIndex openPostings(Path directory) throws IOException {
+        return new DiskIndex(
+                MappedFile.open(directory.resolve(IndexFormat.TERMS_FILE), IndexFormat.TERMS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.POSTINGS_FILE), IndexFormat.POSTINGS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.POSITIONS_FILE), IndexFormat.POSITIONS_MAGIC),
+                MappedFile.open(directory.resolve(IndexFormat.DOCSETS_FILE), IndexFormat.DOCSETS_MAGIC),
+                null, null, null);
+    }
+
+    public int getTermCount() {
+        return this.termDictionary.getTermCount();
+    }
+
+    public int getDocumentCountByTerm(String term) {
+        int ordinal = this.termDictionary.lookup(term);
+        return ordinal < 0 ? 0 : this.terms.buffer.getInt(entryOffset(ordinal));
+    }
+
+    public PostingsCursor postings(String term) {
+        int ordinal = this.termDictionary.lookup(term);
+        if (ordinal < 0) {
+            return null;
+        }
+        int entry = entryOffset(ordinal);
+        int docCount = this.terms.buffer.getInt(entry);
+        int postingsLength = this.terms.buffer.getInt(entry + 4);
+        int positionsLength = this.terms.buffer.getInt(entry + 8);
+        int skipCount = this.terms.buffer.getInt(entry + 12);
+        long postingsOffset = this.terms.buffer.getLong(entry + 16);
+        long positionsOffset = this.terms.buffer.getLong(entry + 24);
+        int skipLength = skipCount * PostingsList.SKIP_ENTRY_INTS * 4;
+
+        try {
+            ByteBuffer docStream = this.postings.region(postingsOffset, skipLength + postingsLength);
+            int skipStart = this.postings.regionStart(postingsOffset);
+            int docStart = skipStart + skipLength;
+            ByteBuffer positionStream = this.positions.region(positionsOffset, positionsLength);
+            int positionStart = this.positions.regionStart(positionsOffset);
+
+            IntBuffer skips = null;
+            if (skipCount > 0) {
+                ByteBuffer skipTable = docStream.duplicate();
+                skipTable.position(skipStart).limit(docStart);
+                skips = skipTable.slice().asIntBuffer();
+            }
+            return new PostingsCursor(docStream, docStart, docStart + postingsLength, positionStream, positionStart,
+                    docCount, skips, skipCount);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot map postings of " + term, ex);
+        }
+    }
+
+    // Read from docsets.bin onto the heap, at most 8 KB per 65536 DocIDs; rare terms' from their postings.
+    public DocBitmap documents(String term) {
+        int ordinal = this.termDictionary.lookup(term);
+        if (ordinal < 0) {
+            return null;
+        }
+        int entry = entryOffset(ordinal);
+        long docSetOffset = this.terms.buffer.getLong(entry + 32);
+        int docSetLength = this.terms.buffer.getInt(entry + 40);
+        if (docSetLength == 0) {
+            return DocBitmap.of(postings(term));
+        }
+        try {
+            return DocBitmap.read(this.docSets.region(docSetOffset, docSetLength),
+                    this.docSets.regionStart(docSetOffset));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot map documents of " + term, ex);
+        }
+    }
+
+    public PostingsCursor pairPostings(String x, String y, int k) {
+        return this.pairIndex == null ? null : this.pairIndex.postings(x, y, k);
+    }
+
+    // The pair index of this index, or null if it has none.
+    PairIndex getPairIndex() {
+        return this.pairIndex;
+    }
+
+    // The term with the given ordinal; ordinals follow the sorted term order.
+    String getTerm(int ordinal) {
+        return this.termDictionary.term(ordinal);
+    }
+
+    public List<String> expandPrefix(String prefix) {
+        ArrayList<String> terms = new ArrayList<String>();
+        long range = this.termDictionary.prefixRange(prefix);
+        for (int ordinal = (int) (range >>> 32); ordinal < (int) range; ordinal++) {
+            terms.add(this.termDictionary.term(ordinal));
+        }
+        return terms;
+    }
+
+    public int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    public String getDocumentPath(int docID) {
+        int offset = IndexFormat.HEADER_SIZE + 4 + (docID - 1) * 4;
+        int start = this.docs.buffer.getInt(offset);
+        int end = this.docs.buffer.getInt(offset + 4);
+        byte[] path = new byte[end - start];
+        this.docs.buffer.get(this.pathBytesStart + start, path);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    public TokenOffsets getTokenOffsets(int docID) {
+        int pointer = IndexFormat.HEADER_SIZE + 4 + (docID - 1) * 8;
+        long start = this.offsets.buffer.getLong(pointer);
+        long end = this.offsets.buffer.getLong(pointer + 8);
+        try {
+            ByteBuffer table = this.offsets.region(start, (int) (end - start));
+            return new TokenOffsets(table, this.offsets.regionStart(start));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot map token offsets of document " + docID, ex);
+        }
+    }
+
+    public long getTokenCount() {
+        long count = this.tokenCount;
+        if (count < 0) {
+            count = 0;
+            for (int docID = 1; docID <= this.documentCount; docID++) {
+                count += getTokenOffsets(docID).getTokenCount();
+            }
+            this.tokenCount = count;
+        }
+        return count;
+    }
+
+    // The serialized TokenOffsets table of docID, as written by IndexFormat.
+    byte[] getTokenOffsetBytes(int docID) {
+        int pointer = IndexFormat.HEADER_SIZE + 4 + (docID - 1) * 8;
+        long start = this.offsets.buffer.getLong(pointer);
+        long end = this.offsets.buffer.getLong(pointer + 8);
+        byte[] table = new byte[(int) (end - start)];
+        try {
+            this.offsets.region(start, table.length).get(this.offsets.regionStart(start), table);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot map token offsets of document " + docID, ex);
+        }
+        return table;
+    }
+
+    // Total size of the index files in bytes, without the pair index.
+    long getSizeInBytes() {
+        long size = this.terms.size + this.postings.size + this.positions.size + this.docSets.size;
+        return this.docs == null ? size : size + this.docs.size + this.offsets.size;
+    }
+
+    /*
+     * Closes the index files. Every file was mapped when it was opened and
+     * the mappings outlive the channels, so queries still running on this
+     * index finish normally.
+     */
+    public void close() throws IOException {
+        this.terms.channel.close();
+        this.postings.channel.close();
+        this.positions.channel.close();
+        this.docSets.channel.close();
+        if (this.docs != null) {
+            this.docs.channel.close();
+            this.offsets.channel.close();
+        }
+        if (this.pairIndex != null) {
+            this.pairIndex.close();
+        }
+    }
+
+    private int entryOffset(int ordinal) {
+        return this.entriesStart + ordinal * IndexFormat.TERM_ENTRY_SIZE;
+    }
+
+    /*
+     * A file mapped once when it is opened: as a whole when it fits into one
+     * buffer, since a single MappedByteBuffer is limited to 2 GB, and as
+     * chunks starting every CHUNK_STRIDE bytes otherwise. Each chunk but the
+     * last is 2 GB long, so consecutive chunks overlap and any region of up
+     * to MAX_REGION bytes lies within the chunk it starts in. The mappings
+     * stay valid after the channel is closed.
+     */
+    static final class MappedFile {
+        static final long CHUNK_STRIDE = 1L << 30;
+        static final long MAX_REGION = Integer.MAX_VALUE - CHUNK_STRIDE;
+
+        final FileChannel channel;
+        final long size;
+        final ByteBuffer buffer;
+        private final ByteBuffer[] chunks;
+
+        private MappedFile(FileChannel channel, long size, ByteBuffer[] chunks) {
+            this.channel = channel;
+            this.size = size;
+            this.buffer = chunks[0];
+            this.chunks = chunks;
+        }
+
+        static MappedFile open(Path file, int magic) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, Integer.MAX_VALUE));
+            if (size < IndexFormat.HEADER_SIZE || buffer.getInt(0) != magic) {
+                channel.close();
+                throw new IOException(file + " is not a positional index file");
+            }
+            if (buffer.getInt(4) != IndexFormat.VERSION) {
+                channel.close();
+                throw new IOException(file + " has index format version " + buffer.getInt(4) + ", expected "
+                        + IndexFormat.VERSION);
+            }
+            int chunkCount = size <= Integer.MAX_VALUE ? 1
+                    : (int) ((size - Integer.MAX_VALUE + CHUNK_STRIDE - 1) / CHUNK_STRIDE) + 1;
+            ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+            chunks[0] = buffer;
+            try {
+                for (int i = 1; i < chunkCount; i++) {
+                    long start = i * CHUNK_STRIDE;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(size - start, Integer.MAX_VALUE));
+                }
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            return new MappedFile(channel, size, chunks);
+        }
+
+        // A buffer covering [offset, offset + length).
+        ByteBuffer region(long offset, int length) throws IOException {
+            int chunk = chunkOf(offset);
+            if (chunk < this.chunks.length - 1 && length > MAX_REGION) {
+                throw new IOException("Region of " + length + " bytes exceeds " + MAX_REGION + " bytes");
+            }
+            return this.chunks[chunk];
+        }
+
+        // Offset of the region start within the buffer returned by region().
+        int regionStart(long offset) {
+            return (int) (offset - chunkOf(offset) * CHUNK_STRIDE);
+        }
+
+        private int chunkOf(long offset) {
+            return (int) Math.min(offset / CHUNK_STRIDE, this.chunks.length - 1);
+        }
+    }
+} // class
@@ -0,0 +1,527 @@
+/*
+    Compressed set of DocIDs in the style of Roaring bitmaps,
+    used to find the documents of a query before any postings
+    are decoded.
+
+    DocIDs are split by their high 16 bits into containers of
+    up to 65536 DocIDs each. A container holding at most
+    ARRAY_LIMIT DocIDs is a sorted array of their low 16 bits
+    (2 bytes each), a fuller one is a bitmap of 1024 longs
+    (8 KB), whichever is smaller. AND, OR and AND NOT work
+    container by container: two bitmaps word by word, an
+    array against a bitmap by testing bits, and two arrays by
+    merging them.
+
+    Serialized, as stored for every term in docsets.bin:
+        containerCount(int), then per container
+        key(char), cardinality - 1 (char), then the array
+        (cardinality chars) or the bitmap (1024 longs)
+*/
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public final class DocBitmap {
+    // A container holding more DocIDs than this is a bitmap, otherwise a sorted array.
+    static final int ARRAY_LIMIT = 4096;
+
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private static final DocBitmap EMPTY = new DocBitmap(0);
+
+    // High 16 bits of the DocIDs of every container, in increasing order.
+    private char[] keys;
+
+    // Per container a char[] of the sorted low 16 bits, or a long[BITMAP_WORDS] with those bits set.
+    private Object[] containers;
+    private int[] cardinalities;
+    private int size;
+
+    public DocBitmap() {
+        this(4);
+    }
+
+    private DocBitmap(int capacity) {
+        this.keys = new char[capacity];
+        this.containers = new Object[capacity];
+        this.cardinalities = new int[capacity];
+    }
+
+    // The documents of cursor, which is moved to its end.
+    static DocBitmap of(PostingsCursor cursor) {
+        DocBitmap documents = new DocBitmap();
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            documents.add(cursor.docID());
+        }
+        return documents;
+    }
+
+    // The set bits of set, as DocIDs.
+    static DocBitmap of(BitSet set) {
+        DocBitmap documents = new DocBitmap();
+        for (int docID = set.nextSetBit(0); docID >= 0; docID = set.nextSetBit(docID + 1)) {
+            documents.add(docID);
+        }
+        return documents;
+    }
+
+    // Adds docID, which must be larger than every DocID added before.
+    public void add(int docID) {
+        char key = (char) (docID >>> 16);
+        char low = (char) docID;
+        if (this.size == 0 || this.keys[this.size - 1] != key) {
+            append(key, new char[4], 0);
+        }
+        int i = this.size - 1;
+        int cardinality = this.cardinalities[i];
+        if (this.containers[i] instanceof char[]) {
+            char[] array = (char[]) this.containers[i];
+            if (cardinality < ARRAY_LIMIT) {
+                if (cardinality == array.length) {
+                    array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, cardinality * 2));
+                    this.containers[i] = array;
+                }
+                array[cardinality] = low;
+                this.cardinalities[i]++;
+                return;
+            }
+            this.containers[i] = toBitmap(array, cardinality);
+        }
+        long[] bitmap = (long[]) this.containers[i];
+        bitmap[low >>> 6] |= 1L << low;
+        this.cardinalities[i]++;
+    }
+
+    // Number of DocIDs in the set.
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < this.size; i++) {
+            cardinality += this.cardinalities[i];
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean contains(int docID) {
+        int i = findKey((char) (docID >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        char low = (char) docID;
+        if (this.containers[i] instanceof char[]) {
+            return Arrays.binarySearch((char[]) this.containers[i], 0, this.cardinalities[i], low) >= 0;
+        }
+        return (((long[]) this.containers[i])[low >>> 6] & (1L << low)) != 0;
+    }
+
+    // The smallest DocID in the set that is >= target, or PostingsCursor.NO_MORE_DOCS.
+    public int nextDoc(int target) {
+        target = Math.max(target, 0);
+        int i = findKey((char) (target >>> 16));
+        int low = target & 0xFFFF;
+        if (i < 0) {
+            i = -i - 1;
+            low = 0;
+        }
+        for (; i < this.size; i++, low = 0) {
+            int found = next(this.containers[i], this.cardinalities[i], low);
+            if (found >= 0) {
+                return this.keys[i] << 16 | found;
+            }
+        }
+        return PostingsCursor.NO_MORE_DOCS;
+    }
+
+    // An iterator over the DocIDs in increasing order, cheaper than nextDoc when every one is visited.
+    public Iterator iterator() {
+        return new Iterator();
+    }
+
+    public final class Iterator {
+        private int container;
+        // Index into an array container, or bit of a bitmap container, of the last DocID returned.
+        private int low = -1;
+
+        private Iterator() {
+        }
+
+        // The next DocID of the set, or PostingsCursor.NO_MORE_DOCS.
+        public int next() {
+            while (this.container < DocBitmap.this.size) {
+                Object current = DocBitmap.this.containers[this.container];
+                int key = DocBitmap.this.keys[this.container] << 16;
+                if (current instanceof char[]) {
+                    if (++this.low < DocBitmap.this.cardinalities[this.container]) {
+                        return key | ((char[]) current)[this.low];
+                    }
+                } else if (this.low < 0xFFFF) {
+                    int found = DocBitmap.next(current, 0, this.low + 1);
+                    if (found >= 0) {
+                        this.low = found;
+                        return key | found;
+                    }
+                }
+                this.container++;
+                this.low = -1;
+            }
+            return PostingsCursor.NO_MORE_DOCS;
+        }
+    }
+
+    // The DocIDs in both sets.
+    public DocBitmap and(DocBitmap other) {
+        DocBitmap result = new DocBitmap(Math.min(this.size, other.size));
+        int i = 0;
+        int j = 0;
+        while (i < this.size && j < other.size) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Object a = this.containers[i];
+                Object b = other.containers[j];
+                if (a instanceof char[] && b instanceof char[]) {
+                    result.appendArray(this.keys[i], intersect((char[]) a, this.cardinalities[i], (char[]) b,
+                            other.cardinalities[j]));
+                } else if (a instanceof char[]) {
+                    result.appendArray(this.keys[i], filter((char[]) a, this.cardinalities[i], (long[]) b, true));
+                } else if (b instanceof char[]) {
+                    result.appendArray(this.keys[i], filter((char[]) b, other.cardinalities[j], (long[]) a, true));
+                } else {
+                    long[] words = new long[BITMAP_WORDS];
+                    for (int w = 0; w < BITMAP_WORDS; w++) {
+                        words[w] = ((long[]) a)[w] & ((long[]) b)[w];
+                    }
+                    result.appendBitmap(this.keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    // The DocIDs in either set.
+    public DocBitmap or(DocBitmap other) {
+        DocBitmap result = new DocBitmap(this.size + other.size);
+        int i = 0;
+        int j = 0;
+        while (i < this.size || j < other.size) {
+            if (j == other.size || (i < this.size && this.keys[i] < other.keys[j])) {
+                result.append(this.keys[i], copy(this.containers[i]), this.cardinalities[i]);
+                i++;
+            } else if (i == this.size || this.keys[i] > other.keys[j]) {
+                result.append(other.keys[j], copy(other.containers[j]), other.cardinalities[j]);
+                j++;
+            } else {
+                Object a = this.containers[i];
+                Object b = other.containers[j];
+                if (a instanceof char[] && b instanceof char[]) {
+                    char[] merged = union((char[]) a, this.cardinalities[i], (char[]) b, other.cardinalities[j]);
+                    if (merged.length <= ARRAY_LIMIT) {
+                        result.appendArray(this.keys[i], merged);
+                    } else {
+                        result.appendBitmap(this.keys[i], toBitmap(merged, merged.length));
+                    }
+                } else {
+                    long[] words = a instanceof char[] ? toBitmap((char[]) a, this.cardinalities[i])
+                            : ((long[]) a).clone();
+                    if (b instanceof char[]) {
+                        setBits(words, (char[]) b, other.cardinalities[j]);
+                    } else {
+                        for (int w = 0; w < BITMAP_WORDS; w++) {
+                            words[w] |= ((long[]) b)[w];
+                        }
+                    }
+                    result.appendBitmap(this.keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    // The DocIDs in any of sets, ORed in one pass into a bitmap per key instead of pair by pair.
+    static DocBitmap or(List<DocBitmap> sets) {
+        int keyCount = 0;
+        for (DocBitmap set : sets) {
+            if (set.size > 0) {
+                keyCount = Math.max(keyCount, set.keys[set.size - 1] + 1);
+            }
+        }
+        long[][] words = new long[keyCount][];
+        for (DocBitmap set : sets) {
+            for (int i = 0; i < set.size; i++) {
+                if (words[set.keys[i]] == null) {
+                    words[set.keys[i]] = new long[BITMAP_WORDS];
+                }
+                if (set.containers[i] instanceof char[]) {
+                    setBits(words[set.keys[i]], (char[]) set.containers[i], set.cardinalities[i]);
+                } else {
+                    long[] bitmap = (long[]) set.containers[i];
+                    for (int w = 0; w < BITMAP_WORDS; w++) {
+                        words[set.keys[i]][w] |= bitmap[w];
+                    }
+                }
+            }
+        }
+        DocBitmap result = new DocBitmap(keyCount);
+        for (int key = 0; key < keyCount; key++) {
+            if (words[key] != null) {
+                result.appendBitmap((char) key, words[key]);
+            }
+        }
+        return result;
+    }
+
+    // The DocIDs in this set but not in other.
+    public DocBitmap andNot(DocBitmap other) {
+        DocBitmap result = new DocBitmap(this.size);
+        int j = 0;
+        for (int i = 0; i < this.size; i++) {
+            while (j < other.size && other.keys[j] < this.keys[i]) {
+                j++;
+            }
+            Object a = this.containers[i];
+            if (j == other.size || other.keys[j] != this.keys[i]) {
+                result.append(this.keys[i], copy(a), this.cardinalities[i]);
+                continue;
+            }
+            Object b = other.containers[j];
+            if (a instanceof char[] && b instanceof char[]) {
+                result.appendArray(this.keys[i], difference((char[]) a, this.cardinalities[i], (char[]) b,
+                        other.cardinalities[j]));
+            } else if (a instanceof char[]) {
+                result.appendArray(this.keys[i], filter((char[]) a, this.cardinalities[i], (long[]) b, false));
+            } else {
+                long[] words = ((long[]) a).clone();
+                if (b instanceof char[]) {
+                    char[] array = (char[]) b;
+                    for (int k = 0; k < other.cardinalities[j]; k++) {
+                        words[array[k] >>> 6] &= ~(1L << array[k]);
+                    }
+                } else {
+                    for (int w = 0; w < BITMAP_WORDS; w++) {
+                        words[w] &= ~((long[]) b)[w];
+                    }
+                }
+                result.appendBitmap(this.keys[i], words);
+            }
+        }
+        return result;
+    }
+
+    // An empty set, which must not be added to.
+    static DocBitmap empty() {
+        return EMPTY;
+    }
+
+    // Number of bytes writeTo writes.
+    int getSerializedSize() {
+        int bytes = 4;
+        for (int i = 0; i < this.size; i++) {
+            bytes += 4 + (this.containers[i] instanceof char[] ? this.cardinalities[i] * 2 : BITMAP_WORDS * 8);
+        }
+        return bytes;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(this.size);
+        for (int i = 0; i < this.size; i++) {
+            out.writeChar(this.keys[i]);
+            out.writeChar(this.cardinalities[i] - 1);
+            if (this.containers[i] instanceof char[]) {
+                char[] array = (char[]) this.containers[i];
+                for (int k = 0; k < this.cardinalities[i]; k++) {
+                    out.writeChar(array[k]);
+                }
+            } else {
+                for (long word : (long[]) this.containers[i]) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    // Reads the set written by writeTo at offset in buffer.
+    static DocBitmap read(ByteBuffer buffer, int offset) {
+        int count = buffer.getInt(offset);
+        DocBitmap documents = new DocBitmap(count);
+        offset += 4;
+        for (int i = 0; i < count; i++) {
+            char key = buffer.getChar(offset);
+            int cardinality = buffer.getChar(offset + 2) + 1;
+            offset += 4;
+            if (cardinality <= ARRAY_LIMIT) {
+                char[] array = new char[cardinality];
+                for (int k = 0; k < cardinality; k++) {
+                    array[k] = buffer.getChar(offset + k * 2);
+                }
+                documents.append(key, array, cardinality);
+                offset += cardinality * 2;
+            } else {
+                long[] words = new long[BITMAP_WORDS];
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] = buffer.getLong(offset + w * 8);
+                }
+                documents.append(key, words, cardinality);
+                offset += BITMAP_WORDS * 8;
+            }
+        }
+        return documents;
+    }
+
+    private void append(char key, Object container, int cardinality) {
+        if (this.size == this.keys.length) {
+            int capacity = Math.max(4, this.size * 2);
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.containers = Arrays.copyOf(this.containers, capacity);
+            this.cardinalities = Arrays.copyOf(this.cardinalities, capacity);
+        }
+        this.keys[this.size] = key;
+        this.containers[this.size] = container;
+        this.cardinalities[this.size] = cardinality;
+        this.size++;
+    }
+
+    private void appendArray(char key, char[] array) {
+        if (array.length > 0) {
+            append(key, array, array.length);
+        }
+    }
+
+    // Appends a bitmap container, as an array if it holds few enough DocIDs.
+    private void appendBitmap(char key, long[] words) {
+        int cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        if (cardinality > ARRAY_LIMIT) {
+            append(key, words, cardinality);
+            return;
+        }
+        char[] array = new char[cardinality];
+        int k = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            for (long word = words[w]; word != 0; word &= word - 1) {
+                array[k++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+            }
+        }
+        appendArray(key, array);
+    }
+
+    // Index of the container with key, or -(insertion point) - 1.
+    private int findKey(char key) {
+        return Arrays.binarySearch(this.keys, 0, this.size, key);
+    }
+
+    // The smallest low 16 bits >= low in container, or -1.
+    private static int next(Object container, int cardinality, int low) {
+        if (container instanceof char[]) {
+            char[] array = (char[]) container;
+            int k = Arrays.binarySearch(array, 0, cardinality, (char) low);
+            k = k < 0 ? -k - 1 : k;
+            return k < cardinality ? array[k] : -1;
+        }
+        long[] words = (long[]) container;
+        int w = low >>> 6;
+        long word = words[w] & (-1L << low);
+        while (word == 0) {
+            if (++w == BITMAP_WORDS) {
+                return -1;
+            }
+            word = words[w];
+        }
+        return w * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    private static Object copy(Object container) {
+        return container instanceof char[] ? ((char[]) container).clone() : ((long[]) container).clone();
+    }
+
+    private static long[] toBitmap(char[] array, int cardinality) {
+        long[] words = new long[BITMAP_WORDS];
+        setBits(words, array, cardinality);
+        return words;
+    }
+
+    private static void setBits(long[] words, char[] array, int cardinality) {
+        for (int k = 0; k < cardinality; k++) {
+            words[array[k] >>> 6] |= 1L << array[k];
+        }
+    }
+
+    // The values of array whose bit in words is set (keep) or clear (!keep).
+    private static char[] filter(char[] array, int cardinality, long[] words, boolean keep) {
+        char[] result = new char[cardinality];
+        int n = 0;
+        for (int k = 0; k < cardinality; k++) {
+            if (((words[array[k] >>> 6] & (1L << array[k])) != 0) == keep) {
+                result[n++] = array[k];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static char[] intersect(char[] a, int aCount, char[] b, int bCount) {
+        char[] result = new char[Math.min(aCount, bCount)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aCount && j < bCount) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static char[] union(char[] a, int aCount, char[] b, int bCount) {
+        char[] result = new char[aCount + bCount];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aCount || j < bCount) {
+            if (j == bCount || (i < aCount && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == aCount || a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static char[] difference(char[] a, int aCount, char[] b, int bCount) {
+        char[] result = new char[aCount];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < aCount; i++) {
+            while (j < bCount && b[j] < a[i]) {
+                j++;
+            }
+            if (j == bCount || b[j] != a[i]) {
+                result[n++] = a[i];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+} // class
@@ -0,0 +1,304 @@
+/*
+    External-memory index build, in the single-pass in-memory
+    indexing (SPIMI) style, for corpora whose postings don't
+    fit in the heap.
+
+    Files are tokenized in DocID order into an in-memory
+    PositionalIndex, the block. Once the block takes about
+    memoryBudget bytes, its terms are sorted and it is written
+    out as a run file in term order, its token offset tables
+    are appended to an offsets spool file, and a new block is
+    started, so every run covers the DocIDs after those of the
+    run before. At the end the runs are merged k-way: the next
+    term of every run waits in a priority queue, and the
+    postings of a term from all the runs holding it are
+    concatenated in run order, which is DocID order, and
+    written with an IndexFormat.TermWriter. Runs, spool and
+    index files are all read and written sequentially through
+    buffered streams.
+
+    Peak heap is the block, plus during the merge the postings
+    of the current term of every run and the term dictionary,
+    which grows with the vocabulary rather than the corpus. A
+    corpus that fits in one block is written directly.
+
+    Run file, RUN_MAGIC, terms in increasing byte order:
+        termCount(int), then per term
+        termLength(int), term bytes, PostingsList.writeRun
+    The offsets spool holds the tables of all DocIDs back to
+    back, without a header, as copied into offsets.bin.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class ExternalIndexBuilder {
+    /*
+     * Most heap bytes one token adds to a block, growth slack of the postings
+     * arrays included. The block is only measured once the tokens since the
+     * last measurement could have used up the rest of the budget.
+     */
+    static final int MAX_BYTES_PER_TOKEN = 24;
+
+    // One run file being read by the merge, positioned on its current term.
+    private static final class Run {
+        final int number;
+        final DataInputStream in;
+        int remaining;
+        byte[] term;
+        PostingsList postings;
+
+        Run(int number, Path file) throws IOException {
+            this.number = number;
+            this.in = IndexFormat.openInput(file, IndexFormat.RUN_MAGIC);
+            this.remaining = this.in.readInt();
+        }
+
+        // Reads the next term and its postings; false at the end of the run.
+        boolean next() throws IOException {
+            if (this.remaining == 0) {
+                return false;
+            }
+            this.remaining--;
+            this.term = new byte[this.in.readInt()];
+            this.in.readFully(this.term);
+            this.postings = PostingsList.readRun(this.in);
+            return true;
+        }
+    }
+
+    private final List<String> paths;
+    private final Path directory;
+    private final long memoryBudget;
+
+    private final ArrayList<Path> runs = new ArrayList<Path>();
+    private final Path offsetsSpool;
+    private DataOutputStream offsetsOut;
+
+    // Size of the token offset table of every DocID written to the spool, at index DocID - 1.
+    private final int[] offsetLengths;
+
+    private PositionalIndex block = new PositionalIndex();
+    private int blockFirstDocID = 1;
+
+    private ExternalIndexBuilder(List<String> paths, Path directory, long memoryBudget) {
+        this.paths = paths;
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.offsetsSpool = directory.resolve(IndexFormat.OFFSETS_FILE + ".tmp");
+        this.offsetLengths = new int[paths.size()];
+    }
+
+    /*
+     * Builds the index of the files in paths, the file at index i being DocID
+     * i + 1, into directory in the format read by DiskIndex, keeping blocks
+     * of about memoryBudget bytes in memory. Files are tokenized with
+     * threadCount threads. Returns the number of runs written, 0 if the
+     * corpus fit in one block. A file that can't be read throws
+     * UncheckedIOException.
+     */
+    static int build(List<String> paths, Path directory, long memoryBudget, int threadCount) throws IOException {
+        long startTime = System.nanoTime();
+        Files.createDirectories(directory);
+        ExternalIndexBuilder builder = new ExternalIndexBuilder(paths, directory, memoryBudget);
+        try {
+            builder.tokenize(threadCount);
+            builder.finish();
+        } finally {
+            builder.deleteTemporaryFiles();
+        }
+        IndexMetrics.recordBuild(System.nanoTime() - startTime, paths.size());
+        return builder.runs.size();
+    }
+
+    /*
+     * Adds every file to the block, spilling it whenever it is full. With
+     * several threads, files are tokenized ahead into indexes of their own,
+     * a few per thread, which are merged into the block in DocID order.
+     */
+    private void tokenize(int threadCount) throws IOException {
+        long blockSize = 0;
+        long tokensSinceMeasured = 0;
+        ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        ThreadLocal<ByteTokenizer> tokenizers = ThreadLocal.withInitial(ByteTokenizer::new);
+        ArrayDeque<Future<PositionalIndex>> ahead = new ArrayDeque<Future<PositionalIndex>>();
+        int submitted = 0;
+        try {
+            for (int index = 0; index < this.paths.size(); index++) {
+                long tokenCount = this.block.getTokenCount();
+                if (executor == null) {
+                    PositionalIndex.indexFile(this.block, tokenizers.get(), this.paths.get(index), index + 1);
+                } else {
+                    while (submitted < this.paths.size() && submitted < index + threadCount * 2) {
+                        String path = this.paths.get(submitted);
+                        int docID = ++submitted;
+                        ahead.add(executor.submit(() -> {
+                            PositionalIndex document = new PositionalIndex();
+                            PositionalIndex.indexFile(document, tokenizers.get(), path, docID);
+                            return document;
+                        }));
+                    }
+                    PositionalIndex document = ahead.poll().get();
+                    IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+                    this.block.mergePositionalIndex(document);
+                    IndexMetrics.end(indexing, 0, 0);
+                }
+
+                tokensSinceMeasured += this.block.getTokenCount() - tokenCount;
+                if (blockSize + tokensSinceMeasured * MAX_BYTES_PER_TOKEN >= this.memoryBudget) {
+                    blockSize = this.block.getAllocatedSize();
+                    tokensSinceMeasured = 0;
+                    if (blockSize >= this.memoryBudget) {
+                        spill(index + 1);
+                        blockSize = 0;
+                    }
+                }
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    // Writes the block, holding the DocIDs up to lastDocID, as the next run and starts a new one.
+    private void spill(int lastDocID) throws IOException {
+        IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+        this.block.freezeTerms();
+        Path run = this.directory.resolve("run_" + this.runs.size() + ".tmp");
+        this.runs.add(run);
+        try (DataOutputStream out = IndexFormat.open(run, IndexFormat.RUN_MAGIC)) {
+            out.writeInt(this.block.getTermCount());
+            for (int ordinal = 0; ordinal < this.block.getTermCount(); ordinal++) {
+                byte[] term = this.block.getTerm(ordinal).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(term.length);
+                out.write(term);
+                this.block.getPostingsList(ordinal).writeRun(out);
+            }
+        }
+
+        if (this.offsetsOut == null) {
+            this.offsetsOut = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(this.offsetsSpool), 1 << 16));
+        }
+        for (int docID = this.blockFirstDocID; docID <= lastDocID; docID++) {
+            byte[] table = this.block.getTokenOffsetBytes(docID);
+            if (table == null) {
+                table = IndexFormat.EMPTY_OFFSETS;
+            }
+            this.offsetsOut.write(table);
+            this.offsetLengths[docID - 1] = table.length;
+        }
+        IndexMetrics.end(indexing, this.block.getPostingsCount(), 0);
+
+        this.block = new PositionalIndex();
+        this.blockFirstDocID = lastDocID + 1;
+    }
+
+    // Writes the index files, from the block alone if nothing was spilled, otherwise by merging the runs.
+    private void finish() throws IOException {
+        if (this.runs.isEmpty()) {
+            this.block.writePositionalIndex(this.directory, this.paths);
+            return;
+        }
+        if (this.blockFirstDocID <= this.paths.size()) {
+            spill(this.paths.size());
+        }
+        this.block = null;
+        this.offsetsOut.close();
+
+        IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+        long postingsCount = mergeRuns();
+        IndexMetrics.end(indexing, postingsCount, 0);
+
+        IndexFormat.writeDocuments(this.directory, this.paths);
+        try (InputStream tables = Files.newInputStream(this.offsetsSpool)) {
+            IndexFormat.writeOffsets(this.directory, this.offsetLengths, tables);
+        }
+    }
+
+    /*
+     * Merges the runs into the terms and postings files of the index and
+     * returns the number of (term, document) postings. Equal terms are taken
+     * from the queue in run order, so their postings are appended in DocID
+     * order.
+     */
+    private long mergeRuns() throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(this.runs.size(), (a, b) -> {
+            int order = Arrays.compareUnsigned(a.term, b.term);
+            return order != 0 ? order : Integer.compare(a.number, b.number);
+        });
+        ArrayList<Run> open = new ArrayList<Run>();
+        long postingsCount = 0;
+        try (IndexFormat.TermWriter writer = new IndexFormat.TermWriter(this.directory)) {
+            for (int number = 0; number < this.runs.size(); number++) {
+                Run run = new Run(number, this.runs.get(number));
+                open.add(run);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                byte[] term = run.term;
+                PostingsList postings = run.postings;
+                advance(run, queue);
+                while (!queue.isEmpty() && Arrays.equals(queue.peek().term, term)) {
+                    Run next = queue.poll();
+                    postings.append(next.postings);
+                    advance(next, queue);
+                }
+                writer.add(term, 0, term.length, postings);
+                postingsCount += postings.getDocumentCount();
+            }
+        } finally {
+            for (Run run : open) {
+                run.in.close();
+            }
+        }
+        return postingsCount;
+    }
+
+    // Moves run to its next term and puts it back in the queue, unless it is done.
+    private static void advance(Run run, PriorityQueue<Run> queue) throws IOException {
+        run.postings = null;
+        if (run.next()) {
+            queue.add(run);
+        }
+    }
+
+    // Removes the runs and the offsets spool, whether the build finished or not.
+    private void deleteTemporaryFiles() throws IOException {
+        if (this.offsetsOut != null) {
+            this.offsetsOut.close();
+        }
+        for (Path run : this.runs) {
+            Files.deleteIfExists(run);
+        }
+        Files.deleteIfExists(this.offsetsSpool);
+    }
+} // class
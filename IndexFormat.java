@@ -0,0 +1,349 @@
+/*
+    Versioned binary format of a positional index on disk.
+    An index directory holds six files, each starting with
+    a magic number and the format version:
+
+    terms.dict      the front-coded TermDictionary, then one
+                    fixed-width entry per term ordinal:
+                        docCount(int), postingsLength(int),
+                        positionsLength(int), skipCount(int),
+                        postingsOffset(long), positionsOffset(long),
+                        docSetOffset(long), docSetLength(int)
+    postings.bin    skip table (skipCount x 3 ints) and document
+                    stream of every term, back to back
+    positions.bin   position streams of every term, back to back
+    docsets.bin     the documents of every term in at least
+                    DOC_SET_MIN_DOCUMENTS documents as a DocBitmap,
+                    back to back; rarer terms have docSetLength 0
+    docs.tbl        docCount, (docCount + 1) path offsets (int)
+                    and the UTF-8 bytes of all paths; DocID n is
+                    entry n - 1
+    offsets.bin     docCount, (docCount + 1) table offsets (long)
+                    and the TokenOffsets table of every document
+
+    The streams are the PostingsList encoding copied verbatim,
+    so a query can read them in place through a mapped buffer.
+    All numbers are big-endian.
+
+    A segmented index (see SegmentedIndex) keeps one such
+    directory per segment, seg_<number>, next to the segment
+    list:
+
+    segments.bin    nextSegmentNumber, segmentCount, then per
+                    segment in DocID order: number, docBase,
+                    docCount, deleteGeneration (ints)
+    seg_<n>/deletes_<generation>.bin
+                    docCount, then the deleted DocIDs of the
+                    segment as a bitset of longs; generation 0
+                    means nothing is deleted and has no file
+    seg_<n>/pairs/  optional pair index of the segment (see
+                    PairIndex): terms.dict, postings.bin,
+                    positions.bin and docsets.bin of the word
+                    pairs, and pairs.bin
+
+    An external-memory build (see ExternalIndexBuilder)
+    writes the terms one at a time with a TermWriter, which
+    keeps only the dictionary in memory and spools the term
+    entries to terms.dict.tmp until it is closed.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+public final class IndexFormat {
+    static final int VERSION = 5;
+
+    static final int TERMS_MAGIC = 0x50495444; // "PITD"
+    static final int POSTINGS_MAGIC = 0x50495050; // "PIPP"
+    static final int POSITIONS_MAGIC = 0x50495053; // "PIPS"
+    static final int DOCS_MAGIC = 0x50494454; // "PIDT"
+    static final int OFFSETS_MAGIC = 0x50494f46; // "PIOF"
+    static final int SEGMENTS_MAGIC = 0x50495347; // "PISG"
+    static final int DELETES_MAGIC = 0x5049444c; // "PIDL"
+    static final int RUN_MAGIC = 0x5049524e; // "PIRN"
+    static final int PAIRS_MAGIC = 0x50495052; // "PIPR"
+    static final int DOCSETS_MAGIC = 0x50494453; // "PIDS"
+
+    static final String TERMS_FILE = "terms.dict";
+    static final String POSTINGS_FILE = "postings.bin";
+    static final String POSITIONS_FILE = "positions.bin";
+    static final String DOCSETS_FILE = "docsets.bin";
+    static final String DOCS_FILE = "docs.tbl";
+    static final String OFFSETS_FILE = "offsets.bin";
+    static final String SEGMENTS_FILE = "segments.bin";
+    static final String PAIRS_DIRECTORY = "pairs";
+    static final String PAIRS_FILE = "pairs.bin";
+
+    // magic + version
+    static final int HEADER_SIZE = 8;
+    static final int TERM_ENTRY_SIZE = 44;
+
+    /*
+     * Terms in fewer documents get no stored DocBitmap; collecting theirs
+     * from the postings is as fast as reading one.
+     */
+    static final int DOC_SET_MIN_DOCUMENTS = 32;
+
+    private IndexFormat() {
+    }
+
+    // Token offset table of a document without tokens.
+    static final byte[] EMPTY_OFFSETS = new TokenOffsets.Builder().toByteArray();
+
+    /*
+     * Writes the terms of an index in increasing order together with their
+     * postings, so the postings of only one term need to be in memory at a
+     * time. The postings and positions files are written as the terms come;
+     * terms.dict is written by close, once the dictionary is complete.
+     */
+    static final class TermWriter implements AutoCloseable {
+        private final Path directory;
+        private final TermDictionary.Builder terms = new TermDictionary.Builder();
+        private final DataOutputStream entries;
+        private final DataOutputStream postingsOut;
+        private final DataOutputStream positionsOut;
+        private final DataOutputStream docSetsOut;
+        private long postingsOffset = HEADER_SIZE;
+        private long positionsOffset = HEADER_SIZE;
+        private long docSetOffset = HEADER_SIZE;
+
+        TermWriter(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            this.directory = directory;
+            this.entries = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(directory.resolve(TERMS_FILE + ".tmp")), 1 << 16));
+            this.postingsOut = open(directory.resolve(POSTINGS_FILE), POSTINGS_MAGIC);
+            this.positionsOut = open(directory.resolve(POSITIONS_FILE), POSITIONS_MAGIC);
+            this.docSetsOut = open(directory.resolve(DOCSETS_FILE), DOCSETS_MAGIC);
+        }
+
+        // Adds the term in term[offset, offset + length), which must sort after the previous one.
+        void add(byte[] term, int offset, int length, PostingsList postings) throws IOException {
+            this.terms.add(term, offset, length);
+            this.docSetOffset += writeEntry(this.entries, postings, this.postingsOffset, this.positionsOffset,
+                    this.docSetOffset, this.docSetsOut);
+            postings.writeTo(this.postingsOut, this.positionsOut);
+            this.postingsOffset += postings.getSkipCount() * PostingsList.SKIP_ENTRY_INTS * 4L
+                    + postings.getDocLength();
+            this.positionsOffset += postings.getPositionLength();
+        }
+
+        // Writes terms.dict: the dictionary, then the spooled term entries.
+        public void close() throws IOException {
+            this.postingsOut.close();
+            this.positionsOut.close();
+            this.docSetsOut.close();
+            this.entries.close();
+            Path spool = this.directory.resolve(TERMS_FILE + ".tmp");
+            try (DataOutputStream termsOut = open(this.directory.resolve(TERMS_FILE), TERMS_MAGIC)) {
+                TermDictionary dictionary = this.terms.build();
+                byte[] bytes = new byte[dictionary.getSize()];
+                dictionary.copyTo(bytes);
+                termsOut.write(bytes);
+                Files.copy(spool, termsOut);
+            }
+            Files.delete(spool);
+        }
+    }
+
+    /*
+     * Writes the term dictionary, the postings of every term ordinal, the
+     * document table and the token offsets keyed by DocID into directory,
+     * replacing any index already there.
+     */
+    static void write(TermDictionary terms, PostingsList[] termPostings, List<String> documentPaths,
+            Map<Integer, byte[]> tokenOffsets, Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        try (DataOutputStream termsOut = open(directory.resolve(TERMS_FILE), TERMS_MAGIC);
+                DataOutputStream postingsOut = open(directory.resolve(POSTINGS_FILE), POSTINGS_MAGIC);
+                DataOutputStream positionsOut = open(directory.resolve(POSITIONS_FILE), POSITIONS_MAGIC);
+                DataOutputStream docSetsOut = open(directory.resolve(DOCSETS_FILE), DOCSETS_MAGIC)) {
+            byte[] dictionary = new byte[terms.getSize()];
+            terms.copyTo(dictionary);
+            termsOut.write(dictionary);
+
+            long postingsOffset = HEADER_SIZE;
+            long positionsOffset = HEADER_SIZE;
+            long docSetOffset = HEADER_SIZE;
+            for (PostingsList postings : termPostings) {
+                docSetOffset += writeEntry(termsOut, postings, postingsOffset, positionsOffset, docSetOffset,
+                        docSetsOut);
+                postings.writeTo(postingsOut, positionsOut);
+                postingsOffset += postings.getSkipCount() * PostingsList.SKIP_ENTRY_INTS * 4L
+                        + postings.getDocLength();
+                positionsOffset += postings.getPositionLength();
+            }
+        }
+
+        writeDocuments(directory, documentPaths);
+
+        try (DataOutputStream offsetsOut = open(directory.resolve(OFFSETS_FILE), OFFSETS_MAGIC)) {
+            int documentCount = documentPaths.size();
+            offsetsOut.writeInt(documentCount);
+            long tableOffset = HEADER_SIZE + 4 + (documentCount + 1) * 8L;
+            offsetsOut.writeLong(tableOffset);
+            for (int docID = 1; docID <= documentCount; docID++) {
+                tableOffset += tokenOffsets.getOrDefault(docID, EMPTY_OFFSETS).length;
+                offsetsOut.writeLong(tableOffset);
+            }
+            for (int docID = 1; docID <= documentCount; docID++) {
+                offsetsOut.write(tokenOffsets.getOrDefault(docID, EMPTY_OFFSETS));
+            }
+        }
+    }
+
+    /*
+     * Writes the TERM_ENTRY_SIZE bytes of terms.dict for postings stored at
+     * the given offsets, and their DocBitmap to docSetsOut if the term is in
+     * enough documents. Returns the number of bytes written to docSetsOut.
+     */
+    private static int writeEntry(DataOutputStream out, PostingsList postings, long postingsOffset,
+            long positionsOffset, long docSetOffset, DataOutputStream docSetsOut) throws IOException {
+        DocBitmap documents = postings.getDocumentCount() < DOC_SET_MIN_DOCUMENTS ? null
+                : DocBitmap.of(postings.cursor());
+        int docSetLength = documents == null ? 0 : documents.getSerializedSize();
+        out.writeInt(postings.getDocumentCount());
+        out.writeInt(postings.getDocLength());
+        out.writeInt(postings.getPositionLength());
+        out.writeInt(postings.getSkipCount());
+        out.writeLong(postingsOffset);
+        out.writeLong(positionsOffset);
+        out.writeLong(docSetOffset);
+        out.writeInt(docSetLength);
+        if (documents != null) {
+            documents.writeTo(docSetsOut);
+        }
+        return docSetLength;
+    }
+
+    // Writes docs.tbl, DocID n being documentPaths.get(n - 1).
+    static void writeDocuments(Path directory, List<String> documentPaths) throws IOException {
+        try (DataOutputStream docsOut = open(directory.resolve(DOCS_FILE), DOCS_MAGIC)) {
+            docsOut.writeInt(documentPaths.size());
+            int pathOffset = 0;
+            docsOut.writeInt(pathOffset);
+            for (String path : documentPaths) {
+                pathOffset += path.getBytes(StandardCharsets.UTF_8).length;
+                docsOut.writeInt(pathOffset);
+            }
+            for (String path : documentPaths) {
+                docsOut.write(path.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /*
+     * Writes offsets.bin from tables, which holds the token offset tables of
+     * DocIDs 1 to lengths.length back to back, lengths[n - 1] bytes for DocID n.
+     */
+    static void writeOffsets(Path directory, int[] lengths, InputStream tables) throws IOException {
+        try (DataOutputStream offsetsOut = open(directory.resolve(OFFSETS_FILE), OFFSETS_MAGIC)) {
+            offsetsOut.writeInt(lengths.length);
+            long tableOffset = HEADER_SIZE + 4 + (lengths.length + 1) * 8L;
+            offsetsOut.writeLong(tableOffset);
+            for (int length : lengths) {
+                tableOffset += length;
+                offsetsOut.writeLong(tableOffset);
+            }
+            tables.transferTo(offsetsOut);
+        }
+    }
+
+    // Directory of segment number within a segmented index.
+    static String segmentName(int number) {
+        return "seg_" + number;
+    }
+
+    // File holding the deleted documents of a segment, relative to the segment directory.
+    static String deletesName(int generation) {
+        return "deletes_" + generation + ".bin";
+    }
+
+    /*
+     * Replaces the segment list of a segmented index. segments holds one
+     * {number, docBase, docCount, deleteGeneration} row per segment in DocID
+     * order. The list is written next to the old one and moved over it, so
+     * a reader sees either the old or the new list in full.
+     */
+    static void writeSegments(Path directory, int nextSegmentNumber, List<int[]> segments) throws IOException {
+        Path temporary = directory.resolve(SEGMENTS_FILE + ".tmp");
+        try (DataOutputStream out = open(temporary, SEGMENTS_MAGIC)) {
+            out.writeInt(nextSegmentNumber);
+            out.writeInt(segments.size());
+            for (int[] segment : segments) {
+                for (int value : segment) {
+                    out.writeInt(value);
+                }
+            }
+        }
+        Files.move(temporary, directory.resolve(SEGMENTS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Reads the rows written by writeSegments into segments and returns nextSegmentNumber.
+    static int readSegments(Path directory, List<int[]> segments) throws IOException {
+        try (DataInputStream in = openInput(directory.resolve(SEGMENTS_FILE), SEGMENTS_MAGIC)) {
+            int nextSegmentNumber = in.readInt();
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                segments.add(new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() });
+            }
+            return nextSegmentNumber;
+        }
+    }
+
+    // Writes the deleted DocIDs (bit n for DocID n) of a segment with docCount documents.
+    static void writeDeletes(Path file, BitSet deletes, int docCount) throws IOException {
+        try (DataOutputStream out = open(file, DELETES_MAGIC)) {
+            out.writeInt(docCount);
+            long[] words = Arrays.copyOf(deletes.toLongArray(), (docCount + 64) / 64);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    static BitSet readDeletes(Path file) throws IOException {
+        try (DataInputStream in = openInput(file, DELETES_MAGIC)) {
+            long[] words = new long[(in.readInt() + 64) / 64];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+
+    static DataInputStream openInput(Path file, int magic) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        if (in.readInt() != magic) {
+            in.close();
+            throw new IOException(file + " is not a positional index file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            in.close();
+            throw new IOException(file + " has index format version " + version + ", expected " + VERSION);
+        }
+        return in;
+    }
+
+    static DataOutputStream open(Path file, int magic) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        return out;
+    }
+} // class
@@ -0,0 +1,324 @@
+/*
+    Process-wide metrics of index builds and queries, split
+    into the phases the work goes through:
+
+    listing      collecting the corpus file paths    (files)
+    tokenizing   reading and tokenizing one file     (tokens)
+    indexing     merging partial indexes and sorting
+                 the terms into the dictionary       (postings)
+    join         matching the postings of a query    (matches)
+    snippet      cutting the exact phrases of one
+                 document's matches out of its file  (phrases)
+    csv          writing one document's result rows  (rows)
+
+    Every run of a phase is also a PhaseEvent, so a Java
+    Flight Recording (-XX:StartFlightRecording) shows the
+    phases on the thread that ran them. The join time of a
+    query excludes the snippet and CSV work done from its
+    callbacks.
+
+    Counters are LongAdders, so the build threads and
+    concurrent queries record without contending. report()
+    adds the build throughput, the query latency histogram
+    and the heap, off-heap and GC figures of the JVM.
+*/
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public final class IndexMetrics {
+    public enum Phase {
+        LISTING("listing", "files"),
+        TOKENIZING("tokenizing", "tokens"),
+        INDEXING("indexing", "postings"),
+        JOIN("join", "matches"),
+        SNIPPET("snippet", "phrases"),
+        CSV("csv", "rows");
+
+        final String label;
+        final String unit;
+
+        Phase(String label, String unit) {
+            this.label = label;
+            this.unit = unit;
+        }
+    }
+
+    // One run of a phase in a flight recording.
+    @Name("positionalindex.Phase")
+    @Label("Index Phase")
+    @Category("Positional Index")
+    @Description("One run of a build or query phase")
+    static final class PhaseEvent extends jdk.jfr.Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Items")
+        @Description("Files, tokens, postings, matches, phrases or rows, depending on the phase")
+        long items;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+
+        // Not recorded; the start of the phase for the counters.
+        transient long startNanos;
+        transient Phase type;
+    }
+
+    private static final int PHASE_COUNT = Phase.values().length;
+    private static final LongAdder[] calls = newAdders();
+    private static final LongAdder[] nanos = newAdders();
+    private static final LongAdder[] items = newAdders();
+    private static final LongAdder[] bytes = newAdders();
+
+    // Wall-clock time of whole builds, over which the build throughput is reported.
+    private static final LongAdder buildNanos = new LongAdder();
+    private static final LongAdder buildDocuments = new LongAdder();
+
+    private static final LatencyHistogram queryLatencies = new LatencyHistogram();
+
+    private IndexMetrics() {
+    }
+
+    // Starts a run of phase on the calling thread; pass the event to end.
+    static PhaseEvent begin(Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.type = phase;
+        event.begin();
+        event.startNanos = System.nanoTime();
+        return event;
+    }
+
+    /*
+     * Ends a run started by begin that handled itemCount items and read
+     * byteCount bytes. Returns its time in nanoseconds.
+     */
+    static long end(PhaseEvent event, long itemCount, long byteCount) {
+        return end(event, itemCount, byteCount, 0);
+    }
+
+    // Same as above, without excludedNanos spent in other phases, such as a join writing its matches.
+    static long end(PhaseEvent event, long itemCount, long byteCount, long excludedNanos) {
+        long elapsed = Math.max(0, System.nanoTime() - event.startNanos - excludedNanos);
+        record(event.type, elapsed, itemCount, byteCount);
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = event.type.label;
+            event.items = itemCount;
+            event.bytes = byteCount;
+            event.commit();
+        }
+        return elapsed;
+    }
+
+    // Adds one run of phase measured by the caller.
+    static void record(Phase phase, long elapsedNanos, long itemCount, long byteCount) {
+        int i = phase.ordinal();
+        calls[i].increment();
+        nanos[i].add(elapsedNanos);
+        items[i].add(itemCount);
+        bytes[i].add(byteCount);
+    }
+
+    // A whole build of documentCount documents that took elapsedNanos.
+    static void recordBuild(long elapsedNanos, int documentCount) {
+        buildNanos.add(elapsedNanos);
+        buildDocuments.add(documentCount);
+    }
+
+    // The latency of one answered query.
+    static void recordQuery(long latencyNanos) {
+        queryLatencies.record(latencyNanos);
+    }
+
+    static long getCalls(Phase phase) {
+        return calls[phase.ordinal()].sum();
+    }
+
+    static long getNanos(Phase phase) {
+        return nanos[phase.ordinal()].sum();
+    }
+
+    static long getItems(Phase phase) {
+        return items[phase.ordinal()].sum();
+    }
+
+    static LatencyHistogram getQueryLatencies() {
+        return queryLatencies;
+    }
+
+    // Forgets everything recorded so far, e.g. between benchmark iterations.
+    static void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            calls[i].reset();
+            nanos[i].reset();
+            items[i].reset();
+            bytes[i].reset();
+        }
+        buildNanos.reset();
+        buildDocuments.reset();
+        queryLatencies.reset();
+    }
+
+    /*
+     * A table of the phases that ran, then the build throughput, the query
+     * latency histogram and the JVM memory and GC figures. Phase times are
+     * summed over threads; the build rates are over the wall-clock time.
+     */
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-12s %8s %12s %16s %16s%n", "Phase", "Runs", "Time (ms)", "Items",
+                "Items/s"));
+        for (Phase phase : Phase.values()) {
+            long runs = getCalls(phase);
+            if (runs == 0) {
+                continue;
+            }
+            long phaseNanos = getNanos(phase);
+            long phaseItems = getItems(phase);
+            report.append(String.format("%-12s %8d %12.1f %16s %16.0f%n", phase.label, runs, phaseNanos / 1e6,
+                    phaseItems + " " + phase.unit, phaseItems / Math.max(phaseNanos / 1e9, 1e-9)));
+        }
+
+        long builds = buildNanos.sum();
+        if (builds > 0) {
+            double seconds = builds / 1e9;
+            long tokens = getItems(Phase.TOKENIZING);
+            report.append(String.format("%nBuild: %d documents, %d tokens, %d bytes, %d postings in %.3f s%n",
+                    buildDocuments.sum(), tokens, bytes[Phase.TOKENIZING.ordinal()].sum(),
+                    getItems(Phase.INDEXING), seconds));
+            report.append(String.format("       %.0f tokens/s, %.1f docs/s%n", tokens / seconds,
+                    buildDocuments.sum() / seconds));
+        }
+
+        if (queryLatencies.getCount() > 0) {
+            report.append(String.format("%nQuery latency: %d queries, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, "
+                    + "max %.3f ms%n", queryLatencies.getCount(), queryLatencies.percentile(0.50) / 1e6,
+                    queryLatencies.percentile(0.90) / 1e6, queryLatencies.percentile(0.99) / 1e6,
+                    queryLatencies.getMax() / 1e6));
+            queryLatencies.appendBuckets(report);
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        report.append(String.format("%nHeap: %d bytes used, %d committed, %d max%n", heap.getUsed(),
+                heap.getCommitted(), heap.getMax()));
+        report.append(String.format("Non-heap: %d bytes used, %d committed%n", nonHeap.getUsed(),
+                nonHeap.getCommitted()));
+        // Direct buffers and the memory-mapped index files live outside the heap.
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            report.append(String.format("Off-heap %s buffers: %d, %d bytes%n", pool.getName(), pool.getCount(),
+                    pool.getMemoryUsed()));
+        }
+        // Collection times of the stop-the-world collectors are their pauses.
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            report.append(String.format("GC %s: %d collections, %d ms%n", collector.getName(),
+                    collector.getCollectionCount(), collector.getCollectionTime()));
+        }
+        return report.toString();
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /*
+     * Log-linear histogram of nanosecond latencies: every power of two is
+     * split into SUB_BUCKETS buckets, so a percentile is exact to within
+     * 1 / SUB_BUCKETS of its value, in a fixed 4 KB whatever the count.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            this.counts.incrementAndGet(bucketOf(value));
+            this.count.increment();
+            this.max.accumulate(value);
+        }
+
+        long getCount() {
+            return this.count.sum();
+        }
+
+        long getMax() {
+            return this.max.get();
+        }
+
+        // Upper bound of the bucket holding the given fraction of the values, in nanoseconds.
+        long percentile(double fraction) {
+            long rank = Math.max(1, (long) Math.ceil(fraction * getCount()));
+            long seen = 0;
+            for (int bucket = 0; bucket < this.counts.length(); bucket++) {
+                seen += this.counts.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(upperBound(bucket), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (int bucket = 0; bucket < this.counts.length(); bucket++) {
+                this.counts.set(bucket, 0);
+            }
+            this.count.reset();
+            this.max.reset();
+        }
+
+        // One "<= bound ms: count" line per non-empty bucket.
+        void appendBuckets(StringBuilder out) {
+            for (int bucket = 0; bucket < this.counts.length(); bucket++) {
+                long bucketCount = this.counts.get(bucket);
+                if (bucketCount > 0) {
+                    out.append(String.format("  <= %12.3f ms: %d%n", upperBound(bucket) / 1e6, bucketCount));
+                }
+            }
+        }
+
+        // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BITS + 1 bits pick it.
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value of bucket.
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            if (exponent >= 63) {
+                return Long.MAX_VALUE;
+            }
+            return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+} // class
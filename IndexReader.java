@@ -0,0 +1,57 @@
+/*
+    Read-only view of a positional index used by the query
+    code. Implemented by the in-memory PositionalIndex and by
+    the memory-mapped DiskIndex, so proximitySearch works the
+    same on both.
+*/
+
+import java.util.List;
+
+public interface IndexReader {
+    // Number of distinct terms in the index.
+    int getTermCount();
+
+    // Number of documents containing term, 0 if the term is not indexed.
+    int getDocumentCountByTerm(String term);
+
+    // A fresh cursor over the postings of term, or null if the term is not indexed.
+    PostingsCursor postings(String term);
+
+    /*
+     * The documents containing term, or null if the term is not indexed.
+     * Indexes that don't store them collect them from the postings.
+     */
+    default DocBitmap documents(String term) {
+        PostingsCursor cursor = postings(term);
+        return cursor == null ? null : DocBitmap.of(cursor);
+    }
+
+    /*
+     * The positions of x followed by y exactly k words later, read from a
+     * pair index (see PairIndex), or null if no pair index covers x, y and k.
+     */
+    default PostingsCursor pairPostings(String x, String y, int k) {
+        return null;
+    }
+
+    // The indexed terms starting with prefix, in sorted order.
+    List<String> expandPrefix(String prefix);
+
+    // Number of documents in the index; DocIDs run from 1 to this value.
+    int getDocumentCount();
+
+    // Path of the source text file of docID.
+    String getDocumentPath(int docID);
+
+    // Byte offsets of the token positions of docID, or null if they were not recorded.
+    TokenOffsets getTokenOffsets(int docID);
+
+    // Number of tokens in all documents, from their token offsets.
+    long getTokenCount();
+
+    // Number of tokens in docID, 0 if its token offsets were not recorded.
+    default int getDocumentLength(int docID) {
+        TokenOffsets offsets = getTokenOffsets(docID);
+        return offsets == null ? 0 : offsets.getTokenCount();
+    }
+}
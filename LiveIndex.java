@@ -0,0 +1,305 @@
+/*
+    An in-memory positional index that can be queried while
+    documents are being added to it.
+
+    The index a query reads is an immutable Snapshot: a list
+    of frozen PositionalIndex parts covering consecutive
+    DocID ranges, the document paths and a generation
+    number. New documents are tokenized by the writer into a
+    private PositionalIndex under the DocIDs after the last
+    one, and the next snapshot, the old parts plus the new
+    one, is published by swapping an AtomicReference. A
+    query takes the current snapshot once and reads only
+    that, without any lock: it sees every document of the
+    snapshot, fully indexed, and none of a later one. Writes
+    never wait for queries, and a snapshot stays valid for as
+    long as a query holds on to it.
+
+    Like the segments of a SegmentedIndex, MERGE_FACTOR
+    adjacent parts with document counts of the same power of
+    MERGE_FACTOR are merged into one before publishing, so
+    there are only a few parts and a term's postings seldom
+    have to be concatenated at query time. Merging copies the
+    parts' postings, leaving the published parts untouched.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+public final class LiveIndex implements IndexReader {
+    // Number of adjacent parts of the same size level merged into one.
+    static final int MERGE_FACTOR = 4;
+
+    /*
+     * The index as of one publish. Nothing in it changes once published, so
+     * it can be read from any number of threads.
+     */
+    public static final class Snapshot implements IndexReader {
+        static final Snapshot EMPTY = new Snapshot(new PositionalIndex[0], new int[0], Collections.emptyList(), 0);
+
+        private final PositionalIndex[] parts;
+
+        // Last DocID of each part; part i covers lastDocIDs[i - 1] + 1 to lastDocIDs[i].
+        private final int[] lastDocIDs;
+        private final List<String> paths;
+        private final long generation;
+        private final long tokenCount;
+
+        // Number of distinct terms over the parts, counted on first use; -1 until then.
+        private volatile int termCount = -1;
+
+        Snapshot(PositionalIndex[] parts, int[] lastDocIDs, List<String> paths, long generation) {
+            this.parts = parts;
+            this.lastDocIDs = lastDocIDs;
+            this.paths = paths;
+            this.generation = generation;
+            long tokens = 0;
+            for (PositionalIndex part : parts) {
+                tokens += part.getTokenCount();
+            }
+            this.tokenCount = tokens;
+        }
+
+        // Number of publishes before this snapshot; a QueryCache drops its entries when it changes.
+        public long getGeneration() {
+            return this.generation;
+        }
+
+        int getPartCount() {
+            return this.parts.length;
+        }
+
+        public int getTermCount() {
+            int count = this.termCount;
+            if (count < 0) {
+                if (this.parts.length == 1) {
+                    count = this.parts[0].getTermCount();
+                } else {
+                    Set<String> terms = new HashSet<String>();
+                    for (PositionalIndex part : this.parts) {
+                        terms.addAll(part.expandPrefix(""));
+                    }
+                    count = terms.size();
+                }
+                this.termCount = count;
+            }
+            return count;
+        }
+
+        public int getDocumentCountByTerm(String term) {
+            int count = 0;
+            for (PositionalIndex part : this.parts) {
+                count += part.getDocumentCountByTerm(term);
+            }
+            return count;
+        }
+
+        /*
+         * The postings of the only part holding term, or those of every part
+         * holding it copied into one list; the parts' DocID ranges ascend.
+         */
+        public PostingsCursor postings(String term) {
+            PostingsCursor first = null;
+            ArrayList<PostingsCursor> cursors = null;
+            for (PositionalIndex part : this.parts) {
+                PostingsCursor cursor = part.postings(term);
+                if (cursor == null) {
+                    continue;
+                }
+                if (first == null) {
+                    first = cursor;
+                    continue;
+                }
+                if (cursors == null) {
+                    cursors = new ArrayList<PostingsCursor>();
+                    cursors.add(first);
+                }
+                cursors.add(cursor);
+            }
+            return cursors == null ? first : PostingsList.union(cursors).cursor();
+        }
+
+        public List<String> expandPrefix(String prefix) {
+            if (this.parts.length == 1) {
+                return this.parts[0].expandPrefix(prefix);
+            }
+            TreeSet<String> terms = new TreeSet<String>();
+            for (PositionalIndex part : this.parts) {
+                terms.addAll(part.expandPrefix(prefix));
+            }
+            return new ArrayList<String>(terms);
+        }
+
+        public int getDocumentCount() {
+            return this.paths.size();
+        }
+
+        public String getDocumentPath(int docID) {
+            return this.paths.get(docID - 1);
+        }
+
+        public TokenOffsets getTokenOffsets(int docID) {
+            return partOf(docID).getTokenOffsets(docID);
+        }
+
+        public long getTokenCount() {
+            return this.tokenCount;
+        }
+
+        // The part holding docID, found by binary search over the last DocIDs.
+        private PositionalIndex partOf(int docID) {
+            int index = Arrays.binarySearch(this.lastDocIDs, docID);
+            return this.parts[index >= 0 ? index : -index - 1];
+        }
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+    // Held while adding documents, so writes are applied one at a time; queries never take it.
+    private final Object writeLock = new Object();
+
+    // Every path indexed so far; only read and written under writeLock.
+    private final Set<String> indexedPaths = new HashSet<String>();
+
+    /*
+     * The index as it is now. A query should take it once and run on it
+     * alone; the IndexReader methods of LiveIndex itself each read whatever
+     * snapshot is current at the time of the call.
+     */
+    public Snapshot snapshot() {
+        return this.current.get();
+    }
+
+    // Generation of the current snapshot, see Snapshot.getGeneration.
+    public long getChangeCount() {
+        return snapshot().getGeneration();
+    }
+
+    /*
+     * Tokenizes the files in newPaths that are not indexed yet, with
+     * threadCount threads, and publishes them in a new snapshot. Returns the
+     * number of documents added. Queries keep running on the previous
+     * snapshot meanwhile.
+     */
+    public int addDocuments(List<String> newPaths, int threadCount) {
+        synchronized (this.writeLock) {
+            Snapshot previous = this.current.get();
+            ArrayList<String> paths = new ArrayList<String>(previous.paths);
+            Set<String> added = new HashSet<String>();
+            for (String path : newPaths) {
+                if (!this.indexedPaths.contains(path) && added.add(path)) {
+                    paths.add(path);
+                }
+            }
+            int first = previous.paths.size();
+            int last = paths.size();
+            if (last == first) {
+                return 0;
+            }
+
+            // A file that can't be read throws here, before anything is changed.
+            PositionalIndex part = PositionalIndex.buildPositionalIndex(paths, first, last, threadCount);
+            ArrayList<PositionalIndex> parts = new ArrayList<PositionalIndex>(Arrays.asList(previous.parts));
+            ArrayList<Integer> lastDocIDs = new ArrayList<Integer>();
+            for (int lastDocID : previous.lastDocIDs) {
+                lastDocIDs.add(lastDocID);
+            }
+            parts.add(part);
+            lastDocIDs.add(last);
+            mergeParts(parts, lastDocIDs);
+
+            int[] lastDocIDArray = new int[lastDocIDs.size()];
+            for (int i = 0; i < lastDocIDArray.length; i++) {
+                lastDocIDArray[i] = lastDocIDs.get(i);
+            }
+            this.indexedPaths.addAll(added);
+            this.current.set(new Snapshot(parts.toArray(new PositionalIndex[0]), lastDocIDArray,
+                    Collections.unmodifiableList(paths), previous.generation + 1));
+            return last - first;
+        }
+    }
+
+    /*
+     * While the last MERGE_FACTOR parts all have the same size level, replaces
+     * them with one part holding copies of their postings.
+     */
+    private static void mergeParts(List<PositionalIndex> parts, List<Integer> lastDocIDs) {
+        while (parts.size() >= MERGE_FACTOR) {
+            int from = parts.size() - MERGE_FACTOR;
+            int level = level(documentCount(lastDocIDs, from));
+            boolean sameLevel = true;
+            for (int i = from + 1; i < parts.size() && sameLevel; i++) {
+                sameLevel = level(documentCount(lastDocIDs, i)) == level;
+            }
+            if (!sameLevel) {
+                return;
+            }
+            IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+            PositionalIndex merged = new PositionalIndex();
+            for (int i = from; i < parts.size(); i++) {
+                merged.copyPositionalIndex(parts.get(i));
+            }
+            merged.freezeTerms();
+            IndexMetrics.end(indexing, 0, 0);
+
+            int lastDocID = lastDocIDs.get(parts.size() - 1);
+            parts.subList(from, parts.size()).clear();
+            lastDocIDs.subList(from, lastDocIDs.size()).clear();
+            parts.add(merged);
+            lastDocIDs.add(lastDocID);
+        }
+    }
+
+    private static int documentCount(List<Integer> lastDocIDs, int part) {
+        return lastDocIDs.get(part) - (part == 0 ? 0 : lastDocIDs.get(part - 1));
+    }
+
+    // 0 for up to MERGE_FACTOR documents, 1 for up to MERGE_FACTOR^2 and so on.
+    private static int level(int documentCount) {
+        int level = 0;
+        for (long size = MERGE_FACTOR; size < documentCount; size *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    // The IndexReader methods below each read the snapshot current at the time of the call.
+
+    public int getTermCount() {
+        return snapshot().getTermCount();
+    }
+
+    public int getDocumentCountByTerm(String term) {
+        return snapshot().getDocumentCountByTerm(term);
+    }
+
+    public PostingsCursor postings(String term) {
+        return snapshot().postings(term);
+    }
+
+    public List<String> expandPrefix(String prefix) {
+        return snapshot().expandPrefix(prefix);
+    }
+
+    public int getDocumentCount() {
+        return snapshot().getDocumentCount();
+    }
+
+    public String getDocumentPath(int docID) {
+        return snapshot().getDocumentPath(docID);
+    }
+
+    public TokenOffsets getTokenOffsets(int docID) {
+        return snapshot().getTokenOffsets(docID);
+    }
+
+    public long getTokenCount() {
+        return snapshot().getTokenCount();
+    }
+} // class
@@ -0,0 +1,263 @@
+/*
+    Auxiliary index of word pairs for proximity queries on
+    very frequent words, such as "of the" with k = 1, whose
+    position lists are long in nearly every document.
+
+    The frequent terms of an index are those occurring at
+    least minCount times. For every ordered pair a, b of them
+    and every distance d from 1 to maxK, the pair index holds
+    the postings of the key "a b d": the positions of a that
+    are followed by b exactly d words later. A query x y k on
+    two frequent terms with k <= maxK then reads the postings
+    of "x y k" and "y x k" instead of joining the position
+    lists of x and y, and gets the same matches.
+
+    The pairs are found in one pass over the finished index:
+    the positions of the frequent terms in a document are laid
+    out in an array by position, and every position is checked
+    against the maxK positions after it. The pair directory
+    of a segment (pairs/) holds terms.dict, postings.bin and
+    positions.bin in the IndexFormat layout, with the keys as
+    terms, plus
+
+    pairs.bin   PAIRS_MAGIC, version, minCount(long), maxK(int),
+                termCount(int), then the frequent terms (UTF) in
+                sorted order
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class PairIndex implements AutoCloseable {
+    // Largest distance between the words of a pair unless given.
+    static final int DEFAULT_MAX_K = 3;
+
+    private final DiskIndex pairs;
+    private final List<String> terms;
+    private final HashSet<String> termSet;
+    private final long minCount;
+    private final int maxK;
+
+    private PairIndex(DiskIndex pairs, List<String> terms, long minCount, int maxK) {
+        this.pairs = pairs;
+        this.terms = Collections.unmodifiableList(terms);
+        this.termSet = new HashSet<String>(terms);
+        this.minCount = minCount;
+        this.maxK = maxK;
+    }
+
+    // Opens the pair index written by write into directory.
+    static PairIndex open(Path directory) throws IOException {
+        ArrayList<String> terms = new ArrayList<String>();
+        long minCount;
+        int maxK;
+        try (DataInputStream in = IndexFormat.openInput(directory.resolve(IndexFormat.PAIRS_FILE),
+                IndexFormat.PAIRS_MAGIC)) {
+            minCount = in.readLong();
+            maxK = in.readInt();
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                terms.add(in.readUTF());
+            }
+        }
+        return new PairIndex(DiskIndex.openPostings(directory), terms, minCount, maxK);
+    }
+
+    // The terms of index occurring at least minCount times, in sorted order.
+    static List<String> frequentTerms(IndexReader index, long minCount) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for (String term : index.expandPrefix("")) {
+            PostingsCursor cursor = index.postings(term);
+            long count = 0;
+            while (count < minCount && cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                count += cursor.freq();
+            }
+            if (count >= minCount) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /*
+     * Writes the pair index of terms, which must be sorted, for distances 1
+     * to maxK over every document of index into directory. Returns the
+     * number of pair occurrences stored.
+     */
+    static long write(IndexReader index, List<String> terms, long minCount, int maxK, Path directory)
+            throws IOException {
+        int termCount = terms.size();
+        PostingsCursor[] cursors = new PostingsCursor[termCount];
+        int[] docs = new int[termCount];
+        for (int t = 0; t < termCount; t++) {
+            cursors[t] = index.postings(terms.get(t));
+            docs[t] = cursors[t] == null ? PostingsCursor.NO_MORE_DOCS : cursors[t].nextDoc();
+        }
+
+        // Key (a * termCount + b) * maxK + d - 1 for the pair a, b at distance d.
+        HashMap<Long, PostingsList> pairs = new HashMap<Long, PostingsList>();
+        // Frequent term index at every position of the current document, -1 for other words.
+        int[] slots = new int[1024];
+        Arrays.fill(slots, -1);
+        long occurrenceCount = 0;
+        while (true) {
+            int docID = PostingsCursor.NO_MORE_DOCS;
+            for (int t = 0; t < termCount; t++) {
+                docID = Math.min(docID, docs[t]);
+            }
+            if (docID == PostingsCursor.NO_MORE_DOCS) {
+                break;
+            }
+
+            int lastPosition = 0;
+            for (int t = 0; t < termCount; t++) {
+                if (docs[t] != docID) {
+                    continue;
+                }
+                int[] positions = cursors[t].positions();
+                int freq = cursors[t].freq();
+                lastPosition = Math.max(lastPosition, positions[freq - 1]);
+                if (lastPosition + maxK >= slots.length) {
+                    int length = slots.length;
+                    slots = Arrays.copyOf(slots, Math.max(lastPosition + maxK + 1, length * 2));
+                    Arrays.fill(slots, length, slots.length, -1);
+                }
+                for (int i = 0; i < freq; i++) {
+                    slots[positions[i]] = t;
+                }
+                docs[t] = cursors[t].nextDoc();
+            }
+
+            for (int position = 0; position <= lastPosition; position++) {
+                int a = slots[position];
+                if (a < 0) {
+                    continue;
+                }
+                for (int d = 1; d <= maxK; d++) {
+                    int b = slots[position + d];
+                    if (b >= 0) {
+                        pairs.computeIfAbsent(((long) a * termCount + b) * maxK + d - 1, key -> new PostingsList())
+                                .add(docID, position);
+                        occurrenceCount++;
+                    }
+                }
+            }
+            Arrays.fill(slots, 0, lastPosition + 1, -1);
+        }
+
+        // The keys go to the dictionary in increasing byte order.
+        TreeMap<byte[], PostingsList> sorted = new TreeMap<byte[], PostingsList>(Arrays::compareUnsigned);
+        for (Map.Entry<Long, PostingsList> pair : pairs.entrySet()) {
+            long key = pair.getKey();
+            String x = terms.get((int) (key / maxK / termCount));
+            String y = terms.get((int) (key / maxK % termCount));
+            sorted.put(key(x, y, (int) (key % maxK) + 1).getBytes(StandardCharsets.UTF_8), pair.getValue());
+        }
+        try (IndexFormat.TermWriter writer = new IndexFormat.TermWriter(directory)) {
+            for (Map.Entry<byte[], PostingsList> pair : sorted.entrySet()) {
+                writer.add(pair.getKey(), 0, pair.getKey().length, pair.getValue());
+            }
+        }
+
+        // Written last, so a pair directory without it is an unfinished one.
+        try (DataOutputStream out = IndexFormat.open(directory.resolve(IndexFormat.PAIRS_FILE),
+                IndexFormat.PAIRS_MAGIC)) {
+            out.writeLong(minCount);
+            out.writeInt(maxK);
+            out.writeInt(termCount);
+            for (String term : terms) {
+                out.writeUTF(term);
+            }
+        }
+        return occurrenceCount;
+    }
+
+    // True if directory holds a complete pair index.
+    static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(IndexFormat.PAIRS_FILE));
+    }
+
+    /*
+     * The positions of x followed by y exactly k words later, or null if x or
+     * y is not a frequent term or k is out of range. A covered pair that
+     * never occurs gets an empty cursor.
+     */
+    PostingsCursor postings(String x, String y, int k) {
+        if (k < 1 || k > this.maxK || !this.termSet.contains(x) || !this.termSet.contains(y)) {
+            return null;
+        }
+        PostingsCursor cursor = this.pairs.postings(key(x, y, k));
+        return cursor == null ? new PostingsList().cursor() : cursor;
+    }
+
+    // The frequent terms, in sorted order.
+    List<String> getTerms() {
+        return this.terms;
+    }
+
+    long getMinCount() {
+        return this.minCount;
+    }
+
+    int getMaxK() {
+        return this.maxK;
+    }
+
+    // Number of pair keys that occur at least once.
+    int getPairCount() {
+        return this.pairs.getTermCount();
+    }
+
+    // Total size of the pair files in bytes.
+    long getSizeInBytes() {
+        return this.pairs.getSizeInBytes();
+    }
+
+    public void close() throws IOException {
+        this.pairs.close();
+    }
+
+    /*
+     * Reports the matches of x and y exactly k apart from the postings of
+     * "x y k" (xFirst) and "y x k" (yFirst), per document in DocID order, the
+     * x...y matches before the y...x ones like PositionalJoin.
+     */
+    static void join(PostingsCursor xFirst, PostingsCursor yFirst, int k, PositionalJoin.MatchCollector collector) {
+        int xDoc = xFirst.nextDoc();
+        int yDoc = yFirst.nextDoc();
+        while (xDoc != PostingsCursor.NO_MORE_DOCS || yDoc != PostingsCursor.NO_MORE_DOCS) {
+            int docID = Math.min(xDoc, yDoc);
+            if (xDoc == docID) {
+                int[] positions = xFirst.positions();
+                for (int i = 0; i < xFirst.freq(); i++) {
+                    collector.xFirst(docID, positions[i], positions[i] + k);
+                }
+                xDoc = xFirst.nextDoc();
+            }
+            if (yDoc == docID) {
+                int[] positions = yFirst.positions();
+                for (int i = 0; i < yFirst.freq(); i++) {
+                    collector.yFirst(docID, positions[i], positions[i] + k);
+                }
+                yDoc = yFirst.nextDoc();
+            }
+            collector.endDocument(docID);
+        }
+    }
+
+    private static String key(String x, String y, int k) {
+        return x + " " + y + " " + k;
+    }
+} // class
@@ -12,262 +12,765 @@
 */
 
 // Java
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.IOException;
-import java.util.regex.Pattern;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.TreeMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class PositionalIndex {
+public class PositionalIndex implements IndexReader {
     /*
      *
      * CONSTRUCTOR AND CLASS METHODS
      * 
      */
 
-    // TreeMap<Term, DocumentList<DocID, PositionalListing<ListingIndex, DocIndex>>>
-    private TreeMap<String, TreeMap<Integer, TreeMap<Integer, Integer>>> positionalIndexData;
+    // Heap bytes of a PostingsList besides its streams: the object and the headers of its arrays.
+    static final int POSTINGS_OVERHEAD = 96;
+
+    // Heap bytes of a token offset table besides its bytes: the array header and its TreeMap entry.
+    static final int TOKEN_OFFSETS_OVERHEAD = 72;
+
+    // Most terms of a prefix whose document bitmaps are ORed into the candidates of a query.
+    static final int MAX_PREFIX_BITMAP_TERMS = 256;
+
+    /*
+     * Terms are kept in a front-coded TermDictionary, whose ordinals index
+     * termPostings. Terms added since the dictionary was last frozen wait in
+     * the TermTable addedTerms, whose term IDs index addedPostings, until
+     * freezeTerms() folds them in; each PostingsList holds compressed DocIDs
+     * and positions.
+     */
+    private TermDictionary termDictionary;
+    private PostingsList[] termPostings;
+    private TermTable addedTerms;
+    private PostingsList[] addedPostings;
+
+    // TreeMap<DocID, TokenOffsets table> with the byte offset of every token position
+    private TreeMap<Integer, byte[]> tokenOffsetData;
+
+    // Number of tokens over the tables in tokenOffsetData.
+    private long tokenCount;
 
     // Default Constructor; it's all you really need.
     public PositionalIndex() {
-        this.positionalIndexData = new TreeMap<String, TreeMap<Integer, TreeMap<Integer, Integer>>>();
+        this.termDictionary = TermDictionary.EMPTY;
+        this.termPostings = new PostingsList[0];
+        this.addedTerms = new TermTable();
+        this.addedPostings = new PostingsList[0];
+        this.tokenOffsetData = new TreeMap<Integer, byte[]>();
     }
 
     public void updatePositionalIndex(String term, int docID, int docPosition) {
-        // If the term exists in the Positional Index Data
-        if (this.positionalIndexData.containsKey(term)) {
-            // If the document exists in the Positional Index Data
-            if (this.positionalIndexData.get(term).containsKey(docID)) {
-                this.positionalIndexData.get(term).get(docID).put(
-                        /*
-                         * size will be the size before insertion providing 0-based indexing
-                         * for the key in the positional listing.
-                         */
-                        this.positionalIndexData.get(term).get(docID).size(), docPosition);
+        PostingsList postings = getPostingsList(term);
+        // If the term does not exist in the Positional Index Data yet
+        if (postings == null) {
+            byte[] bytes = term.getBytes(StandardCharsets.ISO_8859_1);
+            postings = addedPostings(this.addedTerms.add(bytes, 0, bytes.length, TermTable.hash(bytes, 0, bytes.length)));
+        }
+        // Documents and positions arrive in increasing order, so this is an append.
+        postings.add(docID, docPosition);
+    }
+
+    // Same as above for a term ID of addedTerms, as the tokenizer gives them.
+    void updatePositionalIndex(int termID, int docID, int docPosition) {
+        PostingsList postings = termID < this.addedPostings.length ? this.addedPostings[termID] : null;
+        if (postings == null) {
+            postings = addedPostings(termID);
+        }
+        postings.add(docID, docPosition);
+    }
+
+    // The postings of a term ID of addedTerms, created empty for a new term.
+    private PostingsList addedPostings(int termID) {
+        if (termID >= this.addedPostings.length) {
+            this.addedPostings = Arrays.copyOf(this.addedPostings,
+                    Math.max(termID + 1, this.addedPostings.length + (this.addedPostings.length >> 1) + 16));
+        }
+        if (this.addedPostings[termID] == null) {
+            this.addedPostings[termID] = new PostingsList();
+        }
+        return this.addedPostings[termID];
+    }
+
+    // Records the byte offsets of the tokens of docID, as collected while tokenizing it.
+    public void updateTokenOffsets(int docID, TokenOffsets.Builder offsets) {
+        byte[] table = offsets.toByteArray();
+        this.tokenOffsetData.put(docID, table);
+        this.tokenCount += ByteBuffer.wrap(table).getInt(0);
+    }
+
+    /*
+     * Appends a partial index to this one. Every docID in other must be larger
+     * than every docID already indexed here.
+     */
+    public void mergePositionalIndex(PositionalIndex other) {
+        mergePositionalIndex(other, false);
+    }
+
+    /*
+     * Same as above, but copies the postings of other instead of taking its
+     * lists over, so other is left as it was and may still be read, as the
+     * parts of a published LiveIndex snapshot are.
+     */
+    void copyPositionalIndex(PositionalIndex other) {
+        mergePositionalIndex(other, true);
+    }
+
+    private void mergePositionalIndex(PositionalIndex other, boolean copy) {
+        for (int ordinal = 0; ordinal < other.termPostings.length; ordinal++) {
+            byte[] term = other.termDictionary.term(ordinal).getBytes(StandardCharsets.UTF_8);
+            mergePostings(term, 0, term.length, other.termPostings[ordinal], copy);
+        }
+        for (int termID = 0; termID < other.addedTerms.size(); termID++) {
+            mergePostings(other.addedTerms.pool(), other.addedTerms.termStart(termID),
+                    other.addedTerms.termLength(termID), other.addedPostings[termID], copy);
+        }
+        this.tokenOffsetData.putAll(other.tokenOffsetData);
+        this.tokenCount += other.tokenCount;
+    }
+
+    private void mergePostings(byte[] term, int offset, int length, PostingsList postings, boolean copy) {
+        int ordinal = this.termDictionary.lookup(term, offset, length);
+        if (ordinal >= 0) {
+            this.termPostings[ordinal].append(postings);
+            return;
+        }
+        int termID = this.addedTerms.add(term, offset, length, TermTable.hash(term, offset, length));
+        if (termID >= this.addedPostings.length || this.addedPostings[termID] == null) {
+            addedPostings(termID);
+            if (copy) {
+                // Appending to an empty list copies the other one.
+                this.addedPostings[termID].append(postings);
             } else {
-                // Create new Positional List
-                TreeMap<Integer, Integer> newPositionalList = new TreeMap<Integer, Integer>();
-                // Insert new position into the new Positional List
-                newPositionalList.put(newPositionalList.size(), docPosition);
-                // Insert new document into the Document List
-                this.positionalIndexData.get(term).put(docID, newPositionalList);
+                this.addedPostings[termID] = postings;
             }
         } else {
-            // Create new Positional List
-            TreeMap<Integer, Integer> newPositionalList = new TreeMap<Integer, Integer>();
-            // Insert new position into the new Positional List
-            newPositionalList.put(newPositionalList.size(), docPosition);
-            // Create a new Document List
-            TreeMap<Integer, TreeMap<Integer, Integer>> newDocumentList = new TreeMap<Integer, TreeMap<Integer, Integer>>();
-            // Insert new Document with Positional List into Document List
-            newDocumentList.put(docID, newPositionalList);
-            // Insert new Document List into the Term TreeMap
-            this.positionalIndexData.put(term, newDocumentList);
+            this.addedPostings[termID].append(postings);
+        }
+    }
+
+    /*
+     * Moves the terms added since the last call into the sorted dictionary.
+     * Not thread-safe; called once the build is done, before queries run.
+     */
+    void freezeTerms() {
+        int addedCount = this.addedTerms.size();
+        if (addedCount == 0) {
+            return;
+        }
+        Integer[] added = new Integer[addedCount];
+        for (int termID = 0; termID < addedCount; termID++) {
+            added[termID] = termID;
+        }
+        Arrays.sort(added, this.addedTerms::compare);
+
+        TermDictionary.Builder dictionary = new TermDictionary.Builder();
+        PostingsList[] postings = new PostingsList[this.termPostings.length + addedCount];
+        byte[] pool = this.addedTerms.pool();
+        int ordinal = 0;
+        int next = 0;
+        int count = 0;
+        while (ordinal < this.termPostings.length || next < addedCount) {
+            byte[] term = ordinal < this.termPostings.length
+                    ? this.termDictionary.term(ordinal).getBytes(StandardCharsets.UTF_8)
+                    : null;
+            int termID = next < addedCount ? added[next] : -1;
+            int order = term == null ? 1 : termID < 0 ? -1
+                    : Arrays.compareUnsigned(term, 0, term.length, pool, this.addedTerms.termStart(termID),
+                            this.addedTerms.termStart(termID) + this.addedTerms.termLength(termID));
+            if (order <= 0) {
+                // A term indexed again since the last freeze gets its new postings appended.
+                if (order == 0) {
+                    this.termPostings[ordinal].append(this.addedPostings[termID]);
+                    next++;
+                }
+                dictionary.add(term, 0, term.length);
+                postings[count++] = this.termPostings[ordinal++];
+            } else {
+                dictionary.add(pool, this.addedTerms.termStart(termID), this.addedTerms.termLength(termID));
+                postings[count++] = this.addedPostings[termID];
+                next++;
+            }
+        }
+        this.termDictionary = dictionary.build();
+        this.termPostings = Arrays.copyOf(postings, count);
+        this.addedTerms = new TermTable();
+        this.addedPostings = new PostingsList[0];
+    }
+
+    public int getTermCount() {
+        return this.termPostings.length + this.addedTerms.size();
+    }
+
+    // The term with the given ordinal and its postings; only valid right after freezeTerms.
+    String getTerm(int ordinal) {
+        return this.termDictionary.term(ordinal);
+    }
+
+    PostingsList getPostingsList(int ordinal) {
+        return this.termPostings[ordinal];
+    }
+
+    // The token offset table of docID as stored, or null if it has none.
+    byte[] getTokenOffsetBytes(int docID) {
+        return this.tokenOffsetData.get(docID);
+    }
+
+    /*
+     * Rough number of heap bytes held by the index: the allocated postings,
+     * the terms and the token offset tables, each with an estimate of its
+     * object overhead. Takes time in the number of terms.
+     */
+    long getAllocatedSize() {
+        long size = this.termDictionary.getSize() + this.addedTerms.getAllocatedSize()
+                + (this.termPostings.length + this.addedPostings.length) * 8L;
+        for (PostingsList postings : this.termPostings) {
+            size += postings.getAllocatedSize() + POSTINGS_OVERHEAD;
+        }
+        for (PostingsList postings : this.addedPostings) {
+            if (postings != null) {
+                size += postings.getAllocatedSize() + POSTINGS_OVERHEAD;
+            }
+        }
+        for (byte[] table : this.tokenOffsetData.values()) {
+            size += table.length + TOKEN_OFFSETS_OVERHEAD;
+        }
+        return size;
+    }
+
+    public int getDocumentCountByTerm(String term) {
+        PostingsList postings = getPostingsList(term);
+        return postings == null ? 0 : postings.getDocumentCount();
+    }
+
+    // Number of postings, one per token position, over all terms.
+    long getPositionCount() {
+        freezeTerms();
+        long positionCount = 0;
+        for (PostingsList postings : this.termPostings) {
+            positionCount += postings.getPositionCount();
         }
+        return positionCount;
     }
 
-    int getTermCount() {
-        return this.positionalIndexData.size();
+    // Number of (term, document) postings over all terms.
+    long getPostingsCount() {
+        freezeTerms();
+        long postingsCount = 0;
+        for (PostingsList postings : this.termPostings) {
+            postingsCount += postings.getDocumentCount();
+        }
+        return postingsCount;
     }
 
-    int getDocumentCountByTerm(String term) {
-        return this.positionalIndexData.get(term).size();
+    // Sorts the terms of a build of documentCount files started at startTime and records its metrics.
+    private void finishBuild(long startTime, int documentCount) {
+        IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+        freezeTerms();
+        IndexMetrics.end(indexing, getPostingsCount(), 0);
+        IndexMetrics.recordBuild(System.nanoTime() - startTime, documentCount);
     }
 
     int getPositionalCountByTermAndDocID(String term, int docID) {
-        return this.positionalIndexData.get(term).get(docID).size();
+        PostingsList postings = getPostingsList(term);
+        return postings == null ? 0 : postings.getPositionCount(docID);
+    }
+
+    public PostingsCursor postings(String term) {
+        PostingsList postings = getPostingsList(term);
+        return postings == null ? null : postings.cursor();
+    }
+
+    public List<String> expandPrefix(String prefix) {
+        ArrayList<String> terms = new ArrayList<String>();
+        long range = this.termDictionary.prefixRange(prefix);
+        for (int ordinal = (int) (range >>> 32); ordinal < (int) range; ordinal++) {
+            terms.add(this.termDictionary.term(ordinal));
+        }
+        for (int termID = 0; termID < this.addedTerms.size(); termID++) {
+            String term = this.addedTerms.term(termID);
+            if (term.startsWith(prefix)) {
+                terms.add(term);
+            }
+        }
+        Collections.sort(terms);
+        return terms;
+    }
+
+    // The postings of term, from the dictionary or from the terms added since it was frozen.
+    private PostingsList getPostingsList(String term) {
+        int ordinal = this.termDictionary.lookup(term);
+        if (ordinal >= 0) {
+            return this.termPostings[ordinal];
+        }
+        int termID = this.addedTerms.size() == 0 ? -1 : this.addedTerms.find(term);
+        return termID < 0 ? null : this.addedPostings[termID];
+    }
+
+    // Documents are the corpus files collected by listFilesInPath.
+    public int getDocumentCount() {
+        return inputFileNames.size();
+    }
+
+    public String getDocumentPath(int docID) {
+        return inputFileNames.get(docID - 1);
+    }
+
+    public TokenOffsets getTokenOffsets(int docID) {
+        byte[] offsets = this.tokenOffsetData.get(docID);
+        return offsets == null ? null : new TokenOffsets(ByteBuffer.wrap(offsets), 0);
+    }
+
+    public long getTokenCount() {
+        return this.tokenCount;
+    }
+
+    // Writes the index in the on-disk format read by DiskIndex.
+    void writePositionalIndex(Path directory) throws IOException {
+        writePositionalIndex(directory, inputFileNames);
+    }
+
+    // Same as above for an index whose DocID n is the file documentPaths.get(n - 1).
+    void writePositionalIndex(Path directory, List<String> documentPaths) throws IOException {
+        freezeTerms();
+        IndexFormat.write(this.termDictionary, this.termPostings, documentPaths, this.tokenOffsetData, directory);
     }
 
-    // Print the stats of the PositionalIndex object.
+    // Print the summary stats of the PositionalIndex object.
     void printStats() {
+        printStats(false);
+    }
+
+    /*
+     * Prints the vocabulary size, the number of postings and percentiles of
+     * the postings list lengths (documents per term). With full, also every
+     * term with the frequency of each of its documents, which is slow and
+     * long on a large vocabulary.
+     */
+    void printStats(boolean full) {
+        freezeTerms();
         System.out.println("Number of Terms: " + this.getTermCount());
-        Set<Map.Entry<String, TreeMap<Integer, TreeMap<Integer, Integer>>>> termEntry = this.positionalIndexData
-                .entrySet();
-        termEntry.forEach(term -> {
-            Set<Map.Entry<Integer, TreeMap<Integer, Integer>>> docEntry = term.getValue().entrySet();
-            System.out.println("\t" + term.getKey() + ": " + term.getValue().size());
-            docEntry.forEach(doc -> {
-                System.out.println("\t\t" + doc.getKey() + ": " + doc.getValue().size());
-            });
-        });
+        System.out.println("Number of Postings: " + getPostingsCount() + " (" + getPositionCount() + " positions)");
+        int[] lengths = new int[this.termPostings.length];
+        for (int ordinal = 0; ordinal < lengths.length; ordinal++) {
+            lengths[ordinal] = this.termPostings[ordinal].getDocumentCount();
+        }
+        Arrays.sort(lengths);
+        if (lengths.length > 0) {
+            StringBuilder percentiles = new StringBuilder("Postings Length (documents per term):");
+            double[] fractions = { 0.50, 0.90, 0.99, 0.999 };
+            String[] labels = { "p50", "p90", "p99", "p99.9" };
+            for (int i = 0; i < fractions.length; i++) {
+                int rank = (int) Math.ceil(fractions[i] * lengths.length) - 1;
+                percentiles.append(" ").append(labels[i]).append(" ").append(lengths[Math.max(0, rank)]).append(",");
+            }
+            percentiles.append(" max ").append(lengths[lengths.length - 1]);
+            System.out.println(percentiles);
+        }
+        if (!full) {
+            return;
+        }
+        for (int ordinal = 0; ordinal < this.termPostings.length; ordinal++) {
+            PostingsList postings = this.termPostings[ordinal];
+            System.out.println("\t" + this.termDictionary.term(ordinal) + ": " + postings.getDocumentCount());
+            PostingsCursor cursor = postings.cursor();
+            while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                System.out.println("\t\t" + cursor.docID() + ": " + cursor.freq());
+            }
+        }
     }
 
     // Searches for phrases between two queried words within k words and print
     // result into CSV file. Handles both directions.
     void proximitySearch(String x, String y, int k) {
-        // Case where term doesn't exist.
-        if (this.positionalIndexData.get(x) != null && this.positionalIndexData.get(y) != null) {
-            // Create a String ArrayList for storing the result and have it sorted.
-            ArrayList<String> xFirstResults = new ArrayList<String>();
-            ArrayList<String> yFirstResults = new ArrayList<String>();
-
-            // Get the Document List from the Terms
-            TreeMap<Integer, TreeMap<Integer, Integer>> xDocList = this.positionalIndexData.get(x);
-            TreeMap<Integer, TreeMap<Integer, Integer>> yDocList = this.positionalIndexData.get(y);
-
-            // For iterating at the DocList level.
-            Set<Map.Entry<Integer, TreeMap<Integer, Integer>>> xEntry = xDocList.entrySet();
-            Set<Map.Entry<Integer, TreeMap<Integer, Integer>>> yEntry = yDocList.entrySet();
-
-            // Handle x...y
-            xEntry.forEach(doc -> {
-                if (yDocList.get(doc.getKey()) != null) {
-                    // For iterating at Positional Listing level.
-                    Set<Map.Entry<Integer, Integer>> xPositionEntry = doc.getValue().entrySet();
-                    Set<Map.Entry<Integer, Integer>> yPositionEntry = yDocList.get(doc.getKey()).entrySet();
-                    xPositionEntry.forEach(xPosition -> {
-                        yPositionEntry.forEach(yPosition -> {
-                            if (xPosition.getValue() + (k) == yPosition.getValue()) {
-                                xFirstResults.add(
-                                        doc.getKey() + "," + xPosition.getValue() + "," + yPosition.getValue());
-                            }
-                        });
-                    });
-                }
-            });
+        proximitySearch(this, x, y, k);
+    }
 
-            // Handle y...x
-            yEntry.forEach(doc -> {
-                if (xDocList.get(doc.getKey()) != null) {
-                    // For iterating at Positional Listing level.
-                    Set<Map.Entry<Integer, Integer>> yPositionEntry = doc.getValue().entrySet();
-                    Set<Map.Entry<Integer, Integer>> xPositionEntry = xDocList.get(doc.getKey()).entrySet();
-                    yPositionEntry.forEach(yPosition -> {
-                        xPositionEntry.forEach(xPosition -> {
-                            if (yPosition.getValue() + (k) == xPosition.getValue()) {
-                                yFirstResults.add(
-                                        doc.getKey() + "," + yPosition.getValue() + "," + xPosition.getValue());
-                            }
-                        });
-                    });
-                }
-            });
+    // Same as above, over any index view such as a memory-mapped DiskIndex.
+    static void proximitySearch(IndexReader index, String x, String y, int k) {
+        try {
+            long matchCount = proximitySearch(index, outputPath, x, y, k);
+            if (matchCount == 0) {
+                System.out.println("No results found from your query.");
+            } else {
+                System.out.println(matchCount + " results written into CSV files.");
+            }
+        } catch (UncheckedIOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Program terminated\n");
+            System.exit(1);
+        }
+    }
 
-            // Skip if ArrayLists are empty
-            if (!xFirstResults.isEmpty() || !yFirstResults.isEmpty()) {
-                System.out.println("Writing results into CSV files...");
-
-                PrintWriter resultWriter = null;
-                PrintWriter detailedWriter = null;
-                try {
-                    resultWriter = new PrintWriter(outputPath + "\\" + x + "_" + y + "_" + k + "_" + outputFiles[0],
-                            "UTF-8");
-                    detailedWriter = new PrintWriter(outputPath + "\\" + x + "_" + y + "_" + k + "_" + outputFiles[1],
-                            "UTF-8");
-                } catch (IOException ex) {
-                    System.err.println(ex);
-                    System.err.println("Program terminated\n");
-                    System.exit(1);
-                }
+    /*
+     * Runs one query and writes its matches into the CSV files in
+     * outputDirectory. Returns the number of matches; the files are only
+     * written when there is at least one. Safe to call from several threads
+     * as long as they don't write the same output files.
+     */
+    static long proximitySearch(IndexReader index, String outputDirectory, String x, String y, int k) {
+        try (ProximityCsvWriter writer = new ProximityCsvWriter(index, outputDirectory, x, y, k)) {
+            return proximitySearch(index, writer, x, y, k);
+        }
+    }
 
-                // Print CSV Headers
-                resultWriter.println("DocID,First Position,Second Position");
-                detailedWriter.println("DocID,Filepath,First Position,Second Position,Exact Phrase");
-
-                // Handle x...y
-                for (String triple : xFirstResults) {
-                    resultWriter.println(triple);
-                    String[] splitTriple = triple.split(",");
-                    String phrase = "";
-                    int position = 0;
-
-                    // Get exact phrase
-                    try {
-                        Pattern wordPattern = Pattern.compile("[a-zA-Z]+");
-                        Matcher wordMatcher;
-                        String line, word = "";
-                        BufferedReader br = new BufferedReader(
-                                new FileReader(inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1)));
-
-                        while ((line = br.readLine()) != null && position < Integer.parseInt(splitTriple[2])) {
-                            // process the line by extracting words using the wordPattern
-                            wordMatcher = wordPattern.matcher(line);
-
-                            // Process one word at a time
-                            while (wordMatcher.find()) {
-                                position++;
-                                // Extract and convert the word to lowercase
-                                word = line.substring(wordMatcher.start(), wordMatcher.end());
-                                if (position >= Integer.parseInt(splitTriple[1])
-                                        && position <= Integer.parseInt(splitTriple[2])) {
-                                    phrase = phrase + " " + word;
-                                }
-
-                            } // while - wordMatcher
-                        } // while - Line
-                    } catch (IOException ex) {
-                        System.err.println("File " + inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1)
-                                + " not found. Program terminated.\n");
-                        System.exit(1);
-                    }
-
-                    detailedWriter.println(splitTriple[0] + "," +
-                            inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1) + "," +
-                            splitTriple[1] + "," +
-                            splitTriple[2] + "," +
-                            phrase.trim());
-                }
+    // Same as above, writing the matches through writer.
+    static long proximitySearch(IndexReader index, ProximityCsvWriter writer, String x, String y, int k) {
+        long startTime = System.nanoTime();
+        // Frequent word pairs at a small k are read from the pair index instead of being joined.
+        PostingsCursor xFirst = index.pairPostings(x, y, k);
+        PostingsCursor yFirst = xFirst == null ? null : index.pairPostings(y, x, k);
+        if (yFirst != null) {
+            IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+            PairIndex.join(xFirst, yFirst, k, writer);
+            return endJoin(join, writer, startTime);
+        }
+
+        // The documents with both words come from their bitmaps; without any, no postings are decoded.
+        IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+        DocBitmap candidates = candidateDocuments(index, new String[] { x, y });
+        PostingsCursor xCursor = candidates != null && candidates.isEmpty() ? null
+                : postingsMatching(index, x, candidates);
+        PostingsCursor yCursor = xCursor == null ? null : postingsMatching(index, y, candidates);
+        if (yCursor == null) {
+            return endJoin(join, writer, startTime);
+        }
+
+        // Handle x...y and y...x in one merge, streaming each document's matches to the CSV files.
+        PositionalJoin.join(xCursor, yCursor, candidates, k, writer);
+        return endJoin(join, writer, startTime);
+    }
+
+    /*
+     * Finds the exact phrase made of words, in order, and writes the matches
+     * into the CSV files in outputDirectory. Returns the number of matches.
+     */
+    static long phraseSearch(IndexReader index, String outputDirectory, String[] words) {
+        try (ProximityCsvWriter writer = new ProximityCsvWriter(index, outputDirectory, phraseQueryName(words))) {
+            return phraseSearch(index, writer, words);
+        }
+    }
 
-                // Handle y...x
-                for (String triple : yFirstResults) {
-                    resultWriter.println(triple);
-                    String[] splitTriple = triple.split(",");
-                    String phrase = "";
-                    int position = 0;
-
-                    // Get exact phrase
-                    try {
-                        Pattern wordPattern = Pattern.compile("[a-zA-Z]+");
-                        Matcher wordMatcher;
-                        String line, word = "";
-                        BufferedReader br = new BufferedReader(
-                                new FileReader(inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1)));
-
-                        while ((line = br.readLine()) != null && position < Integer.parseInt(splitTriple[2])) {
-                            // process the line by extracting words using the wordPattern
-                            wordMatcher = wordPattern.matcher(line);
-
-                            // Process one word at a time
-                            while (wordMatcher.find()) {
-                                position++;
-                                // Extract and convert the word to lowercase
-                                word = line.substring(wordMatcher.start(), wordMatcher.end());
-                                if (position >= Integer.parseInt(splitTriple[1])
-                                        && position <= Integer.parseInt(splitTriple[2])) {
-                                    phrase = phrase + " " + word;
-                                }
-
-                            } // while - wordMatcher
-                        } // while - Line
-                    } catch (IOException ex) {
-                        System.err.println("File " + inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1)
-                                + " not found. Program terminated.\n");
-                        System.exit(1);
-                    }
-
-                    detailedWriter.println(splitTriple[0] + "," +
-                            inputFileNames.get(Integer.parseInt(splitTriple[0]) - 1) + "," +
-                            splitTriple[1] + "," +
-                            splitTriple[2] + "," +
-                            phrase.trim());
+    // Same as above, writing the matches through writer.
+    static long phraseSearch(IndexReader index, ProximityCsvWriter writer, String[] words) {
+        long startTime = System.nanoTime();
+        IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+        DocBitmap candidates = candidateDocuments(index, words);
+        if (candidates != null && candidates.isEmpty()) {
+            return endJoin(join, writer, startTime);
+        }
+        PostingsCursor[] cursors = new PostingsCursor[words.length];
+        for (int i = 0; i < words.length; i++) {
+            // Repeated words get their own cursor.
+            cursors[i] = postingsMatching(index, words[i], candidates);
+            if (cursors[i] == null) {
+                return endJoin(join, writer, startTime);
+            }
+        }
+        PositionalIntersection.phrase(cursors, candidates, writer);
+        return endJoin(join, writer, startTime);
+    }
+
+    /*
+     * Finds every window of at most k + 1 consecutive words containing all of
+     * words in any order and writes them into the CSV files in
+     * outputDirectory. Returns the number of matches.
+     */
+    static long windowSearch(IndexReader index, String outputDirectory, String[] words, int k) {
+        try (ProximityCsvWriter writer = new ProximityCsvWriter(index, outputDirectory,
+                windowQueryName(words, k))) {
+            return windowSearch(index, writer, words, k);
+        }
+    }
+
+    // Same as above, writing the matches through writer.
+    static long windowSearch(IndexReader index, ProximityCsvWriter writer, String[] words, int k) {
+        long startTime = System.nanoTime();
+        IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+        DocBitmap candidates = candidateDocuments(index, words);
+        if (candidates != null && candidates.isEmpty()) {
+            return endJoin(join, writer, startTime);
+        }
+        PostingsCursor[] cursors = new PostingsCursor[words.length];
+        for (int i = 0; i < words.length; i++) {
+            // Repeated words get their own cursor and must match distinct tokens.
+            cursors[i] = postingsMatching(index, words[i], candidates);
+            if (cursors[i] == null) {
+                return endJoin(join, writer, startTime);
+            }
+        }
+        if (overlapping(words)) {
+            PositionalIntersection.distinctWindow(cursors, k, candidates, writer);
+        } else {
+            PositionalIntersection.window(cursors, k, candidates, writer);
+        }
+        return endJoin(join, writer, startTime);
+    }
+
+    // Whether two of words can match the same term, e.g. learn* and learning or a repeated word.
+    private static boolean overlapping(String[] words) {
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < words.length; j++) {
+                if (i != j && (words[i].equals(words[j]) || words[j].endsWith("*")
+                        && words[i].startsWith(words[j].substring(0, words[j].length() - 1)))) {
+                    return true;
                 }
-                resultWriter.close();
-                detailedWriter.close();
+            }
+        }
+        return false;
+    }
 
+    /*
+     * Finds the documents matching expression: words joined by and, or and
+     * not, e.g. learning and analytics not teaching. It is applied from left
+     * to right to the document bitmaps: and keeps the documents that also
+     * contain the next word, or adds those that contain it, not removes
+     * them. Writes their DocIDs and paths into the CSV file
+     * <outputDirectory>\<name>_document_query_result.csv and returns how many
+     * there are; the file is only written when there is at least one.
+     */
+    static int documentSearch(IndexReader index, String outputDirectory, String[] expression) {
+        long startTime = System.nanoTime();
+        IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+        DocBitmap documents = documentsMatching(index, expression[0]);
+        documents = documents == null ? DocBitmap.empty() : documents;
+        for (int i = 1; i + 1 < expression.length; i += 2) {
+            DocBitmap next = documentsMatching(index, expression[i + 1]);
+            next = next == null ? DocBitmap.empty() : next;
+            if (expression[i].equals("and")) {
+                documents = documents.and(next);
+            } else if (expression[i].equals("or")) {
+                documents = documents.or(next);
             } else {
-                System.out.println("No results found from your query.");
+                documents = documents.andNot(next);
             }
-        } else {
-            System.out.println("No results found from your query.");
         }
+        int documentCount = documents.getCardinality();
+        IndexMetrics.end(join, documentCount, 0);
+
+        if (documentCount > 0) {
+            IndexMetrics.PhaseEvent csv = IndexMetrics.begin(IndexMetrics.Phase.CSV);
+            String path = outputDirectory + "\\" + joinFileNameParts(expression) + "_document_query_result.csv";
+            try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
+                writer.println("DocID,Filepath");
+                DocBitmap.Iterator iterator = documents.iterator();
+                for (int docID = iterator.next(); docID != PostingsCursor.NO_MORE_DOCS; docID = iterator.next()) {
+                    writer.println(docID + "," + index.getDocumentPath(docID));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            IndexMetrics.end(csv, documentCount, 0);
+        }
+        IndexMetrics.recordQuery(System.nanoTime() - startTime);
+        return documentCount;
+    }
+
+    /*
+     * Ranks the documents where x and y occur at most k words apart, see
+     * RankedSearch, and writes every such pair of the n best ones into the
+     * CSV files in outputDirectory, best document first.
+     */
+    static RankedSearch.Ranking rankedSearch(IndexReader index, String outputDirectory, String x, String y, int k,
+            int n) {
+        try (ProximityCsvWriter writer = new ProximityCsvWriter(index, outputDirectory,
+                rankedQueryName(x, y, k, n))) {
+            return rankedSearch(index, writer, x, y, k, n);
+        }
+    }
+
+    // Same as above, writing the pairs through writer.
+    static RankedSearch.Ranking rankedSearch(IndexReader index, ProximityCsvWriter writer, String x, String y, int k,
+            int n) {
+        long startTime = System.nanoTime();
+        PostingsCursor xCursor = postingsMatching(index, x);
+        PostingsCursor yCursor = postingsMatching(index, y);
+        if (xCursor == null || yCursor == null) {
+            IndexMetrics.recordQuery(System.nanoTime() - startTime);
+            return new RankedSearch.Ranking(new RankedSearch.ScoredDocument[0], 0, 0);
+        }
+        IndexMetrics.PhaseEvent join = IndexMetrics.begin(IndexMetrics.Phase.JOIN);
+        RankedSearch.Ranking ranking = RankedSearch.topDocuments(index, xCursor, yCursor, k, n);
+
+        // The cursors only go forward, so collect the positions of the top documents in DocID order.
+        int[] docIDs = new int[ranking.documents.length];
+        for (int i = 0; i < docIDs.length; i++) {
+            docIDs[i] = ranking.documents[i].docID;
+        }
+        Arrays.sort(docIDs);
+        int[][] xPositions = new int[docIDs.length][];
+        int[][] yPositions = new int[docIDs.length][];
+        xCursor = postingsMatching(index, x);
+        yCursor = postingsMatching(index, y);
+        for (int i = 0; i < docIDs.length; i++) {
+            xCursor.advance(docIDs[i]);
+            yCursor.advance(docIDs[i]);
+            xPositions[i] = Arrays.copyOf(xCursor.positions(), xCursor.freq());
+            yPositions[i] = Arrays.copyOf(yCursor.positions(), yCursor.freq());
+        }
+        double[] weight = new double[1];
+        for (RankedSearch.ScoredDocument document : ranking.documents) {
+            int i = Arrays.binarySearch(docIDs, document.docID);
+            RankedSearch.pairs(xPositions[i], xPositions[i].length, yPositions[i], yPositions[i].length, k, weight,
+                    writer, document.docID);
+            writer.endDocument(document.docID);
+        }
+        endJoin(join, writer, startTime);
+        return ranking;
+    }
+
+    /*
+     * Records the join phase of a query started at startTime, without the
+     * time writer spent on its matches, and the query latency. Returns the
+     * number of matches.
+     */
+    private static long endJoin(IndexMetrics.PhaseEvent join, ProximityCsvWriter writer, long startTime) {
+        IndexMetrics.end(join, writer.getMatchCount(), 0, writer.getWriteNanos());
+        IndexMetrics.recordQuery(System.nanoTime() - startTime);
+        return writer.getMatchCount();
+    }
+
+    /*
+     * The postings of word, or null if nothing matches. A word ending in *
+     * is a prefix: its postings are the union of those of every term
+     * starting with it, so learn* finds learn, learned, learning...
+     */
+    static PostingsCursor postingsMatching(IndexReader index, String word) {
+        return postingsMatching(index, word, null);
+    }
+
+    // Same as above; a prefix's postings are only merged for the documents in candidates, if not null.
+    static PostingsCursor postingsMatching(IndexReader index, String word, DocBitmap candidates) {
+        if (!word.endsWith("*")) {
+            return index.postings(word);
+        }
+        List<String> terms = index.expandPrefix(word.substring(0, word.length() - 1));
+        if (terms.size() <= 1) {
+            return terms.isEmpty() ? null : index.postings(terms.get(0));
+        }
+        // A term whose documents are all deleted is still listed, but has no postings.
+        ArrayList<PostingsCursor> cursors = new ArrayList<PostingsCursor>(terms.size());
+        for (String term : terms) {
+            PostingsCursor cursor = index.postings(term);
+            if (cursor != null) {
+                cursors.add(cursor);
+            }
+        }
+        return cursors.isEmpty() ? null : PostingsList.union(cursors, candidates).cursor();
+    }
+
+    /*
+     * The documents containing word, or null if nothing matches. The
+     * documents of a prefix are the OR of those of every term starting with it.
+     */
+    static DocBitmap documentsMatching(IndexReader index, String word) {
+        if (!word.endsWith("*")) {
+            return index.documents(word);
+        }
+        List<String> terms = index.expandPrefix(word.substring(0, word.length() - 1));
+        if (terms.size() <= 1) {
+            return terms.isEmpty() ? null : index.documents(terms.get(0));
+        }
+        ArrayList<DocBitmap> documents = new ArrayList<DocBitmap>(terms.size());
+        for (String term : terms) {
+            DocBitmap termDocuments = index.documents(term);
+            if (termDocuments != null) {
+                documents.add(termDocuments);
+            }
+        }
+        return documents.isEmpty() ? null : DocBitmap.or(documents);
+    }
+
+    /*
+     * Candidate documents for a query on words: the AND of the document
+     * bitmaps of the words, from the rarest one up, empty if a word matches
+     * nothing. A prefix of more than MAX_PREFIX_BITMAP_TERMS terms is left
+     * out, as ORing all their bitmaps costs more than it saves, so the
+     * candidates may include documents without it; null if every word is
+     * such a prefix.
+     */
+    static DocBitmap candidateDocuments(IndexReader index, String[] words) {
+        ArrayList<DocBitmap> documents = new ArrayList<DocBitmap>(words.length);
+        for (String word : words) {
+            if (word.endsWith("*") && index.expandPrefix(word.substring(0, word.length() - 1)).size()
+                    > MAX_PREFIX_BITMAP_TERMS) {
+                continue;
+            }
+            DocBitmap wordDocuments = documentsMatching(index, word);
+            if (wordDocuments == null) {
+                return DocBitmap.empty();
+            }
+            documents.add(wordDocuments);
+        }
+        if (documents.isEmpty()) {
+            return null;
+        }
+        documents.sort(Comparator.comparingInt(DocBitmap::getCardinality));
+        DocBitmap candidates = documents.get(0);
+        for (int i = 1; i < documents.size() && !candidates.isEmpty(); i++) {
+            candidates = candidates.and(documents.get(i));
+        }
+        return candidates;
+    }
+
+    // Whether word is a query word: letters, optionally followed by * to match a prefix.
+    static boolean isQueryWord(String word) {
+        return word != null && word.matches("^[a-zA-Z]+\\*?$");
+    }
+
+    /*
+     * A query word as part of an output file name; * is not allowed in file
+     * names on every system, so learn* becomes learn-prefix.
+     */
+    static String fileNamePart(String word) {
+        return word.toLowerCase().replace("*", "-prefix");
+    }
+
+    // Output file name prefix of a proximity query, e.g. learning_analytics_1.
+    static String proximityQueryName(String x, String y, int k) {
+        return fileNamePart(x) + "_" + fileNamePart(y) + "_" + k;
+    }
+
+    // Output file name prefix of a ranked query, e.g. learning_analytics_1_top10.
+    static String rankedQueryName(String x, String y, int k, int n) {
+        return proximityQueryName(x, y, k) + "_top" + n;
+    }
+
+    // Output file name prefix of a phrase query, e.g. to_be_or_not_to_be_phrase.
+    static String phraseQueryName(String[] words) {
+        return joinFileNameParts(words) + "_phrase";
+    }
+
+    // Output file name prefix of a window query, e.g. learning_analytics_within_3.
+    static String windowQueryName(String[] words, int k) {
+        return joinFileNameParts(words) + "_within_" + k;
+    }
+
+    private static String joinFileNameParts(String[] words) {
+        String[] parts = new String[words.length];
+        for (int i = 0; i < words.length; i++) {
+            parts[i] = fileNamePart(words[i]);
+        }
+        return String.join("_", parts);
     }
 
     /*
@@ -278,6 +781,9 @@ public class PositionalIndex {
     // An array to hold Gutenberg corpus file names
     static ArrayList<String> inputFileNames = new ArrayList<String>();
 
+    // Whether indexFile prints every file it processes; benchmarks turn it off.
+    static boolean printProgress = true;
+
     // To keep count of the amount of files in the corpus provided
     static int fileCount = 0;
 
@@ -301,60 +807,184 @@ public class PositionalIndex {
      * (inputFileNames)
      */
     public static void listFilesInPath(final File path) {
+        int before = inputFileNames.size();
+        collectFilesInPath(path, inputFileNames);
+        fileCount += inputFileNames.size() - before;
+    }
+
+    // Adds the paths of the .txt files in the directory subtree to files.
+    static void collectFilesInPath(final File path, List<String> files) {
+        IndexMetrics.PhaseEvent listing = IndexMetrics.begin(IndexMetrics.Phase.LISTING);
+        int before = files.size();
+        addFilesInPath(path, files);
+        IndexMetrics.end(listing, files.size() - before, 0);
+    }
+
+    private static void addFilesInPath(final File path, List<String> files) {
         for (final File fileEntry : path.listFiles()) {
             if (fileEntry.isDirectory()) {
-                listFilesInPath(fileEntry);
+                addFilesInPath(fileEntry, files);
             } else if (fileEntry.getName().endsWith((".txt"))) {
-                fileCount++;
-                inputFileNames.add(fileEntry.getPath());
+                files.add(fileEntry.getPath());
             }
         }
     }
 
+    // Whether b is one of the ASCII letters words are made of.
+    static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
     /*
-     *
-     * MAIN METHOD
-     *
+     * Tokenizes the file at path and adds its terms to positionalIndex under
+     * docID. Callers derive docID from the file's index in their list, so doc
+     * IDs stay stable no matter which thread processes the file. The file is
+     * read into the buffer of tokenizer, which is reused for the next file.
      */
-    public static void main(String[] args) {
-        long startTime = System.nanoTime();
-        int error = 0;
-
-        /*
-         * Did the user provide correct number of command line arguments?
-         * If not, print message and exit
-         */
-        if (args.length != 5) {
-            System.err.println("\nNumber of command line arguments must be 5");
-            System.err.println("You have given " + args.length + " command line arguments");
-            System.err.println("Incorrect usage. Program terminated");
-            System.err.println(
-                    "Correct usage: java PositionalIndex <path-to-input-files> <path-to-output-result-files> <first-word> <second-word> <int-distance-between-words>");
-            error = 1;
-        }
-        if (!(args[2] != null && args[2].matches("^[a-zA-Z]*$"))) {
-            System.err.println("Error: <first-word> argument must only have alphabet letters in the input.");
-            error = 1;
-        }
-        if (!(args[3] != null && args[3].matches("^[a-zA-Z]*$"))) {
-            System.err.println("Error: <second-word> argument must only have alphabet letters in the input.");
-            error = 1;
-        }
-        if (Integer.parseInt(args[4]) < 1) {
-            System.err.println("Error: <int-distance-between-words> argument must be greater than 0.");
-            error = 1;
+    static void indexFile(PositionalIndex positionalIndex, ByteTokenizer tokenizer, String path, int docID) {
+        if (printProgress) {
+            System.out.println("Processing: " + path);
         }
-        if (error == 1) {
-            System.exit(1);
+
+        // Byte offset of every word, indexed by its document position.
+        TokenOffsets.Builder offsets = new TokenOffsets.Builder();
+
+        // The postings are added as the words are found, so this phase covers both.
+        IndexMetrics.PhaseEvent tokenizing = IndexMetrics.begin(IndexMetrics.Phase.TOKENIZING);
+        int byteCount;
+        int tokenCount;
+        try {
+            byteCount = tokenizer.read(Paths.get(path));
+            tokenCount = tokenizer.tokenize(positionalIndex.addedTerms, (termID, position, offset) -> {
+                positionalIndex.updatePositionalIndex(termID, docID, position);
+                offsets.add(offset);
+            });
+        } // try
+        catch (IOException ex) {
+            throw new UncheckedIOException("File " + path + " not found", ex);
         }
+        positionalIndex.updateTokenOffsets(docID, offsets);
+        IndexMetrics.end(tokenizing, tokenCount, byteCount);
+    }
 
-        /*
-         * If the files exists, we need to empty them.
-         * We will be appending new data into the documents
-         */
+    /*
+     * Builds the Positional Index over every file in inputFileNames.
+     * Stops the program if a file cannot be read.
+     */
+    static PositionalIndex buildPositionalIndex(int threadCount) {
+        try {
+            return buildPositionalIndex(inputFileNames, threadCount);
+        } catch (UncheckedIOException | IllegalStateException ex) {
+            System.err.println(ex.getMessage() + ". Program terminated.\n");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /*
+     * Builds a Positional Index over the files in paths; the file at index i
+     * gets DocID i + 1.
+     *
+     * With more than one thread, the files are cut into consecutive chunks
+     * and each chunk is tokenized into its own partial index. Because doc IDs
+     * only depend on the file index, the partial indexes cover increasing,
+     * non-overlapping docID ranges and merging them in chunk order gives the
+     * same index as the sequential build.
+     */
+    static PositionalIndex buildPositionalIndex(List<String> paths, int threadCount) {
+        return buildPositionalIndex(paths, 0, paths.size(), threadCount);
+    }
+
+    /*
+     * Same as above over the files paths[from, to) only, which keep their
+     * DocIDs from + 1 to to, e.g. for one shard of a ShardedIndex.
+     */
+    static PositionalIndex buildPositionalIndex(List<String> paths, int from, int to, int threadCount) {
+        long startTime = System.nanoTime();
+        PositionalIndex positionalIndex = new PositionalIndex();
+        int count = to - from;
+        if (threadCount <= 1 || count <= 1) {
+            // Process one file at a time
+            ByteTokenizer tokenizer = new ByteTokenizer();
+            for (int index = from; index < to; index++) {
+                indexFile(positionalIndex, tokenizer, paths.get(index), index + 1);
+            }
+            positionalIndex.finishBuild(startTime, count);
+            return positionalIndex;
+        }
+
+        // Several chunks per thread so a few large books don't leave threads idle.
+        int chunkCount = Math.min(count, threadCount * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        ArrayList<Future<PositionalIndex>> partialIndexes = new ArrayList<Future<PositionalIndex>>();
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final int first = from + (int) ((long) count * chunk / chunkCount);
+            final int last = from + (int) ((long) count * (chunk + 1) / chunkCount);
+            partialIndexes.add(executor.submit(() -> {
+                PositionalIndex partialIndex = new PositionalIndex();
+                ByteTokenizer tokenizer = new ByteTokenizer();
+                for (int index = first; index < last; index++) {
+                    indexFile(partialIndex, tokenizer, paths.get(index), index + 1);
+                }
+                return partialIndex;
+            }));
+        }
+        executor.shutdown();
+
+        // Merge in chunk order while the remaining chunks are still being tokenized.
+        try {
+            for (Future<PositionalIndex> partialIndex : partialIndexes) {
+                PositionalIndex partial = partialIndex.get();
+                IndexMetrics.PhaseEvent indexing = IndexMetrics.begin(IndexMetrics.Phase.INDEXING);
+                positionalIndex.mergePositionalIndex(partial);
+                IndexMetrics.end(indexing, 0, 0);
+            }
+        } catch (ExecutionException ex) {
+            executor.shutdownNow();
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+        positionalIndex.finishBuild(startTime, count);
+        return positionalIndex;
+    }
+
+    /*
+     * Checks the <first-word> <second-word> <int-distance-between-words>
+     * arguments of a query. Prints every problem found and returns 1 if
+     * there was one, 0 otherwise.
+     */
+    static int validateQueryArguments(String x, String y, String k) {
+        int error = 0;
+        if (!(x != null && (x.matches("^[a-zA-Z]*$") || isQueryWord(x)))) {
+            System.err.println(
+                    "Error: <first-word> argument must only have alphabet letters in the input, optionally followed by * for a prefix.");
+            error = 1;
+        }
+        if (!(y != null && (y.matches("^[a-zA-Z]*$") || isQueryWord(y)))) {
+            System.err.println(
+                    "Error: <second-word> argument must only have alphabet letters in the input, optionally followed by * for a prefix.");
+            error = 1;
+        }
+        if (Integer.parseInt(k) < 1) {
+            System.err.println("Error: <int-distance-between-words> argument must be greater than 0.");
+            error = 1;
+        }
+        return error;
+    }
+
+    /*
+     * If the files exists, we need to empty them.
+     * We will be appending new data into the documents
+     */
+    static void prepareOutputFiles(String outputDirectory, String x, String y, String k) {
         for (String file : outputFiles) {
-            String path = args[1] + "\\" + args[2].toLowerCase() + "_" + args[3].toLowerCase() + "_" + args[4] + "_"
-                    + file;
+            String path = outputDirectory + "\\" + fileNamePart(x) + "_" + fileNamePart(y) + "_" + k + "_" + file;
             try {
                 new PrintWriter(path, "UTF-8").close();
             } catch (FileNotFoundException ex) {
@@ -367,6 +997,840 @@ public class PositionalIndex {
                 System.exit(1);
             }
         }
+    }
+
+    /*
+     * java PositionalIndex build <path-to-input-files> <path-to-index> [thread-count]
+     * [--memory-mb <megabytes>] [--pairs <min-occurrences>] [--pair-max-k <k>]
+     *
+     * Builds the Positional Index once and writes it to disk, so later
+     * queries can skip tokenizing the corpus. With --memory-mb the postings
+     * are built in blocks of about that many megabytes, spilled to disk as
+     * sorted runs and merged (see ExternalIndexBuilder), so the corpus
+     * doesn't have to fit in the heap. With --pairs a pair index of the
+     * terms occurring at least that many times is written as well, for
+     * distances up to --pair-max-k (see PairIndex).
+     */
+    static void buildMain(String[] args) {
+        long startTime = System.nanoTime();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        long memoryMegabytes = 0;
+        long pairMinCount = 0;
+        int pairMaxK = PairIndex.DEFAULT_MAX_K;
+        int first = args.length > 3 && !args[3].startsWith("--") ? 4 : 3;
+        int error = args.length < 3 || (args.length - first) % 2 != 0 ? 1 : 0;
+        for (int i = first; i + 1 < args.length && error == 0; i += 2) {
+            if (args[i].equals("--memory-mb")) {
+                memoryMegabytes = Long.parseLong(args[i + 1]);
+                error = memoryMegabytes < 1 ? 1 : 0;
+            } else if (args[i].equals("--pairs")) {
+                pairMinCount = Long.parseLong(args[i + 1]);
+                error = pairMinCount < 1 ? 1 : 0;
+            } else if (args[i].equals("--pair-max-k")) {
+                pairMaxK = Integer.parseInt(args[i + 1]);
+                error = pairMaxK < 1 ? 1 : 0;
+            } else {
+                error = 1;
+            }
+        }
+        if (error == 1) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex build <path-to-input-files> <path-to-index> [thread-count] [--memory-mb <megabytes>] [--pairs <min-occurrences>] [--pair-max-k <k>]");
+            System.exit(1);
+        }
+        if (first == 4) {
+            threadCount = Integer.parseInt(args[3]);
+        }
+        if (threadCount < 1) {
+            System.err.println("Error: [thread-count] argument must be greater than 0.");
+            System.exit(1);
+        }
+
+        System.out.println("\nInput files directory path name is: " + args[1]);
+        System.out.println("Index directory path name is: " + args[2]);
+        listFilesInPath(new File(args[1]));
+        System.out.println("Number of Gutenberg corpus files: " + fileCount);
+
+        if (memoryMegabytes > 0) {
+            buildExternal(args[2], memoryMegabytes << 20, threadCount);
+        } else {
+            System.out.println("\nBuilding Positional Index with " + threadCount + " thread(s)...");
+            PositionalIndex positionalIndex = buildPositionalIndex(threadCount);
+
+            System.out.println("\nWriting Positional Index...");
+            try (SegmentedIndex index = SegmentedIndex.create(Paths.get(args[2]))) {
+                index.addSegment(positionalIndex, inputFileNames);
+            } catch (IOException ex) {
+                System.err.println(ex);
+                System.err.println("\nProgram terminated\n");
+                System.exit(1);
+            }
+        }
+
+        if (pairMinCount > 0) {
+            buildPairIndex(args[2], pairMinCount, pairMaxK);
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("\nPositional Index written in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * build --pairs: adds a pair index of the terms occurring at least
+     * minCount times, for distances 1 to maxK, to the index in indexPath and
+     * reports what it cost in time and disk space.
+     */
+    static void buildPairIndex(String indexPath, long minCount, int maxK) {
+        System.out.println("\nBuilding pair index of the terms occurring at least " + minCount
+                + " times, for k up to " + maxK + "...");
+        long startTime = System.nanoTime();
+        try (SegmentedIndex index = SegmentedIndex.open(Paths.get(indexPath))) {
+            long occurrenceCount = index.buildPairIndex(minCount, maxK);
+            long buildNanos = System.nanoTime() - startTime;
+            int termCount = 0;
+            long pairCount = 0;
+            long pairBytes = 0;
+            long indexBytes = 0;
+            for (SegmentedIndex.Segment segment : index.getSegments()) {
+                PairIndex pairs = segment.index.getPairIndex();
+                termCount = pairs.getTerms().size();
+                pairCount += pairs.getPairCount();
+                pairBytes += pairs.getSizeInBytes();
+                indexBytes += segment.index.getSizeInBytes();
+            }
+            System.out.println(termCount + " frequent terms, " + pairCount + " word pairs occurring "
+                    + occurrenceCount + " times.");
+            System.out.printf("Pair index built in %.3f seconds, %.1f MB on disk (%.1f%% of the %.1f MB index).%n",
+                    buildNanos / 1e9, pairBytes / 1048576.0, 100.0 * pairBytes / indexBytes, indexBytes / 1048576.0);
+        } catch (IOException | UncheckedIOException | IllegalStateException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * build --memory-mb: writes the index of inputFileNames into indexPath
+     * as one segment built by ExternalIndexBuilder with blocks of about
+     * memoryBudget bytes.
+     */
+    static void buildExternal(String indexPath, long memoryBudget, int threadCount) {
+        System.out.println("\nBuilding Positional Index in blocks of " + (memoryBudget >> 20) + " MB with "
+                + threadCount + " thread(s)...");
+        int[] runCount = new int[1];
+        try (SegmentedIndex index = SegmentedIndex.create(Paths.get(indexPath))) {
+            index.addSegment(inputFileNames, segmentDirectory -> runCount[0] = ExternalIndexBuilder
+                    .build(inputFileNames, segmentDirectory, memoryBudget, threadCount));
+        } catch (IOException | UncheckedIOException | IllegalStateException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+        System.out.println(runCount[0] == 0 ? "The postings fit in one block, no runs were spilled."
+                : runCount[0] + " sorted runs spilled and merged.");
+    }
+
+    /*
+     * java PositionalIndex query <path-to-index> <path-to-output-result-files>
+     * <first-word> <second-word> <int-distance-between-words>
+     *
+     * Answers one proximity query against an index written by build. The
+     * index files are memory-mapped, nothing is rebuilt.
+     */
+    static void queryMain(String[] args) {
+        long startTime = System.nanoTime();
+        if (args.length != 6) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex query <path-to-index> <path-to-output-result-files> <first-word> <second-word> <int-distance-between-words>");
+            System.exit(1);
+        }
+        if (validateQueryArguments(args[3], args[4], args[5]) == 1) {
+            System.exit(1);
+        }
+        prepareOutputFiles(args[2], args[3], args[4], args[5]);
+        outputPath = args[2];
+
+        IndexReader diskIndex = null;
+        try {
+            diskIndex = openIndexDirectory(Paths.get(args[1]));
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+        long openTime = System.nanoTime();
+        System.out.println("\nPositional Index opened in " + (double) (openTime - startTime) / 1_000_000 + " ms ("
+                + diskIndex.getTermCount() + " terms, " + diskIndex.getDocumentCount() + " documents).");
+
+        System.out.println("\nNow performing proximity search...");
+        proximitySearch(diskIndex, args[3].toLowerCase(), args[4].toLowerCase(), Integer.parseInt(args[5]));
+
+        long endTime = System.nanoTime();
+        System.out.println("\nProcess Completed in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex add <path-to-index> <path-to-new-files> [thread-count]
+     *
+     * Indexes new files, a single file or a directory of them, into a new
+     * segment of an index written by build. Files that are already indexed
+     * are replaced by their new version.
+     */
+    static void addMain(String[] args) {
+        long startTime = System.nanoTime();
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex add <path-to-index> <path-to-new-files> [thread-count]");
+            System.exit(1);
+        }
+        int threadCount = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (threadCount < 1) {
+            System.err.println("Error: [thread-count] argument must be greater than 0.");
+            System.exit(1);
+        }
+
+        ArrayList<String> paths = new ArrayList<String>();
+        File input = new File(args[2]);
+        if (input.isDirectory()) {
+            collectFilesInPath(input, paths);
+        } else {
+            paths.add(input.getPath());
+        }
+
+        try (SegmentedIndex index = SegmentedIndex.open(Paths.get(args[1]))) {
+            System.out.println("\nAdding " + paths.size() + " file(s) with " + threadCount + " thread(s)...");
+            index.addDocuments(paths, threadCount);
+            long addTime = System.nanoTime();
+            System.out.println("Files searchable after " + (double) (addTime - startTime) / 1_000_000_000
+                    + " seconds.");
+
+            index.awaitMerges();
+            System.out.println("\nPositional Index has " + index.getSegments().size() + " segment(s) and "
+                    + index.getDocumentCount() + " documents.");
+        } catch (IOException | UncheckedIOException | IllegalStateException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("\nProcess Completed in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex delete <path-to-index> <file-path>...
+     *
+     * Removes the documents read from the given files from an index written
+     * by build. The other documents keep their DocIDs.
+     */
+    static void deleteMain(String[] args) {
+        if (args.length < 3) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println("Correct usage: java PositionalIndex delete <path-to-index> <file-path>...");
+            System.exit(1);
+        }
+        try (SegmentedIndex index = SegmentedIndex.open(Paths.get(args[1]))) {
+            int deletedCount = index.deleteDocuments(Arrays.asList(args).subList(2, args.length));
+            System.out.println("\n" + deletedCount + " document(s) deleted.");
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * java PositionalIndex serve <path-to-input-files-or-index> <path-to-output-result-files>
+     * [--port <port>] [--batch <query-file>] [--threads <thread-count>]
+     * [--cache-mb <megabytes>] [--cache-files <yes|no>] [--shards <shard-count>]
+     * [--live <batch-size>]
+     *
+     * Builds the Positional Index from a corpus, or opens one written by
+     * build, and keeps answering queries until stdin is closed. With --batch
+     * the queries come from a file instead of stdin; with --port they are
+     * also served over HTTP on localhost until the process is stopped.
+     * Results are cached in up to --cache-mb megabytes (64 by default, 0 to
+     * turn the cache off), with the rendered CSV files if --cache-files yes.
+     * With --shards the corpus is split into that many DocID ranges, each
+     * indexed and searched by its own worker process (see ShardedIndex).
+     * With --live queries are answered while the corpus is being indexed,
+     * batch-size files at a time, each query seeing the documents indexed
+     * when it started (see LiveIndex).
+     */
+    static void serveMain(String[] args) {
+        long startTime = System.nanoTime();
+        int port = -1;
+        String batchFile = null;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        long cacheMegabytes = 64;
+        boolean cacheFiles = false;
+        int shardCount = 0;
+        int liveBatchSize = 0;
+        int error = args.length < 3 || args.length % 2 == 0 ? 1 : 0;
+        for (int i = 3; i + 1 < args.length && error == 0; i += 2) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--batch")) {
+                batchFile = args[i + 1];
+            } else if (args[i].equals("--threads")) {
+                threadCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--cache-mb")) {
+                cacheMegabytes = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--cache-files")) {
+                cacheFiles = args[i + 1].equals("yes");
+                error = cacheFiles || args[i + 1].equals("no") ? 0 : 1;
+            } else if (args[i].equals("--shards")) {
+                shardCount = Integer.parseInt(args[i + 1]);
+                error = shardCount < 1 ? 1 : 0;
+            } else if (args[i].equals("--live")) {
+                liveBatchSize = Integer.parseInt(args[i + 1]);
+                error = liveBatchSize < 1 ? 1 : 0;
+            } else {
+                error = 1;
+            }
+        }
+        if (error == 1 || threadCount < 1 || cacheMegabytes < 0 || (shardCount > 0 && liveBatchSize > 0)) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex serve <path-to-input-files-or-index> <path-to-output-result-files> [--port <port>] [--batch <query-file>] [--threads <thread-count>] [--cache-mb <megabytes>] [--cache-files <yes|no>] [--shards <shard-count>] [--live <batch-size>]");
+            System.exit(1);
+        }
+        outputPath = args[2];
+        if (shardCount > 0) {
+            serveShards(args[1], shardCount, threadCount, port, batchFile, cacheMegabytes, startTime);
+            return;
+        }
+
+        IndexReader index = null;
+        if (liveBatchSize > 0) {
+            index = startLiveIndex(args[1], liveBatchSize, threadCount, startTime);
+        } else {
+            try {
+                index = openIndex(args[1], threadCount);
+            } catch (IOException ex) {
+                System.err.println(ex);
+                System.err.println("\nProgram terminated\n");
+                System.exit(1);
+            }
+            System.out.println("\nPositional Index ready in "
+                    + (double) (System.nanoTime() - startTime) / 1_000_000_000 + " seconds ("
+                    + index.getTermCount() + " terms, " + index.getDocumentCount() + " documents).");
+        }
+
+        try (QueryServer server = new QueryServer(index, outputPath, threadCount, cacheMegabytes << 20, cacheFiles)) {
+            if (port >= 0) {
+                server.startHttp(port);
+                System.out.println("Serving http://localhost:" + server.getHttpPort()
+                        + "/query?x=<first-word>&y=<second-word>&k=<int-distance-between-words>");
+                System.out.println("Metrics at http://localhost:" + server.getHttpPort() + "/metrics");
+            }
+            if (batchFile != null) {
+                try (BufferedReader batch = Files.newBufferedReader(Paths.get(batchFile))) {
+                    server.runBatch(batch, System.out);
+                }
+            } else {
+                System.out.println("Enter queries as: <first-word> <second-word> <int-distance-between-words>");
+                server.runBatch(new BufferedReader(new InputStreamReader(System.in)), System.out);
+            }
+            if (port >= 0) {
+                // Keep serving HTTP queries until the process is stopped.
+                Thread.currentThread().join();
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        printMetrics();
+
+        // Let a running segment merge finish before exiting.
+        if (index instanceof SegmentedIndex) {
+            try {
+                ((SegmentedIndex) index).close();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+        }
+    }
+
+    /*
+     * serve --live: starts indexing the corpus in inputPath on a background
+     * thread, batchSize files per published snapshot, and returns the live
+     * index right away so queries can run meanwhile.
+     */
+    static LiveIndex startLiveIndex(String inputPath, int batchSize, int threadCount, long startTime) {
+        File input = new File(inputPath);
+        if (!input.isDirectory()) {
+            System.err.println("Error: --live needs a directory of input files, not an index.");
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+        System.out.println("\nInput files directory path name is: " + inputPath);
+        listFilesInPath(input);
+        System.out.println("Number of Gutenberg corpus files: " + fileCount);
+        System.out.println("\nIndexing " + batchSize + " file(s) at a time with " + threadCount
+                + " thread(s) while serving queries...");
+        // Progress lines would be interleaved with the query results.
+        printProgress = false;
+
+        LiveIndex index = new LiveIndex();
+        ArrayList<String> paths = new ArrayList<String>(inputFileNames);
+        Thread indexer = new Thread(() -> {
+            try {
+                for (int first = 0; first < paths.size(); first += batchSize) {
+                    index.addDocuments(paths.subList(first, Math.min(paths.size(), first + batchSize)), threadCount);
+                }
+                LiveIndex.Snapshot snapshot = index.snapshot();
+                System.out.println("\nPositional Index complete in "
+                        + (double) (System.nanoTime() - startTime) / 1_000_000_000 + " seconds ("
+                        + snapshot.getTermCount() + " terms, " + snapshot.getDocumentCount() + " documents).");
+            } catch (UncheckedIOException | IllegalStateException ex) {
+                System.err.println(ex.getMessage());
+                System.err.println("Indexing stopped; queries see the documents indexed so far.");
+            }
+        }, "live-indexing");
+        // Serving ends when the queries do, indexed or not.
+        indexer.setDaemon(true);
+        indexer.start();
+        return index;
+    }
+
+    /*
+     * serve --shards: starts shardCount worker processes over the corpus in
+     * inputPath and answers the queries through them. The rendered CSV files
+     * are cached, since the workers' rows cannot be replayed here.
+     */
+    static void serveShards(String inputPath, int shardCount, int threadCount, int port, String batchFile,
+            long cacheMegabytes, long startTime) {
+        File input = new File(inputPath);
+        if (!input.isDirectory()) {
+            System.err.println("Error: --shards needs a directory of input files, not an index.");
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+        System.out.println("\nInput files directory path name is: " + inputPath);
+        listFilesInPath(input);
+        System.out.println("Number of Gutenberg corpus files: " + fileCount);
+        System.out.println("\nBuilding Positional Index in " + shardCount + " shard(s) with " + threadCount
+                + " thread(s) each...");
+
+        try (ShardedIndex shards = ShardedIndex.start(inputFileNames, shardCount, threadCount);
+                QueryServer server = new QueryServer(shards, outputPath, threadCount, cacheMegabytes << 20)) {
+            System.out.println("\nPositional Index ready in "
+                    + (double) (System.nanoTime() - startTime) / 1_000_000_000 + " seconds ("
+                    + shards.getDocumentCount() + " documents in " + shards.getShardCount() + " shards).");
+            if (port >= 0) {
+                server.startHttp(port);
+                System.out.println("Serving http://localhost:" + server.getHttpPort()
+                        + "/query?x=<first-word>&y=<second-word>&k=<int-distance-between-words>");
+                System.out.println("Metrics at http://localhost:" + server.getHttpPort() + "/metrics");
+            }
+            if (batchFile != null) {
+                try (BufferedReader batch = Files.newBufferedReader(Paths.get(batchFile))) {
+                    server.runBatch(batch, System.out);
+                }
+            } else {
+                System.out.println("Enter queries as: <first-word> <second-word> <int-distance-between-words>");
+                server.runBatch(new BufferedReader(new InputStreamReader(System.in)), System.out);
+            }
+            if (port >= 0) {
+                // Keep serving HTTP queries until the process is stopped.
+                Thread.currentThread().join();
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex shard-worker <file-list> <first> <last> <thread-count>
+     *
+     * One shard of serve --shards, started by ShardedIndex; not meant to be
+     * run by hand.
+     */
+    static void shardWorkerMain(String[] args) {
+        if (args.length != 5) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex shard-worker <file-list> <first> <last> <thread-count>");
+            System.exit(1);
+        }
+        try {
+            ShardWorker.run(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]));
+        } catch (IOException | UncheckedIOException | IllegalStateException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * java PositionalIndex phrase <path-to-input-files-or-index> <path-to-output-result-files> <word> <word>...
+     * java PositionalIndex within <path-to-input-files-or-index> <path-to-output-result-files> <int-window> <word> <word>...
+     *
+     * Answers one exact phrase query, or one query for all words within a
+     * window of <int-window> words in any order.
+     */
+    static void multiTermMain(String[] args) {
+        long startTime = System.nanoTime();
+        boolean window = args[0].equals("within");
+        int firstWord = window ? 4 : 3;
+        int error = args.length <= firstWord ? 1 : 0;
+        for (int i = firstWord; i < args.length; i++) {
+            if (!isQueryWord(args[i])) {
+                System.err.println(
+                        "Error: <word> arguments must only have alphabet letters in the input, optionally followed by * for a prefix.");
+                error = 1;
+            }
+        }
+        if (window && args.length > 3 && Integer.parseInt(args[3]) < 1) {
+            System.err.println("Error: <int-window> argument must be greater than 0.");
+            error = 1;
+        }
+        if (error == 1) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex phrase <path-to-input-files-or-index> <path-to-output-result-files> <word> <word>...");
+            System.err.println(
+                    "           or: java PositionalIndex within <path-to-input-files-or-index> <path-to-output-result-files> <int-window> <word> <word>...");
+            System.exit(1);
+        }
+        String[] words = new String[args.length - firstWord];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = args[firstWord + i].toLowerCase();
+        }
+        outputPath = args[2];
+
+        IndexReader index = null;
+        try {
+            index = openIndex(args[1], Runtime.getRuntime().availableProcessors());
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+
+        System.out.println("\nNow performing " + (window ? "window" : "phrase") + " search...");
+        try {
+            long matchCount = window ? windowSearch(index, outputPath, words, Integer.parseInt(args[3]))
+                    : phraseSearch(index, outputPath, words);
+            if (matchCount == 0) {
+                System.out.println("No results found from your query.");
+            } else {
+                System.out.println(matchCount + " results written into CSV files.");
+            }
+        } catch (UncheckedIOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Program terminated\n");
+            System.exit(1);
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("\nProcess Completed in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex top <path-to-input-files-or-index> <path-to-output-result-files> <int-top-n> <first-word> <second-word> <int-distance-between-words>
+     *
+     * Ranks the documents where the two words occur at most k words apart,
+     * prints the best n with their scores and writes their pairs into the
+     * CSV files, best document first.
+     */
+    static void topMain(String[] args) {
+        long startTime = System.nanoTime();
+        int error = args.length != 7 ? 1 : validateQueryArguments(args[4], args[5], args[6]);
+        if (error == 0 && (!args[3].matches("^[0-9]+$") || Integer.parseInt(args[3]) < 1)) {
+            System.err.println("Error: <int-top-n> argument must be greater than 0.");
+            error = 1;
+        }
+        if (error == 1) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex top <path-to-input-files-or-index> <path-to-output-result-files> <int-top-n> <first-word> <second-word> <int-distance-between-words>");
+            System.exit(1);
+        }
+        int n = Integer.parseInt(args[3]);
+        String x = args[4].toLowerCase();
+        String y = args[5].toLowerCase();
+        int k = Integer.parseInt(args[6]);
+        outputPath = args[2];
+
+        IndexReader index = null;
+        try {
+            index = openIndex(args[1], Runtime.getRuntime().availableProcessors());
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+
+        System.out.println("\nNow ranking the top " + n + " documents...");
+        try {
+            RankedSearch.Ranking ranking = rankedSearch(index, outputPath, x, y, k, n);
+            if (ranking.documents.length == 0) {
+                System.out.println("No results found from your query.");
+            } else {
+                for (int i = 0; i < ranking.documents.length; i++) {
+                    RankedSearch.ScoredDocument document = ranking.documents[i];
+                    System.out.printf("%3d. DocID %d, score %.4f (terms %.4f, proximity %.4f, %d pairs) %s%n", i + 1,
+                            document.docID, document.score, document.termScore, document.proximityScore,
+                            document.pairCount, index.getDocumentPath(document.docID));
+                }
+                System.out.println(ranking.scoredCount + " of " + ranking.candidateCount
+                        + " candidate documents scored, the others could not make the top " + n + ".");
+            }
+        } catch (UncheckedIOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Program terminated\n");
+            System.exit(1);
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("\nProcess Completed in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex docs <path-to-input-files-or-index> <path-to-output-result-files>
+     * <word> [and|or|not <word>]...
+     *
+     * Lists the documents matching a boolean expression of words, see
+     * documentSearch.
+     */
+    static void documentsMain(String[] args) {
+        long startTime = System.nanoTime();
+        int error = args.length < 4 || args.length % 2 != 0 ? 1 : 0;
+        for (int i = 3; i < args.length && error == 0; i += 2) {
+            if (!isQueryWord(args[i])) {
+                System.err.println(
+                        "Error: <word> arguments must only have alphabet letters in the input, optionally followed by * for a prefix.");
+                error = 1;
+            } else if (i + 1 < args.length && !args[i + 1].matches("and|or|not")) {
+                System.err.println("Error: words must be joined by and, or or not.");
+                error = 1;
+            }
+        }
+        if (error == 1) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex docs <path-to-input-files-or-index> <path-to-output-result-files> <word> [and|or|not <word>]...");
+            System.exit(1);
+        }
+        String[] expression = new String[args.length - 3];
+        for (int i = 0; i < expression.length; i++) {
+            expression[i] = args[3 + i].toLowerCase();
+        }
+        outputPath = args[2];
+
+        IndexReader index = null;
+        try {
+            index = openIndex(args[1], Runtime.getRuntime().availableProcessors());
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.err.println("\nProgram terminated\n");
+            System.exit(1);
+        }
+
+        System.out.println("\nNow performing document search...");
+        try {
+            int documentCount = documentSearch(index, outputPath, expression);
+            if (documentCount == 0) {
+                System.out.println("No results found from your query.");
+            } else {
+                System.out.println(documentCount + " documents written into a CSV file.");
+            }
+        } catch (UncheckedIOException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Program terminated\n");
+            System.exit(1);
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("\nProcess Completed in " +
+                (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
+    }
+
+    /*
+     * java PositionalIndex stats <path-to-input-files> [--full]
+     *
+     * Builds the Positional Index and prints its vocabulary size and
+     * postings length percentiles, or with --full every term and document,
+     * followed by the build metrics.
+     */
+    static void statsMain(String[] args) {
+        boolean full = args.length == 3 && args[2].equals("--full");
+        if (args.length != 2 && !full) {
+            System.err.println("\nIncorrect usage. Program terminated");
+            System.err.println("Correct usage: java PositionalIndex stats <path-to-input-files> [--full]");
+            System.exit(1);
+        }
+        printProgress = false;
+        System.out.println("\nInput files directory path name is: " + args[1]);
+        listFilesInPath(new File(args[1]));
+        System.out.println("Number of Gutenberg corpus files: " + fileCount + "\n");
+        buildPositionalIndex(Runtime.getRuntime().availableProcessors()).printStats(full);
+        System.out.println();
+        printMetrics();
+    }
+
+    // Prints the metrics IndexMetrics collected over the phases that ran.
+    static void printMetrics() {
+        System.out.println("Metrics:");
+        System.out.println(IndexMetrics.report());
+    }
+
+    /*
+     * Opens the index written by build when path holds one, otherwise builds
+     * the Positional Index from the corpus files under path.
+     */
+    static IndexReader openIndex(String path, int threadCount) throws IOException {
+        if (Files.exists(Paths.get(path, IndexFormat.SEGMENTS_FILE))
+                || Files.exists(Paths.get(path, IndexFormat.TERMS_FILE))) {
+            System.out.println("\nOpening Positional Index: " + path);
+            return openIndexDirectory(Paths.get(path));
+        }
+        System.out.println("\nInput files directory path name is: " + path);
+        listFilesInPath(new File(path));
+        System.out.println("Number of Gutenberg corpus files: " + fileCount);
+        System.out.println("\nBuilding Positional Index with " + threadCount + " thread(s)...");
+        return buildPositionalIndex(threadCount);
+    }
+
+    /*
+     * Opens an index written by build: a segmented index, or a single
+     * segment written directly into directory.
+     */
+    static IndexReader openIndexDirectory(Path directory) throws IOException {
+        if (Files.exists(directory.resolve(IndexFormat.SEGMENTS_FILE))) {
+            return SegmentedIndex.open(directory);
+        }
+        return DiskIndex.open(directory);
+    }
+
+    /*
+     *
+     * MAIN METHOD
+     *
+     */
+    public static void main(String[] args) {
+        // Sub-commands working with an index on disk.
+        if (args.length > 0 && args[0].equals("build")) {
+            buildMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("query")) {
+            queryMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("add")) {
+            addMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("delete")) {
+            deleteMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            serveMain(args);
+            return;
+        }
+        if (args.length > 0 && (args[0].equals("phrase") || args[0].equals("within"))) {
+            multiTermMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("docs")) {
+            documentsMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stats")) {
+            statsMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("top")) {
+            topMain(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("shard-worker")) {
+            shardWorkerMain(args);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        int error = 0;
+
+        /*
+         * Did the user provide correct number of command line arguments?
+         * If not, print message and exit
+         */
+        if (args.length != 5 && args.length != 6) {
+            System.err.println("\nNumber of command line arguments must be 5 or 6");
+            System.err.println("You have given " + args.length + " command line arguments");
+            System.err.println("Incorrect usage. Program terminated");
+            System.err.println(
+                    "Correct usage: java PositionalIndex <path-to-input-files> <path-to-output-result-files> <first-word> <second-word> <int-distance-between-words> [thread-count]");
+            System.err.println(
+                    "           or: java PositionalIndex build <path-to-input-files> <path-to-index> [thread-count] [--memory-mb <megabytes>] [--pairs <min-occurrences>] [--pair-max-k <k>]");
+            System.err.println(
+                    "           or: java PositionalIndex query <path-to-index> <path-to-output-result-files> <first-word> <second-word> <int-distance-between-words>");
+            System.err.println(
+                    "           or: java PositionalIndex add <path-to-index> <path-to-new-files> [thread-count]");
+            System.err.println(
+                    "           or: java PositionalIndex delete <path-to-index> <file-path>...");
+            System.err.println(
+                    "           or: java PositionalIndex serve <path-to-input-files-or-index> <path-to-output-result-files> [--port <port>] [--batch <query-file>] [--threads <thread-count>] [--cache-mb <megabytes>] [--cache-files <yes|no>] [--shards <shard-count>] [--live <batch-size>]");
+            System.err.println(
+                    "           or: java PositionalIndex phrase <path-to-input-files-or-index> <path-to-output-result-files> <word> <word>...");
+            System.err.println(
+                    "           or: java PositionalIndex within <path-to-input-files-or-index> <path-to-output-result-files> <int-window> <word> <word>...");
+            System.err.println(
+                    "           or: java PositionalIndex top <path-to-input-files-or-index> <path-to-output-result-files> <int-top-n> <first-word> <second-word> <int-distance-between-words>");
+            System.err.println(
+                    "           or: java PositionalIndex docs <path-to-input-files-or-index> <path-to-output-result-files> <word> [and|or|not <word>]...");
+            System.err.println(
+                    "           or: java PositionalIndex stats <path-to-input-files> [--full]");
+            System.exit(1);
+        }
+        error = validateQueryArguments(args[2], args[3], args[4]);
+
+        // Defaults to one index build thread per available processor.
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (args.length == 6) {
+            threadCount = Integer.parseInt(args[5]);
+            if (threadCount < 1) {
+                System.err.println("Error: [thread-count] argument must be greater than 0.");
+                error = 1;
+            }
+        }
+        if (error == 1) {
+            System.exit(1);
+        }
+
+        prepareOutputFiles(args[1], args[2], args[3], args[4]);
 
         /*
          * Extract input file name from command line arguments
@@ -386,90 +1850,9 @@ public class PositionalIndex {
         listFilesInPath(new File(inputFileDirName));
         System.out.println("Number of Gutenberg corpus files: " + fileCount);
 
-        // br for efficiently reading characters from an input stream
-        BufferedReader br = null;
-
-        /*
-         * wordPattern specifies pattern for words using a regular expression
-         * wordMatcher finds words by spotting word patterns with input
-         */
-        Pattern wordPattern = Pattern.compile("[a-zA-Z]+");
-        Matcher wordMatcher;
-
-        /*
-         * line - a line read from file
-         * word - an extracted word from a line
-         */
-        String line, word;
-
         // Initialize new Positional Index
-        PositionalIndex positionalIndex = new PositionalIndex();
-
-        System.out.println("\nBuilding Positional Index...");
-
-        // Process one file at a time
-        for (int index = 0; index < fileCount; index++) {
-            System.out.println("Processing: " + inputFileNames.get(index));
-
-            // Keep track of document position.
-            int docPosition = 0;
-
-            /*
-             * Keep track of Doc ID for assignment for building the positional
-             * index data. They start at 1.
-             */
-            int docID = 1 + index;
-
-            /*
-             * Open the input file, read one line at a time, extract words
-             * in the line, extract characters in a word, write words and
-             * character counts to disk files
-             */
-            try {
-                /*
-                 * Get a BufferedReader object, which encapsulates
-                 * access to a (disk) file
-                 */
-                br = new BufferedReader(new FileReader(inputFileNames.get(index)));
-
-                /*
-                 * As long as we have more lines to process, read a line
-                 * the following line is doing two things: makes an assignment
-                 * and serves as a boolean expression for while test
-                 */
-                while ((line = br.readLine()) != null) {
-                    // process the line by extracting words using the wordPattern
-                    wordMatcher = wordPattern.matcher(line);
-
-                    // Will store a cleaner version of line into String ArrayList
-                    ArrayList<String> cleanLine = new ArrayList<String>();
-
-                    // Process one word at a time
-                    while (wordMatcher.find()) {
-
-                        // Extract and convert the word to lowercase
-                        word = line.substring(wordMatcher.start(), wordMatcher.end());
-                        cleanLine.add(word.toLowerCase());
-                    } // while - wordMatcher
-
-                    /*
-                     * Handles cases if the line is empty
-                     *
-                     * Without this, it will count empty strings
-                     * because cleanLine is originally empty.
-                     */
-                    if (!cleanLine.isEmpty()) {
-                        for (String term : cleanLine) {
-                            positionalIndex.updatePositionalIndex(term, docID, ++docPosition);
-                        }
-                    }
-                } // while - Line
-            } // try
-            catch (IOException ex) {
-                System.err.println("File " + inputFileNames.get(index) + " not found. Program terminated.\n");
-                System.exit(1);
-            }
-        } // for -- Process one file at a time
+        System.out.println("\nBuilding Positional Index with " + threadCount + " thread(s)...");
+        PositionalIndex positionalIndex = buildPositionalIndex(threadCount);
 
         System.out.println("\nPositional Index Built.");
         System.out.println("\nNow performing proximity search...");
@@ -479,5 +1862,6 @@ public class PositionalIndex {
         long endTime = System.nanoTime();
         System.out.println("\nProcess Completed in " +
                 (double) (endTime - startTime) / 1_000_000_000 + " seconds.\n");
+        printMetrics();
     } // main()
 } // class
@@ -0,0 +1,321 @@
+/*
+    Query engine for N-term queries: exact phrases of any
+    length ("to be or not to be") and unordered "within k
+    words" windows.
+
+    Documents are found by a conjunction over all postings
+    lists ordered by document frequency: the rarest term
+    proposes the next candidate and every other cursor is
+    advanced (through its skip table) to it. When candidates
+    are given, e.g. the AND of the terms' document bitmaps,
+    the cursors are advanced straight to those instead.
+    Positions are only decoded for documents containing every
+    term, and each match is handed to a collector as soon as
+    it is found, so no intermediate lists are built and the
+    cost follows the rarest term's postings.
+*/
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public final class PositionalIntersection {
+    // Receives the matching spans, in increasing start position per document.
+    public interface SpanCollector {
+        // The words from position start to position end form a match in docID.
+        void span(int docID, int start, int end);
+
+        // Called after the spans of a document that contains every term.
+        default void endDocument(int docID) {
+        }
+    }
+
+    private PositionalIntersection() {
+    }
+
+    /*
+     * Finds every occurrence of the words in order at consecutive positions.
+     * cursors[i] iterates the postings of the i-th word of the phrase; a
+     * repeated word needs its own cursor.
+     */
+    public static void phrase(PostingsCursor[] cursors, SpanCollector collector) {
+        phrase(cursors, null, collector);
+    }
+
+    // Same as above over the documents of candidates only, or all documents if null.
+    public static void phrase(PostingsCursor[] cursors, DocBitmap candidates, SpanCollector collector) {
+        int n = cursors.length;
+        Integer[] order = documentFrequencyOrder(cursors);
+        int[] pointers = new int[n];
+        DocBitmap.Iterator documents = candidates == null ? null : candidates.iterator();
+
+        int doc = nextDocument(cursors, order, documents, -1);
+        while (doc != PostingsCursor.NO_MORE_DOCS) {
+            // The word with the fewest positions in this document drives the check.
+            int lead = 0;
+            for (int i = 1; i < n; i++) {
+                if (cursors[i].freq() < cursors[lead].freq()) {
+                    lead = i;
+                }
+            }
+            Arrays.fill(pointers, 0);
+            int[] leadPositions = cursors[lead].positions();
+            for (int p = 0; p < cursors[lead].freq(); p++) {
+                int start = leadPositions[p] - lead;
+                boolean match = start >= 1;
+                for (int i = 0; i < n && match; i++) {
+                    if (i == lead) {
+                        continue;
+                    }
+                    int[] positions = cursors[i].positions();
+                    int count = cursors[i].freq();
+                    pointers[i] = PositionalJoin.seek(positions, pointers[i], count, start + i,
+                            count / Math.max(cursors[lead].freq(), 1) >= PositionalJoin.GALLOP_RATIO);
+                    match = pointers[i] < count && positions[pointers[i]] == start + i;
+                }
+                if (match) {
+                    collector.span(doc, start, start + n - 1);
+                }
+            }
+            collector.endDocument(doc);
+            doc = nextDocument(cursors, order, documents, doc);
+        }
+    }
+
+    /*
+     * Finds windows of at most k + 1 consecutive positions that contain every
+     * word, in any order. For each position of any word, the smallest such
+     * window starting there is reported, so overlapping windows are possible.
+     * cursors must iterate words that never match the same token; see
+     * distinctWindow otherwise.
+     */
+    public static void window(PostingsCursor[] cursors, int k, SpanCollector collector) {
+        window(cursors, k, null, collector);
+    }
+
+    // Same as above over the documents of candidates only, or all documents if null.
+    public static void window(PostingsCursor[] cursors, int k, DocBitmap candidates, SpanCollector collector) {
+        int n = cursors.length;
+        Integer[] order = documentFrequencyOrder(cursors);
+        int[] pointers = new int[n];
+        DocBitmap.Iterator documents = candidates == null ? null : candidates.iterator();
+
+        int doc = nextDocument(cursors, order, documents, -1);
+        while (doc != PostingsCursor.NO_MORE_DOCS) {
+            Arrays.fill(pointers, 0);
+            // Merge the position lists: the window spans the current position of every word.
+            while (true) {
+                int minTerm = -1;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    int position = cursors[i].positions()[pointers[i]];
+                    if (position < min) {
+                        min = position;
+                        minTerm = i;
+                    }
+                    max = Math.max(max, position);
+                }
+                if (max - min <= k) {
+                    collector.span(doc, min, max);
+                }
+                // Moving any other word only widens the window, so move the first one.
+                if (++pointers[minTerm] >= cursors[minTerm].freq()) {
+                    break;
+                }
+            }
+            collector.endDocument(doc);
+            doc = nextDocument(cursors, order, documents, doc);
+        }
+    }
+
+    /*
+     * Same as window for words that can match the same token, such as learn*
+     * and learning or a repeated word, over the documents of candidates only, or all documents
+     * if null. Every word must be matched at a position of its own, so a
+     * window is only reported if its tokens can be assigned to distinct
+     * words with its first position among them.
+     */
+    public static void distinctWindow(PostingsCursor[] cursors, int k, DocBitmap candidates,
+            SpanCollector collector) {
+        int n = cursors.length;
+        Integer[] order = documentFrequencyOrder(cursors);
+        int[] pointers = new int[n];
+        int[] owners = new int[0];
+        boolean[] visited = new boolean[0];
+        long[] entries = new long[0];
+        DocBitmap.Iterator documents = candidates == null ? null : candidates.iterator();
+
+        int doc = nextDocument(cursors, order, documents, -1);
+        while (doc != PostingsCursor.NO_MORE_DOCS) {
+            // Every (position, word) pair of the document, in position order.
+            int total = 0;
+            for (PostingsCursor cursor : cursors) {
+                total += cursor.freq();
+            }
+            if (entries.length < total) {
+                entries = new long[total];
+                owners = new int[total];
+                visited = new boolean[total];
+            }
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                int[] positions = cursors[i].positions();
+                for (int p = 0; p < cursors[i].freq(); p++) {
+                    entries[count++] = (long) positions[p] << 32 | i;
+                }
+            }
+            Arrays.sort(entries, 0, total);
+
+            Arrays.fill(pointers, 0);
+            int first = 0;
+            while (first < total) {
+                int start = (int) (entries[first] >>> 32);
+                int next = first;
+                while (next < total && (int) (entries[next] >>> 32) == start) {
+                    next++;
+                }
+                // The window reaches at least the next position of every word.
+                int end = start;
+                for (int i = 0; i < n && end - start <= k; i++) {
+                    int[] positions = cursors[i].positions();
+                    while (pointers[i] < cursors[i].freq() && positions[pointers[i]] < start) {
+                        pointers[i]++;
+                    }
+                    end = pointers[i] < cursors[i].freq() ? Math.max(end, positions[pointers[i]])
+                            : Integer.MAX_VALUE;
+                }
+                if (end == Integer.MAX_VALUE) {
+                    // Some word does not occur from start on, so no later window matches.
+                    break;
+                }
+                // Widen the window until its tokens can be given to distinct words.
+                int limit = next;
+                while (limit < total && (int) (entries[limit] >>> 32) <= end) {
+                    limit++;
+                }
+                while (end - start <= k) {
+                    if (assign(entries, first, next, limit, n, owners, visited)) {
+                        collector.span(doc, start, end);
+                        break;
+                    }
+                    if (limit == total) {
+                        break;
+                    }
+                    end = (int) (entries[limit] >>> 32);
+                    while (limit < total && (int) (entries[limit] >>> 32) == end) {
+                        limit++;
+                    }
+                }
+                first = next;
+            }
+            collector.endDocument(doc);
+            doc = nextDocument(cursors, order, documents, doc);
+        }
+    }
+
+    /*
+     * Whether each of the n words can be given its own position among
+     * entries[first, limit), with the position of entries[first, next) going
+     * to one of the words found there. owners[e] is the word holding the
+     * position whose first entry is e.
+     */
+    private static boolean assign(long[] entries, int first, int next, int limit, int n, int[] owners,
+            boolean[] visited) {
+        for (int e = first; e < next; e++) {
+            int word = (int) entries[e];
+            Arrays.fill(owners, first, limit, -1);
+            owners[first] = word;
+            boolean all = true;
+            for (int other = 0; other < n && all; other++) {
+                if (other != word) {
+                    Arrays.fill(visited, next, limit, false);
+                    all = augment(entries, next, limit, other, owners, visited);
+                }
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Finds a position in entries[from, limit) for word, moving earlier words to other positions.
+    private static boolean augment(long[] entries, int from, int limit, int word, int[] owners,
+            boolean[] visited) {
+        int group = from;
+        for (int e = from; e < limit; e++) {
+            if (e > from && entries[e] >>> 32 != entries[e - 1] >>> 32) {
+                group = e;
+            }
+            if ((int) entries[e] != word || visited[group]) {
+                continue;
+            }
+            visited[group] = true;
+            if (owners[group] < 0 || augment(entries, from, limit, owners[group], owners, visited)) {
+                owners[group] = word;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Advances all cursors to the next candidate that every one of them
+     * contains, or to the next conjunction after previous without candidates.
+     */
+    private static int nextDocument(PostingsCursor[] cursors, Integer[] order, DocBitmap.Iterator candidates,
+            int previous) {
+        if (candidates == null) {
+            return conjunction(cursors, order, previous);
+        }
+        for (int doc = candidates.next(); doc != PostingsCursor.NO_MORE_DOCS; doc = candidates.next()) {
+            boolean all = true;
+            for (Integer i : order) {
+                int found = cursors[i].advance(doc);
+                if (found == PostingsCursor.NO_MORE_DOCS) {
+                    return found;
+                }
+                if (found != doc) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                return doc;
+            }
+        }
+        return PostingsCursor.NO_MORE_DOCS;
+    }
+
+    /*
+     * Advances all cursors to the next document after previous that every
+     * one of them contains. order lists the cursors from the rarest term to
+     * the most frequent one; the rarest proposes candidates and the others
+     * only seek.
+     */
+    static int conjunction(PostingsCursor[] cursors, Integer[] order, int previous) {
+        PostingsCursor lead = cursors[order[0]];
+        int target = lead.advance(previous + 1);
+        int i = 1;
+        while (target != PostingsCursor.NO_MORE_DOCS && i < order.length) {
+            int doc = cursors[order[i]].advance(target);
+            if (doc == target) {
+                i++;
+            } else {
+                // Some term is missing from target; restart from the lead.
+                target = lead.advance(doc);
+                i = 1;
+            }
+        }
+        return target;
+    }
+
+    private static Integer[] documentFrequencyOrder(PostingsCursor[] cursors) {
+        Integer[] order = new Integer[cursors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> cursors[i].documentCount()));
+        return order;
+    }
+} // class
@@ -0,0 +1,156 @@
+/*
+    Join engine for two-term proximity queries. Finds every
+    pair of positions exactly k apart in both directions
+    (x...y and y...x) with a single merge over the two sorted
+    position lists of each shared document, instead of
+    comparing every x position with every y position.
+*/
+
+public final class PositionalJoin {
+    /*
+     * Once the longer list is this many times the shorter one, the cursors
+     * into it gallop (exponential + binary search) instead of stepping.
+     */
+    static final int GALLOP_RATIO = 8;
+
+    // Receives the matches of a join, each direction in increasing position order per document.
+    public interface MatchCollector {
+        // x at xPosition is followed by y at xPosition + k.
+        void xFirst(int docID, int xPosition, int yPosition);
+
+        // y at yPosition is followed by x at yPosition + k.
+        void yFirst(int docID, int yPosition, int xPosition);
+
+        // Called after the matches of a shared document, so collectors can work per document.
+        default void endDocument(int docID) {
+        }
+    }
+
+    private PositionalJoin() {
+    }
+
+    /*
+     * Joins the postings of x and y. Documents are intersected by
+     * leapfrogging the two cursors; positions are only decoded for
+     * documents that contain both terms.
+     */
+    public static void join(PostingsCursor x, PostingsCursor y, int k, MatchCollector collector) {
+        int xDoc = x.nextDoc();
+        int yDoc = y.nextDoc();
+        while (xDoc != PostingsCursor.NO_MORE_DOCS && yDoc != PostingsCursor.NO_MORE_DOCS) {
+            if (xDoc < yDoc) {
+                xDoc = x.advance(yDoc);
+            } else if (yDoc < xDoc) {
+                yDoc = y.advance(xDoc);
+            } else {
+                joinPositions(xDoc, x.positions(), x.freq(), y.positions(), y.freq(), k, collector);
+                collector.endDocument(xDoc);
+                xDoc = x.nextDoc();
+                yDoc = y.nextDoc();
+            }
+        }
+    }
+
+    /*
+     * Same as above for the documents of candidates only, e.g. the AND of the
+     * terms' document bitmaps; all of them if candidates is null. The cursors
+     * are advanced straight to each candidate, and candidates without both
+     * terms are skipped.
+     */
+    public static void join(PostingsCursor x, PostingsCursor y, DocBitmap candidates, int k,
+            MatchCollector collector) {
+        if (candidates == null) {
+            join(x, y, k, collector);
+            return;
+        }
+        DocBitmap.Iterator documents = candidates.iterator();
+        for (int doc = documents.next(); doc != PostingsCursor.NO_MORE_DOCS; doc = documents.next()) {
+            int xDoc = x.advance(doc);
+            int yDoc = y.advance(doc);
+            if (xDoc == PostingsCursor.NO_MORE_DOCS || yDoc == PostingsCursor.NO_MORE_DOCS) {
+                return;
+            }
+            if (xDoc == doc && yDoc == doc) {
+                joinPositions(doc, x.positions(), x.freq(), y.positions(), y.freq(), k, collector);
+                collector.endDocument(doc);
+            }
+        }
+    }
+
+    /*
+     * Joins the sorted positions of one document. The shorter list drives the
+     * merge; two forward-only cursors into the longer list look for the
+     * partner k positions after and k positions before each driving
+     * position, which covers both directions in the same pass.
+     */
+    public static void joinPositions(int docID, int[] xs, int xCount, int[] ys, int yCount, int k,
+            MatchCollector collector) {
+        if (xCount <= yCount) {
+            boolean gallop = yCount / Math.max(xCount, 1) >= GALLOP_RATIO;
+            int after = 0;
+            int before = 0;
+            for (int i = 0; i < xCount && before < yCount; i++) {
+                int xPosition = xs[i];
+                // y...x: y at xPosition - k
+                before = seek(ys, before, yCount, xPosition - k, gallop);
+                if (before < yCount && ys[before] == xPosition - k) {
+                    collector.yFirst(docID, ys[before], xPosition);
+                }
+                // x...y: y at xPosition + k
+                after = seek(ys, after, yCount, xPosition + k, gallop);
+                if (after < yCount && ys[after] == xPosition + k) {
+                    collector.xFirst(docID, xPosition, ys[after]);
+                }
+            }
+        } else {
+            boolean gallop = xCount / Math.max(yCount, 1) >= GALLOP_RATIO;
+            int after = 0;
+            int before = 0;
+            for (int i = 0; i < yCount && before < xCount; i++) {
+                int yPosition = ys[i];
+                // x...y: x at yPosition - k
+                before = seek(xs, before, xCount, yPosition - k, gallop);
+                if (before < xCount && xs[before] == yPosition - k) {
+                    collector.xFirst(docID, xs[before], yPosition);
+                }
+                // y...x: x at yPosition + k
+                after = seek(xs, after, xCount, yPosition + k, gallop);
+                if (after < xCount && xs[after] == yPosition + k) {
+                    collector.yFirst(docID, yPosition, xs[after]);
+                }
+            }
+        }
+    }
+
+    // Index of the first value >= target in values[from, count), or count.
+    static int seek(int[] values, int from, int count, int target, boolean gallop) {
+        if (!gallop) {
+            while (from < count && values[from] < target) {
+                from++;
+            }
+            return from;
+        }
+        if (from >= count || values[from] >= target) {
+            return from;
+        }
+        // Exponential search for an upper bound, then binary search below it.
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < count && values[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, count);
+        while (low + 1 < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < target) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+} // class
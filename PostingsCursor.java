@@ -0,0 +1,191 @@
+/*
+    Forward-only reader over the compressed postings of one
+    term. Works on heap arrays and on memory-mapped buffers
+    alike, decoding documents and positions in place.
+    advance() uses the skip table to jump over whole blocks
+    of documents instead of decoding every entry. Subclasses
+    that combine other cursors, like the one spanning the
+    segments of a SegmentedIndex, override the public methods.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+public class PostingsCursor {
+    // Returned by nextDoc() and advance() once the postings are exhausted.
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ByteBuffer docs;
+    private final int docStart;
+    private final int docEnd;
+    private final ByteBuffer positions;
+    private final int positionBase;
+    private final int documentCount;
+
+    // Skip entries as written by PostingsList; offsets are relative to the stream starts.
+    private final IntBuffer skips;
+    private final int skipCount;
+    private int nextSkip;
+
+    private int docOffset;
+
+    private int docID;
+    private int freq;
+    private int positionStart;
+    private int positionLength;
+
+    // Decoded positions of the current document; filled lazily.
+    private int[] positionBuffer = new int[16];
+    private boolean positionsDecoded;
+
+    public PostingsCursor(byte[] docs, int docStart, int docEnd, byte[] positions, int positionStart,
+            int documentCount, IntBuffer skips, int skipCount) {
+        this(ByteBuffer.wrap(docs), docStart, docEnd, ByteBuffer.wrap(positions), positionStart, documentCount,
+                skips, skipCount);
+    }
+
+    public PostingsCursor(ByteBuffer docs, int docStart, int docEnd, ByteBuffer positions, int positionStart,
+            int documentCount, IntBuffer skips, int skipCount) {
+        this.docs = docs;
+        this.docStart = docStart;
+        this.docOffset = docStart;
+        this.docEnd = docEnd;
+        this.positions = positions;
+        this.positionBase = positionStart;
+        this.positionStart = positionStart;
+        this.documentCount = documentCount;
+        this.skips = skips;
+        this.skipCount = skipCount;
+        this.docID = -1;
+    }
+
+    // For subclasses reading other cursors; documentCount is what documentCount() returns.
+    PostingsCursor(int documentCount) {
+        this(EMPTY, 0, 0, EMPTY, 0, documentCount, null, 0);
+    }
+
+    public int docID() {
+        return this.docID;
+    }
+
+    public int freq() {
+        return this.freq;
+    }
+
+    public int documentCount() {
+        return this.documentCount;
+    }
+
+    // Length in bytes of the encoded positions of the current document.
+    int positionLength() {
+        return this.positionLength;
+    }
+
+    // Read offset into the document stream, just past the current entry.
+    int docOffset() {
+        return this.docOffset;
+    }
+
+    // Moves to the next document and returns its ID, or NO_MORE_DOCS.
+    public int nextDoc() {
+        if (this.docOffset >= this.docEnd) {
+            this.docID = NO_MORE_DOCS;
+            this.freq = 0;
+            return NO_MORE_DOCS;
+        }
+        // Skip over the positions of the current document without decoding them.
+        this.positionStart += this.positionLength;
+
+        this.docID = Math.max(this.docID, 0) + readVInt(this.docs);
+        this.freq = readVInt(this.docs);
+        this.positionLength = readVInt(this.docs);
+        this.positionsDecoded = false;
+        return this.docID;
+    }
+
+    // Moves to the first document >= target and returns its ID, or NO_MORE_DOCS.
+    public int advance(int target) {
+        if (this.docID < target) {
+            skipTo(target);
+        }
+        int doc = this.docID;
+        while (doc < target) {
+            doc = nextDoc();
+        }
+        return doc;
+    }
+
+    /*
+     * Jumps to the last skip entry ahead of the cursor whose base docID is
+     * below target. Every document before that entry is < target, so none
+     * of them can be the answer of advance(target).
+     */
+    private void skipTo(int target) {
+        int low = this.nextSkip;
+        int high = this.skipCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (this.skips.get(mid * PostingsList.SKIP_ENTRY_INTS) < target) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return;
+        }
+        this.nextSkip = found + 1;
+        int entry = found * PostingsList.SKIP_ENTRY_INTS;
+        int offset = this.docStart + this.skips.get(entry + 1);
+        if (offset > this.docOffset) {
+            this.docID = this.skips.get(entry);
+            this.docOffset = offset;
+            this.positionStart = this.positionBase + this.skips.get(entry + 2);
+            this.positionLength = 0;
+        }
+    }
+
+    /*
+     * Decodes the positions of the current document. The returned array is
+     * owned by the cursor and reused; only the first freq() entries are valid.
+     */
+    public int[] positions() {
+        if (!this.positionsDecoded) {
+            if (this.positionBuffer.length < this.freq) {
+                this.positionBuffer = new int[Math.max(this.freq, this.positionBuffer.length * 2)];
+            }
+            int offset = this.positionStart;
+            int position = 0;
+            for (int i = 0; i < this.freq; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = this.positions.get(offset++);
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                position += value;
+                this.positionBuffer[i] = position;
+            }
+            this.positionsDecoded = true;
+        }
+        return this.positionBuffer;
+    }
+
+    private int readVInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(this.docOffset++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+} // class
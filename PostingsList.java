@@ -0,0 +1,368 @@
+/*
+    A growable, compressed postings list for a single term.
+    Document IDs and positions are kept in two primitive
+    byte arrays as delta-encoded variable-length integers
+    instead of boxed keys and tree nodes.
+
+    Document stream, one entry per document:
+        vint(docID - previousDocID), vint(freq), vint(positionBytes)
+    Position stream, freq entries per document:
+        vint(position - previousPosition)
+    Skip table, one entry every SKIP_INTERVAL documents:
+        docID before the entry, entry offset in the document
+        stream, its offset in the position stream
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public final class PostingsList {
+    // Number of documents between two skip entries.
+    static final int SKIP_INTERVAL = 128;
+
+    // Ints per skip entry: base docID, document offset, position offset.
+    static final int SKIP_ENTRY_INTS = 3;
+
+    // Delta-encoded document entries.
+    private byte[] docBytes;
+    private int docLength;
+
+    // Delta-encoded positions, grouped per document in docID order.
+    private byte[] positionBytes;
+    private int positionLength;
+
+    private int documentCount;
+    private long positionCount;
+
+    // Skip entries, SKIP_ENTRY_INTS ints each; null until the first one.
+    private int[] skips;
+    private int skipLength;
+
+    /*
+     * State of the last document entry. The entry is rewritten in place every
+     * time a position is appended to it, so both streams are always complete
+     * and readable without a separate "flush" step.
+     */
+    private int lastDocID;
+    private int previousDocID;
+    private int lastPosition;
+    private int lastFreq;
+    private int lastDocOffset;
+    private int lastPositionOffset;
+
+    public PostingsList() {
+        this.docBytes = new byte[8];
+        this.positionBytes = new byte[8];
+    }
+
+    // Appends a position; documents and positions must arrive in increasing order.
+    public void add(int docID, int position) {
+        if (docID < this.lastDocID || (docID == this.lastDocID && position <= this.lastPosition
+                && this.documentCount > 0)) {
+            throw new IllegalArgumentException("Postings must be added in increasing order: doc " + docID
+                    + " position " + position + " after doc " + this.lastDocID + " position " + this.lastPosition);
+        }
+
+        if (docID != this.lastDocID || this.documentCount == 0) {
+            // Start a new document entry, behind a skip entry every SKIP_INTERVAL documents.
+            if (this.documentCount > 0 && this.documentCount % SKIP_INTERVAL == 0) {
+                addSkip(this.lastDocID, this.docLength, this.positionLength);
+            }
+            this.previousDocID = this.lastDocID;
+            this.lastDocID = docID;
+            this.lastPosition = 0;
+            this.lastFreq = 0;
+            this.lastDocOffset = this.docLength;
+            this.lastPositionOffset = this.positionLength;
+            this.documentCount++;
+        }
+
+        ensurePositionCapacity(5);
+        this.positionLength = writeVInt(this.positionBytes, this.positionLength, position - this.lastPosition);
+        this.lastPosition = position;
+        this.lastFreq++;
+        this.positionCount++;
+
+        // Rewrite the last document entry with the new frequency and length.
+        ensureDocCapacity(15);
+        this.docLength = this.lastDocOffset;
+        this.docLength = writeVInt(this.docBytes, this.docLength, this.lastDocID - this.previousDocID);
+        this.docLength = writeVInt(this.docBytes, this.docLength, this.lastFreq);
+        this.docLength = writeVInt(this.docBytes, this.docLength, this.positionLength - this.lastPositionOffset);
+    }
+
+    /*
+     * Appends all postings of other to this list. Every document in other must
+     * come after the last document in this list, which is the case when
+     * partial indexes over consecutive docID ranges are merged in order.
+     */
+    public void append(PostingsList other) {
+        if (other.documentCount == 0) {
+            return;
+        }
+        if (this.documentCount == 0) {
+            this.docBytes = Arrays.copyOf(other.docBytes, Math.max(other.docLength, 8));
+            this.docLength = other.docLength;
+            this.positionBytes = Arrays.copyOf(other.positionBytes, Math.max(other.positionLength, 8));
+            this.positionLength = other.positionLength;
+            this.documentCount = other.documentCount;
+            this.positionCount = other.positionCount;
+            this.lastDocID = other.lastDocID;
+            this.previousDocID = other.previousDocID;
+            this.lastPosition = other.lastPosition;
+            this.lastFreq = other.lastFreq;
+            this.lastDocOffset = other.lastDocOffset;
+            this.lastPositionOffset = other.lastPositionOffset;
+            this.skips = other.skips == null ? null : Arrays.copyOf(other.skips, other.skipLength);
+            this.skipLength = other.skipLength;
+            return;
+        }
+
+        // Decode the first entry of other; its delta is relative to docID 0.
+        PostingsCursor first = other.cursor();
+        int firstDocID = first.nextDoc();
+        if (firstDocID <= this.lastDocID) {
+            throw new IllegalArgumentException("Cannot append doc " + firstDocID + " after doc " + this.lastDocID);
+        }
+        int firstEntryLength = first.docOffset();
+
+        // Re-encode the first entry relative to our last document, copy the rest verbatim.
+        int firstEntryOffset = this.docLength;
+        ensureDocCapacity(15 + other.docLength - firstEntryLength);
+        this.docLength = writeVInt(this.docBytes, this.docLength, firstDocID - this.lastDocID);
+        this.docLength = writeVInt(this.docBytes, this.docLength, first.freq());
+        this.docLength = writeVInt(this.docBytes, this.docLength, first.positionLength());
+        int shift = this.docLength - firstEntryLength;
+        System.arraycopy(other.docBytes, firstEntryLength, this.docBytes, this.docLength,
+                other.docLength - firstEntryLength);
+        this.docLength += other.docLength - firstEntryLength;
+
+        int positionShift = this.positionLength;
+        ensurePositionCapacity(other.positionLength);
+        System.arraycopy(other.positionBytes, 0, this.positionBytes, this.positionLength, other.positionLength);
+        this.positionLength += other.positionLength;
+
+        // Skip entries of other keep their docIDs and move with the streams.
+        for (int i = 0; i < other.skipLength; i += SKIP_ENTRY_INTS) {
+            addSkip(other.skips[i], other.skips[i + 1] + shift, other.skips[i + 2] + positionShift);
+        }
+
+        this.previousDocID = other.documentCount == 1 ? this.lastDocID : other.previousDocID;
+        this.lastDocOffset = other.documentCount == 1 ? firstEntryOffset : other.lastDocOffset + shift;
+        this.lastPositionOffset = other.lastPositionOffset + positionShift;
+        this.lastDocID = other.lastDocID;
+        this.lastPosition = other.lastPosition;
+        this.lastFreq = other.lastFreq;
+        this.documentCount += other.documentCount;
+        this.positionCount += other.positionCount;
+    }
+
+    /*
+     * Merges the postings of several terms into one list, as if they were a
+     * single term: each document holds the positions of all of them. This is
+     * how a prefix such as learn* is expanded into the terms it matches.
+     */
+    static PostingsList union(List<PostingsCursor> cursors) {
+        return union(cursors, null);
+    }
+
+    /*
+     * Same as above for the documents in documents only, or all if null; the
+     * positions of the other documents are never decoded.
+     */
+    static PostingsList union(List<PostingsCursor> cursors, DocBitmap documents) {
+        PostingsList union = new PostingsList();
+        PriorityQueue<PostingsCursor> queue = new PriorityQueue<PostingsCursor>(Math.max(cursors.size(), 1),
+                Comparator.comparingInt(PostingsCursor::docID));
+        for (PostingsCursor cursor : cursors) {
+            if (nextDoc(cursor, documents) != PostingsCursor.NO_MORE_DOCS) {
+                queue.add(cursor);
+            }
+        }
+
+        int[] positions = new int[64];
+        while (!queue.isEmpty()) {
+            int docID = queue.peek().docID();
+            int count = 0;
+            while (!queue.isEmpty() && queue.peek().docID() == docID) {
+                PostingsCursor cursor = queue.poll();
+                if (count + cursor.freq() > positions.length) {
+                    positions = Arrays.copyOf(positions, Math.max(count + cursor.freq(), positions.length * 2));
+                }
+                System.arraycopy(cursor.positions(), 0, positions, count, cursor.freq());
+                count += cursor.freq();
+                if (nextDoc(cursor, documents) != PostingsCursor.NO_MORE_DOCS) {
+                    queue.add(cursor);
+                }
+            }
+            // Different terms never share a position, so there are no duplicates.
+            Arrays.sort(positions, 0, count);
+            for (int i = 0; i < count; i++) {
+                union.add(docID, positions[i]);
+            }
+        }
+        return union;
+    }
+
+    // Moves cursor to its next document that is in documents, leapfrogging the two, or to any if null.
+    private static int nextDoc(PostingsCursor cursor, DocBitmap documents) {
+        if (documents == null) {
+            return cursor.nextDoc();
+        }
+        int doc = cursor.nextDoc();
+        while (doc != PostingsCursor.NO_MORE_DOCS) {
+            int target = documents.nextDoc(doc);
+            if (target == doc || target == PostingsCursor.NO_MORE_DOCS) {
+                return target;
+            }
+            doc = cursor.advance(target);
+        }
+        return PostingsCursor.NO_MORE_DOCS;
+    }
+
+    public int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    public long getPositionCount() {
+        return this.positionCount;
+    }
+
+    // Number of positions of this term in docID, 0 if the term does not occur there.
+    public int getPositionCount(int docID) {
+        PostingsCursor cursor = cursor();
+        return cursor.advance(docID) == docID ? cursor.freq() : 0;
+    }
+
+    public PostingsCursor cursor() {
+        return new PostingsCursor(this.docBytes, 0, this.docLength, this.positionBytes, 0, this.documentCount,
+                this.skips == null ? null : IntBuffer.wrap(this.skips), getSkipCount());
+    }
+
+    // Number of skip entries.
+    int getSkipCount() {
+        return this.skipLength / SKIP_ENTRY_INTS;
+    }
+
+    // Length in bytes of the document stream.
+    int getDocLength() {
+        return this.docLength;
+    }
+
+    // Length in bytes of the position stream.
+    int getPositionLength() {
+        return this.positionLength;
+    }
+
+    // Writes the skip table followed by the document stream, and the position stream, as stored by IndexFormat.
+    void writeTo(DataOutputStream docs, DataOutputStream positions) throws IOException {
+        for (int i = 0; i < this.skipLength; i++) {
+            docs.writeInt(this.skips[i]);
+        }
+        docs.write(this.docBytes, 0, this.docLength);
+        positions.write(this.positionBytes, 0, this.positionLength);
+    }
+
+    /*
+     * Writes the whole list, the state of its last document included, so
+     * readRun gives back a list that can still be appended to. Used for the
+     * sorted runs of ExternalIndexBuilder.
+     */
+    void writeRun(DataOutputStream out) throws IOException {
+        out.writeInt(this.documentCount);
+        out.writeLong(this.positionCount);
+        out.writeInt(this.lastDocID);
+        out.writeInt(this.previousDocID);
+        out.writeInt(this.lastPosition);
+        out.writeInt(this.lastFreq);
+        out.writeInt(this.lastDocOffset);
+        out.writeInt(this.lastPositionOffset);
+        out.writeInt(this.skipLength);
+        for (int i = 0; i < this.skipLength; i++) {
+            out.writeInt(this.skips[i]);
+        }
+        out.writeInt(this.docLength);
+        out.write(this.docBytes, 0, this.docLength);
+        out.writeInt(this.positionLength);
+        out.write(this.positionBytes, 0, this.positionLength);
+    }
+
+    // Reads a list written by writeRun.
+    static PostingsList readRun(DataInputStream in) throws IOException {
+        PostingsList postings = new PostingsList();
+        postings.documentCount = in.readInt();
+        postings.positionCount = in.readLong();
+        postings.lastDocID = in.readInt();
+        postings.previousDocID = in.readInt();
+        postings.lastPosition = in.readInt();
+        postings.lastFreq = in.readInt();
+        postings.lastDocOffset = in.readInt();
+        postings.lastPositionOffset = in.readInt();
+        postings.skipLength = in.readInt();
+        if (postings.skipLength > 0) {
+            postings.skips = new int[postings.skipLength];
+            for (int i = 0; i < postings.skipLength; i++) {
+                postings.skips[i] = in.readInt();
+            }
+        }
+        postings.docLength = in.readInt();
+        postings.docBytes = new byte[Math.max(postings.docLength, 8)];
+        in.readFully(postings.docBytes, 0, postings.docLength);
+        postings.positionLength = in.readInt();
+        postings.positionBytes = new byte[Math.max(postings.positionLength, 8)];
+        in.readFully(postings.positionBytes, 0, postings.positionLength);
+        return postings;
+    }
+
+    // Bytes held by the two streams, excluding unused capacity.
+    public long getEncodedSize() {
+        return (long) this.docLength + this.positionLength;
+    }
+
+    // Bytes allocated for this list, including unused capacity.
+    public long getAllocatedSize() {
+        return (long) this.docBytes.length + this.positionBytes.length
+                + (this.skips == null ? 0 : this.skips.length * 4L);
+    }
+
+    private void addSkip(int baseDocID, int docOffset, int positionOffset) {
+        if (this.skips == null) {
+            this.skips = new int[SKIP_ENTRY_INTS * 4];
+        } else if (this.skipLength + SKIP_ENTRY_INTS > this.skips.length) {
+            this.skips = Arrays.copyOf(this.skips, this.skips.length * 2);
+        }
+        this.skips[this.skipLength++] = baseDocID;
+        this.skips[this.skipLength++] = docOffset;
+        this.skips[this.skipLength++] = positionOffset;
+    }
+
+    private void ensureDocCapacity(int extra) {
+        if (this.docLength + extra > this.docBytes.length) {
+            this.docBytes = Arrays.copyOf(this.docBytes,
+                    Math.max(this.docLength + extra, this.docBytes.length + (this.docBytes.length >> 1)));
+        }
+    }
+
+    private void ensurePositionCapacity(int extra) {
+        if (this.positionLength + extra > this.positionBytes.length) {
+            this.positionBytes = Arrays.copyOf(this.positionBytes,
+                    Math.max(this.positionLength + extra, this.positionBytes.length + (this.positionBytes.length >> 1)));
+        }
+    }
+
+    // Writes value as a 7-bit variable-length integer and returns the new offset.
+    static int writeVInt(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+} // class
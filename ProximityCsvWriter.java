@@ -0,0 +1,293 @@
+/*
+    Streams the matches of a proximity query into the two
+    result CSV files as the join produces them. The files
+    are only created once the first match arrives; I/O
+    errors surface as UncheckedIOException.
+
+    Matches are buffered for one document at a time and
+    written when the join finishes that document, x...y
+    matches first and y...x matches second. The "Exact
+    Phrase" column is cut out of the memory-mapped source
+    file using the token offsets recorded at build time, so
+    each document is opened once per query. Cutting out the
+    phrases and writing the rows are timed apart, as the
+    snippet and csv phases of IndexMetrics.
+*/
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public final class ProximityCsvWriter
+        implements PositionalJoin.MatchCollector, PositionalIntersection.SpanCollector, AutoCloseable {
+    private final IndexReader index;
+    private final String resultPath;
+    private final String detailedPath;
+
+    private PrintWriter resultWriter;
+    private PrintWriter detailedWriter;
+    private long matchCount;
+
+    // Pairs of (first position, second position) of the current document, per direction.
+    private int[] xFirst = new int[32];
+    private int xFirstLength;
+    private int[] yFirst = new int[32];
+    private int yFirstLength;
+
+    private final StringBuilder phrase = new StringBuilder();
+
+    // Exact phrases of the current document's matches, x...y ones first.
+    private String[] phrases = new String[16];
+
+    // Time spent in the snippet and CSV phases, which the join time excludes.
+    private long writeNanos;
+
+    /*
+     * With recordMatches, every row written as varints (DocID delta, first
+     * position, second - first position), for a QueryCache to replay.
+     */
+    private byte[] recorded;
+    private int recordedLength;
+    private int lastRecordedDocID;
+
+    public ProximityCsvWriter(IndexReader index, String outputDirectory, String x, String y, int k) {
+        this(index, outputDirectory, PositionalIndex.proximityQueryName(x, y, k));
+    }
+
+    // Writes into the files <outputDirectory>\<queryName>_<outputFiles[i]>.
+    public ProximityCsvWriter(IndexReader index, String outputDirectory, String queryName) {
+        this.index = index;
+        String prefix = outputDirectory + "\\" + queryName + "_";
+        this.resultPath = prefix + PositionalIndex.outputFiles[0];
+        this.detailedPath = prefix + PositionalIndex.outputFiles[1];
+    }
+
+    // Writes the rows without the CSV headers into the given writers, as a shard worker does.
+    public ProximityCsvWriter(IndexReader index, PrintWriter resultWriter, PrintWriter detailedWriter) {
+        this.index = index;
+        this.resultPath = null;
+        this.detailedPath = null;
+        this.resultWriter = resultWriter;
+        this.detailedWriter = detailedWriter;
+    }
+
+    public long getMatchCount() {
+        return this.matchCount;
+    }
+
+    // Nanoseconds spent cutting out phrases and writing rows so far.
+    public long getWriteNanos() {
+        return this.writeNanos;
+    }
+
+    /*
+     * Appends rows rendered by another writer, such as a chunk of one shard's
+     * rows, to the detailed file if detailed and to the result file
+     * otherwise. Rows appended this way are not recorded, and are counted by
+     * appendedMatches.
+     */
+    public void appendRows(boolean detailed, String rows) {
+        if (this.resultWriter == null) {
+            open();
+        }
+        (detailed ? this.detailedWriter : this.resultWriter).write(rows);
+        this.recorded = null;
+    }
+
+    // Counts matchCount matches whose rows were added through appendRows.
+    public void appendedMatches(long matchCount) {
+        this.matchCount += matchCount;
+    }
+
+    // Keeps an encoded copy of every row from now on, see getRecordedMatches.
+    public void recordMatches() {
+        if (this.recorded == null) {
+            this.recorded = new byte[64];
+        }
+    }
+
+    // The rows written since recordMatches, in the encoding replay reads, or null if they were not all recorded.
+    public byte[] getRecordedMatches() {
+        return this.recorded == null ? null : Arrays.copyOf(this.recorded, this.recordedLength);
+    }
+
+    /*
+     * Writes the rows of matches, as returned by getRecordedMatches, again:
+     * the same rows in the same order, with the phrases cut out of the
+     * source files anew, but without running the query.
+     */
+    public void replay(byte[] matches) {
+        int[] offset = new int[1];
+        int docID = 0;
+        while (offset[0] < matches.length) {
+            int nextDocID = docID + readVInt(matches, offset);
+            if (nextDocID != docID && docID != 0) {
+                endDocument(docID);
+            }
+            docID = nextDocID;
+            int first = readVInt(matches, offset);
+            xFirst(docID, first, first + readVInt(matches, offset));
+        }
+        if (docID != 0) {
+            endDocument(docID);
+        }
+    }
+
+    public void xFirst(int docID, int xPosition, int yPosition) {
+        if (this.xFirstLength + 2 > this.xFirst.length) {
+            this.xFirst = Arrays.copyOf(this.xFirst, this.xFirst.length * 2);
+        }
+        this.xFirst[this.xFirstLength++] = xPosition;
+        this.xFirst[this.xFirstLength++] = yPosition;
+    }
+
+    public void yFirst(int docID, int yPosition, int xPosition) {
+        if (this.yFirstLength + 2 > this.yFirst.length) {
+            this.yFirst = Arrays.copyOf(this.yFirst, this.yFirst.length * 2);
+        }
+        this.yFirst[this.yFirstLength++] = yPosition;
+        this.yFirst[this.yFirstLength++] = xPosition;
+    }
+
+    // A phrase or window match; written like an x...y match from start to end.
+    public void span(int docID, int start, int end) {
+        xFirst(docID, start, end);
+    }
+
+    public void endDocument(int docID) {
+        if (this.xFirstLength == 0 && this.yFirstLength == 0) {
+            return;
+        }
+
+        String path = this.index.getDocumentPath(docID);
+        TokenOffsets offsets = this.index.getTokenOffsets(docID);
+        int phraseCount = (this.xFirstLength + this.yFirstLength) / 2;
+        if (phraseCount > this.phrases.length) {
+            this.phrases = new String[Math.max(phraseCount, this.phrases.length * 2)];
+        }
+        IndexMetrics.PhaseEvent snippet = IndexMetrics.begin(IndexMetrics.Phase.SNIPPET);
+        long mappedBytes;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            mappedBytes = channel.size();
+            ByteBuffer text = channel.map(FileChannel.MapMode.READ_ONLY, 0, mappedBytes);
+            extractPhrases(text, offsets, this.xFirst, this.xFirstLength, 0);
+            extractPhrases(text, offsets, this.yFirst, this.yFirstLength, this.xFirstLength / 2);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("File " + path + " not found", ex);
+        }
+        this.writeNanos += IndexMetrics.end(snippet, phraseCount, mappedBytes);
+
+        IndexMetrics.PhaseEvent csv = IndexMetrics.begin(IndexMetrics.Phase.CSV);
+        if (this.resultWriter == null) {
+            open();
+        }
+        writeMatches(docID, path, this.xFirst, this.xFirstLength, 0);
+        writeMatches(docID, path, this.yFirst, this.yFirstLength, this.xFirstLength / 2);
+        this.writeNanos += IndexMetrics.end(csv, phraseCount, 0);
+
+        this.matchCount += phraseCount;
+        this.xFirstLength = 0;
+        this.yFirstLength = 0;
+    }
+
+    public void close() {
+        if (this.resultWriter != null) {
+            this.resultWriter.close();
+        }
+        if (this.detailedWriter != null) {
+            this.detailedWriter.close();
+        }
+    }
+
+    // Creates the CSV files and prints their headers on the first match.
+    private void open() {
+        try {
+            this.resultWriter = new PrintWriter(this.resultPath, "UTF-8");
+            this.detailedWriter = new PrintWriter(this.detailedPath, "UTF-8");
+        } catch (IOException ex) {
+            close();
+            throw new UncheckedIOException(ex);
+        }
+
+        // Print CSV Headers
+        this.resultWriter.println("DocID,First Position,Second Position");
+        this.detailedWriter.println("DocID,Filepath,First Position,Second Position,Exact Phrase");
+    }
+
+    // Cuts out the phrase of every pair into phrases, from index firstPhrase on.
+    private void extractPhrases(ByteBuffer text, TokenOffsets offsets, int[] pairs, int length, int firstPhrase) {
+        for (int i = 0; i < length; i += 2) {
+            this.phrases[firstPhrase + i / 2] = extractPhrase(text, offsets, pairs[i], pairs[i + 1]);
+        }
+    }
+
+    private void writeMatches(int docID, String path, int[] pairs, int length, int firstPhrase) {
+        for (int i = 0; i < length; i += 2) {
+            this.resultWriter.println(docID + "," + pairs[i] + "," + pairs[i + 1]);
+            this.detailedWriter.println(docID + "," + path + "," + pairs[i] + "," + pairs[i + 1] + ","
+                    + this.phrases[firstPhrase + i / 2]);
+        }
+        if (this.recorded != null) {
+            record(docID, pairs, length);
+        }
+    }
+
+    private void record(int docID, int[] pairs, int length) {
+        if (this.recordedLength + length / 2 * 15 > this.recorded.length) {
+            this.recorded = Arrays.copyOf(this.recorded,
+                    Math.max(this.recordedLength + length / 2 * 15, this.recorded.length * 2));
+        }
+        for (int i = 0; i < length; i += 2) {
+            this.recordedLength = PostingsList.writeVInt(this.recorded, this.recordedLength,
+                    docID - this.lastRecordedDocID);
+            this.recordedLength = PostingsList.writeVInt(this.recorded, this.recordedLength, pairs[i]);
+            this.recordedLength = PostingsList.writeVInt(this.recorded, this.recordedLength, pairs[i + 1] - pairs[i]);
+            this.lastRecordedDocID = docID;
+        }
+    }
+
+    // Reads a varint written by PostingsList.writeVInt at offset[0] and moves offset[0] past it.
+    private static int readVInt(byte[] buffer, int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /*
+     * The words from position first to position last joined by single
+     * spaces, in their original case, i.e. the tokens the index was built
+     * from without the symbols, numbers and white space between them.
+     */
+    String extractPhrase(ByteBuffer text, TokenOffsets offsets, int first, int last) {
+        this.phrase.setLength(0);
+        if (offsets == null || last > offsets.getTokenCount()) {
+            return "";
+        }
+        int offset = offsets.offsetOf(first);
+        int limit = text.limit();
+        for (int position = first; position <= last && offset < limit; position++) {
+            // Skip to the start of the next word.
+            while (offset < limit && !PositionalIndex.isLetter(text.get(offset))) {
+                offset++;
+            }
+            if (this.phrase.length() > 0) {
+                this.phrase.append(' ');
+            }
+            while (offset < limit && PositionalIndex.isLetter(text.get(offset))) {
+                this.phrase.append((char) text.get(offset++));
+            }
+        }
+        return this.phrase.toString();
+    }
+} // class
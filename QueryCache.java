@@ -0,0 +1,277 @@
+/*
+    Size-bounded cache of query results for the long-running
+    query mode, keyed on the normalized query: its type, its
+    lowercased words in order (so the direction of a
+    proximity query) and k, i.e. the name of its output
+    files.
+
+    An entry holds the match count and the rows as written
+    by ProximityCsvWriter.recordMatches, a few bytes per
+    match, optionally with the rendered contents of the two
+    CSV files, and the size and modification time the files
+    had once written. A repeat query whose files are still
+    as written is answered without touching them; otherwise
+    the files are rewritten from the cached contents, or
+    from the cached rows without running the join.
+
+    Entries are evicted least recently used first once their
+    estimated size exceeds the budget. Like TinyLFU, a new
+    entry is only admitted in place of one it is requested
+    more often than, counted in a small count-min sketch, so
+    a burst of one-off queries does not flush the queries
+    asked all day. Every entry remembers the change count of
+    the index it was computed on and the whole cache is
+    dropped once the index changes.
+*/
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+
+public final class QueryCache {
+    // Estimated bytes of an entry besides its arrays and key: objects, headers and map node.
+    static final int ENTRY_OVERHEAD = 160;
+
+    // The cached result of one query.
+    static final class Entry {
+        final String key;
+        final long indexVersion;
+        final long matchCount;
+
+        // Rows in the encoding of ProximityCsvWriter.recordMatches, or null if only the files are kept.
+        final byte[] matches;
+
+        // Contents of the result and the detailed CSV file, or null if not kept.
+        final byte[][] files;
+
+        // Size and modification time of each output file right after it was written.
+        final long[] fileStamps;
+
+        Entry(String key, long indexVersion, long matchCount, byte[] matches, byte[][] files, long[] fileStamps) {
+            this.key = key;
+            this.indexVersion = indexVersion;
+            this.matchCount = matchCount;
+            this.matches = matches;
+            this.files = files;
+            this.fileStamps = fileStamps;
+        }
+
+        long sizeInBytes() {
+            long size = ENTRY_OVERHEAD + 2L * this.key.length() + 8L * this.fileStamps.length;
+            if (this.matches != null) {
+                size += this.matches.length;
+            }
+            if (this.files != null) {
+                for (byte[] file : this.files) {
+                    size += file.length;
+                }
+            }
+            return size;
+        }
+    }
+
+    private final long budgetBytes;
+    private final boolean keepFiles;
+    private final LongSupplier indexVersion;
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final FrequencySketch frequencies = new FrequencySketch();
+    private long sizeInBytes;
+    private long seenVersion;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    /*
+     * A cache of at most budgetBytes of entries; with keepFiles the rendered
+     * CSV files are kept too. indexVersion gives the current change count of
+     * the index, see SegmentedIndex.getChangeCount.
+     */
+    QueryCache(long budgetBytes, boolean keepFiles, LongSupplier indexVersion) {
+        this.budgetBytes = budgetBytes;
+        this.keepFiles = keepFiles;
+        this.indexVersion = indexVersion;
+        this.seenVersion = indexVersion.getAsLong();
+    }
+
+    // Whether entries carry the rendered CSV files.
+    boolean keepsFiles() {
+        return this.keepFiles;
+    }
+
+    // The change count results computed now are valid for; read it before running the query.
+    long currentVersion() {
+        return this.indexVersion.getAsLong();
+    }
+
+    // The entry for key computed on the current index, or null; counts a hit or a miss.
+    synchronized Entry get(String key) {
+        dropIfChanged();
+        this.frequencies.increment(key);
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return entry;
+    }
+
+    /*
+     * Adds the result of a query computed on index version, unless the index
+     * has changed since, the entry is larger than the budget, or making room
+     * would evict an entry requested at least as often.
+     */
+    synchronized void put(Entry entry) {
+        dropIfChanged();
+        if (entry.indexVersion != this.seenVersion) {
+            return;
+        }
+        long size = entry.sizeInBytes();
+        if (size > this.budgetBytes) {
+            this.rejections++;
+            return;
+        }
+        Entry previous = this.entries.remove(entry.key);
+        if (previous != null) {
+            this.sizeInBytes -= previous.sizeInBytes();
+        }
+
+        int frequency = this.frequencies.frequency(entry.key);
+        Iterator<Entry> leastRecentlyUsed = this.entries.values().iterator();
+        long freed = 0;
+        int victims = 0;
+        while (this.sizeInBytes - freed + size > this.budgetBytes) {
+            Entry victim = leastRecentlyUsed.next();
+            if (this.frequencies.frequency(victim.key) >= frequency) {
+                this.rejections++;
+                return;
+            }
+            freed += victim.sizeInBytes();
+            victims++;
+        }
+
+        // Admitted: evict the victims found above.
+        leastRecentlyUsed = this.entries.values().iterator();
+        for (int i = 0; i < victims; i++) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+        this.evictions += victims;
+        this.sizeInBytes += size - freed;
+        this.entries.put(entry.key, entry);
+    }
+
+    synchronized void clear() {
+        this.entries.clear();
+        this.sizeInBytes = 0;
+    }
+
+    // One line with the hit and miss counters and the size of the cache.
+    synchronized String summary() {
+        long lookups = this.hits + this.misses;
+        return String.format("cache %d hits, %d misses (%.1f%% hit rate), %d evictions, %d rejections, "
+                + "%d entries, %d of %d bytes", this.hits, this.misses,
+                lookups == 0 ? 0.0 : 100.0 * this.hits / lookups, this.evictions, this.rejections,
+                this.entries.size(), this.sizeInBytes, this.budgetBytes);
+    }
+
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    synchronized long getMisses() {
+        return this.misses;
+    }
+
+    // Size and modification time of every file, as stored in Entry.fileStamps.
+    static long[] stamp(Path[] files) throws IOException {
+        long[] stamps = new long[2 * files.length];
+        for (int i = 0; i < files.length; i++) {
+            stamps[2 * i] = Files.size(files[i]);
+            stamps[2 * i + 1] = Files.getLastModifiedTime(files[i]).toMillis();
+        }
+        return stamps;
+    }
+
+    // Whether files still have the size and modification time recorded in stamps.
+    static boolean unchanged(Path[] files, long[] stamps) {
+        try {
+            return Arrays.equals(stamp(files), stamps);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void dropIfChanged() {
+        long version = this.indexVersion.getAsLong();
+        if (version != this.seenVersion) {
+            this.seenVersion = version;
+            clear();
+        }
+    }
+
+    /*
+     * Count-min sketch of how often each key was requested: four 4-bit
+     * counters per key in a table of 16 counters per long. Every counter is
+     * halved after RESET_INTERVAL increments, so old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final int TABLE_LONGS = 1 << 10;
+        private static final int RESET_INTERVAL = 10 * TABLE_LONGS * 16 / 4;
+        private static final long[] SEEDS = { 0x97cb3127L, 0xdd2e2ae5L, 0xc2b2ae35L, 0x27d4eb2fL };
+
+        private final long[] table = new long[TABLE_LONGS];
+        private int additions;
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                int shift = counterShift(hash, i);
+                if (((this.table[index] >>> shift) & 0xF) < 15) {
+                    this.table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions == RESET_INTERVAL) {
+                halve();
+            }
+        }
+
+        // The smallest of the key's counters, at most 15.
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, (int) ((this.table[index(hash, i)] >>> counterShift(hash, i)) & 0xF));
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+            }
+            this.additions /= 2;
+        }
+
+        private static int index(int hash, int i) {
+            long mixed = (hash + SEEDS[i]) * SEEDS[i];
+            return (int) (mixed ^ (mixed >>> 32)) & (TABLE_LONGS - 1);
+        }
+
+        // Which of the 16 counters of the long, times 4.
+        private static int counterShift(int hash, int i) {
+            return ((hash >>> (8 * i)) & 0xF) << 2;
+        }
+    }
+} // class
@@ -0,0 +1,555 @@
+/*
+    Long-running query mode. The index is built or opened
+    once and then answers proximity queries from stdin, from
+    a batch file and from an HTTP endpoint on localhost.
+
+    A query is one line: "<first-word> <second-word> <k>",
+    a quoted phrase or "within <k> <word> <word>...". On a
+    SegmentedIndex, "add <path>" and "delete <path>" lines
+    change the index while other queries keep running; on a
+    LiveIndex, "add <path>" does. Either way each query reads
+    the snapshot that was current when it started.
+    Independent queries run concurrently on an executor that
+    uses virtual threads when the JVM has them. Every query
+    reports its latency, and each batch ends with a summary
+    of throughput and latency percentiles. Repeat queries are
+    answered from a QueryCache when one is configured.
+*/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+public final class QueryServer implements AutoCloseable {
+    private final IndexReader index;
+
+    // Shard workers answering the queries instead of index, or null.
+    private final ShardedIndex shards;
+    private final String outputDirectory;
+    private final ExecutorService executor;
+    private final int threadCount;
+
+    /*
+     * Queries writing the same CSV files are serialized on the same lock,
+     * picked by the hash of the query name from a fixed set, so the locks
+     * don't grow with the number of distinct queries.
+     */
+    private static final int OUTPUT_LOCK_COUNT = 256;
+    private final Object[] outputLocks = new Object[OUTPUT_LOCK_COUNT];
+
+    // Latencies of all queries answered so far, in a fixed-size histogram.
+    private final IndexMetrics.LatencyHistogram latencies = new IndexMetrics.LatencyHistogram();
+
+    // Results of earlier queries, or null to run every query.
+    private final QueryCache cache;
+
+    private HttpServer httpServer;
+
+    public QueryServer(IndexReader index, String outputDirectory, int threadCount) {
+        this(index, outputDirectory, threadCount, 0, false);
+    }
+
+    /*
+     * Same as above with a cache of up to cacheBytes of query results,
+     * including the rendered CSV files if cacheFiles; 0 disables the cache.
+     */
+    public QueryServer(IndexReader index, String outputDirectory, int threadCount, long cacheBytes,
+            boolean cacheFiles) {
+        this(index, null, outputDirectory, threadCount, cacheBytes, cacheFiles);
+    }
+
+    /*
+     * Same as above, answering queries by scatter-gather over the workers
+     * of shards. Their rows arrive rendered, so cached results keep the
+     * files.
+     */
+    public QueryServer(ShardedIndex shards, String outputDirectory, int threadCount, long cacheBytes) {
+        this(null, shards, outputDirectory, threadCount, cacheBytes, true);
+    }
+
+    private QueryServer(IndexReader index, ShardedIndex shards, String outputDirectory, int threadCount,
+            long cacheBytes, boolean cacheFiles) {
+        this.index = index;
+        this.shards = shards;
+        this.outputDirectory = outputDirectory;
+        this.executor = newExecutor(threadCount);
+        this.threadCount = threadCount;
+        for (int i = 0; i < OUTPUT_LOCK_COUNT; i++) {
+            this.outputLocks[i] = new Object();
+        }
+        if (cacheBytes <= 0) {
+            this.cache = null;
+        } else if (index instanceof SegmentedIndex) {
+            this.cache = new QueryCache(cacheBytes, cacheFiles, ((SegmentedIndex) index)::getChangeCount);
+        } else if (index instanceof LiveIndex) {
+            this.cache = new QueryCache(cacheBytes, cacheFiles, ((LiveIndex) index)::getChangeCount);
+        } else {
+            // Other indexes never change.
+            this.cache = new QueryCache(cacheBytes, cacheFiles, () -> 0);
+        }
+    }
+
+    // The outcome of one query.
+    public static final class QueryResult {
+        final String query;
+        final long matchCount;
+        final long latencyNanos;
+        final String error;
+
+        // What matchCount counts, such as "matches" or "documents added".
+        final String unit;
+
+        QueryResult(String query, long matchCount, long latencyNanos, String error) {
+            this(query, matchCount, latencyNanos, error, "matches");
+        }
+
+        QueryResult(String query, long matchCount, long latencyNanos, String error, String unit) {
+            this.query = query;
+            this.matchCount = matchCount;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        public String toString() {
+            String latency = String.format("%.3f ms", this.latencyNanos / 1_000_000.0);
+            if (this.error != null) {
+                return "[" + this.query + "] error: " + this.error + " (" + latency + ")";
+            }
+            return "[" + this.query + "] " + this.matchCount + " " + this.unit + " in " + latency;
+        }
+    }
+
+    /*
+     * An executor with one virtual thread per query on JVMs that support
+     * them (Java 21+), otherwise a fixed pool of threadCount threads.
+     */
+    static ExecutorService newExecutor(int threadCount) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(threadCount);
+        }
+    }
+
+    // Runs one query line asynchronously.
+    public CompletableFuture<QueryResult> submit(String line) {
+        return CompletableFuture.supplyAsync(() -> execute(line), this.executor);
+    }
+
+    /*
+     * Runs one query line on the calling thread. A line is one of
+     *     <first-word> <second-word> <k>      proximity query
+     *     "<word> <word>..."                  exact phrase
+     *     within <k> <word> <word>...         all words within k words
+     *     top <n> <first-word> <second-word> <k>
+     *                                         n best documents, see RankedSearch
+     *     add <path>                          index a file or directory
+     *     delete <path>                       delete an indexed file
+     */
+    public QueryResult execute(String line) {
+        long start = System.nanoTime();
+        String query = line.trim();
+        try {
+            if (query.startsWith("add ") || query.startsWith("delete ")) {
+                return record(change(query, start));
+            }
+
+            // A changing index is read through one snapshot, so changes committed meanwhile don't show up halfway.
+            IndexReader index = this.index instanceof LiveIndex ? ((LiveIndex) this.index).snapshot()
+                    : this.index instanceof SegmentedIndex ? ((SegmentedIndex) this.index).snapshot() : this.index;
+            ParsedQuery parsed = parse(query, index);
+            if (this.shards != null && query.startsWith("top ")) {
+                // The shards' rows would arrive in shard order, not merged by score.
+                throw new IllegalArgumentException("ranked queries are not supported on a sharded index");
+            }
+            String queryName = parsed.name;
+            ToLongFunction<ProximityCsvWriter> search = this.shards == null ? parsed.search
+                    : writer -> this.shards.search(query, writer);
+
+            synchronized (this.outputLocks[Math.floorMod(queryName.hashCode(), OUTPUT_LOCK_COUNT)]) {
+                QueryCache.Entry cached = this.cache == null ? null : this.cache.get(queryName);
+                if (cached != null) {
+                    long matchCount = answerFromCache(index, queryName, cached);
+                    long latency = System.nanoTime() - start;
+                    IndexMetrics.recordQuery(latency);
+                    return record(new QueryResult(query, matchCount, latency, null, "matches from cache"));
+                }
+
+                long indexVersion = this.cache == null ? 0
+                        : index instanceof LiveIndex.Snapshot ? ((LiveIndex.Snapshot) index).getGeneration()
+                        : index instanceof SegmentedIndex.Snapshot ? ((SegmentedIndex.Snapshot) index).getChangeCount()
+                        : this.cache.currentVersion();
+                clearOutputFiles(queryName);
+                ProximityCsvWriter writer = new ProximityCsvWriter(index, this.outputDirectory, queryName);
+                long matchCount;
+                try {
+                    if (this.cache != null) {
+                        writer.recordMatches();
+                    }
+                    matchCount = search.applyAsLong(writer);
+                } finally {
+                    writer.close();
+                }
+                // Without recorded rows the entry needs the files to rewrite them.
+                byte[] matches = writer.getRecordedMatches();
+                if (this.cache != null && (matches != null || this.cache.keepsFiles())) {
+                    this.cache.put(newCacheEntry(queryName, indexVersion, matchCount, matches));
+                }
+                return record(new QueryResult(query, matchCount, System.nanoTime() - start, null));
+            }
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException ex) {
+            return record(new QueryResult(query, 0, System.nanoTime() - start, ex.getMessage()));
+        } catch (IOException ex) {
+            return record(new QueryResult(query, 0, System.nanoTime() - start, ex.toString()));
+        }
+    }
+
+    // A query line parsed into the name of its output files and the search that answers it.
+    static final class ParsedQuery {
+        final String name;
+        final ToLongFunction<ProximityCsvWriter> search;
+
+        ParsedQuery(String name, ToLongFunction<ProximityCsvWriter> search) {
+            this.name = name;
+            this.search = search;
+        }
+    }
+
+    /*
+     * Parses a proximity, phrase or window query line into its search over
+     * index. Throws IllegalArgumentException if the line is not a query.
+     */
+    static ParsedQuery parse(String query, IndexReader index) {
+        String queryName;
+        ToLongFunction<ProximityCsvWriter> search;
+        if (query.startsWith("\"")) {
+            if (query.length() < 2 || !query.endsWith("\"")) {
+                throw new IllegalArgumentException("phrase must be enclosed in double quotes");
+            }
+            String[] words = parseWords(query.substring(1, query.length() - 1).trim().split("\\s+"), 0);
+            queryName = PositionalIndex.phraseQueryName(words);
+            search = writer -> PositionalIndex.phraseSearch(index, writer, words);
+        } else if (query.startsWith("top ")) {
+            String[] parts = query.split("\\s+");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("expected top <n> <first-word> <second-word> <k>");
+            }
+            int n = parsePositive(parts[1], "<n>");
+            int k = parseDistance(parts[4]);
+            String[] words = parseWords(Arrays.copyOfRange(parts, 2, 4), 0);
+            queryName = PositionalIndex.rankedQueryName(words[0], words[1], k, n);
+            search = writer -> {
+                PositionalIndex.rankedSearch(index, writer, words[0], words[1], k, n);
+                return writer.getMatchCount();
+            };
+        } else if (query.startsWith("within ")) {
+            String[] parts = query.split("\\s+");
+            if (parts.length < 4) {
+                throw new IllegalArgumentException("expected within <k> <word> <word>...");
+            }
+            int k = parseDistance(parts[1]);
+            String[] words = parseWords(parts, 2);
+            queryName = PositionalIndex.windowQueryName(words, k);
+            search = writer -> PositionalIndex.windowSearch(index, writer, words, k);
+        } else {
+            String[] parts = query.split("\\s+");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("expected <first-word> <second-word> <k>");
+            }
+            int k = parseDistance(parts[2]);
+            String[] words = parseWords(Arrays.copyOf(parts, 2), 0);
+            queryName = PositionalIndex.proximityQueryName(words[0], words[1], k);
+            search = writer -> PositionalIndex.proximitySearch(index, writer, words[0], words[1], k);
+        }
+        return new ParsedQuery(queryName, search);
+    }
+
+    /*
+     * Leaves the CSV files of a cached query as they are if nobody touched
+     * them since they were written, otherwise writes them again from the
+     * cached files or rows, whose paths are looked up in index. Returns the
+     * number of matches.
+     */
+    private long answerFromCache(IndexReader index, String queryName, QueryCache.Entry cached) throws IOException {
+        Path[] files = outputFiles(queryName);
+        if (QueryCache.unchanged(files, cached.fileStamps)) {
+            return cached.matchCount;
+        }
+        if (cached.files != null) {
+            for (int i = 0; i < files.length; i++) {
+                Files.write(files[i], cached.files[i]);
+            }
+        } else {
+            clearOutputFiles(queryName);
+            try (ProximityCsvWriter writer = new ProximityCsvWriter(index, this.outputDirectory, queryName)) {
+                writer.replay(cached.matches);
+            }
+        }
+        this.cache.put(new QueryCache.Entry(queryName, cached.indexVersion, cached.matchCount, cached.matches,
+                cached.files, QueryCache.stamp(files)));
+        return cached.matchCount;
+    }
+
+    // A cache entry for the query just written into the CSV files of queryName.
+    private QueryCache.Entry newCacheEntry(String queryName, long indexVersion, long matchCount, byte[] matches)
+            throws IOException {
+        Path[] files = outputFiles(queryName);
+        byte[][] contents = null;
+        if (this.cache.keepsFiles()) {
+            contents = new byte[files.length][];
+            for (int i = 0; i < files.length; i++) {
+                contents[i] = Files.readAllBytes(files[i]);
+            }
+        }
+        return new QueryCache.Entry(queryName, indexVersion, matchCount, matches, contents, QueryCache.stamp(files));
+    }
+
+    /*
+     * Runs an add or delete line against a SegmentedIndex, or an add line
+     * against a LiveIndex. Queries running meanwhile see the index as it was
+     * before the change.
+     */
+    private QueryResult change(String query, long start) {
+        boolean add = query.startsWith("add ");
+        File input = new File(query.substring(add ? 4 : 7).trim());
+        if (this.index instanceof LiveIndex) {
+            if (!add) {
+                throw new IllegalArgumentException("documents can't be deleted from an index being built");
+            }
+            int addedCount = ((LiveIndex) this.index).addDocuments(filesIn(input), this.threadCount);
+            return new QueryResult(query, addedCount, System.nanoTime() - start, null, "documents added");
+        }
+        if (!(this.index instanceof SegmentedIndex)) {
+            throw new IllegalArgumentException("only an index written by build can be changed");
+        }
+        SegmentedIndex segmentedIndex = (SegmentedIndex) this.index;
+        try {
+            if (!add) {
+                int deletedCount = segmentedIndex.deleteDocuments(Collections.singletonList(input.getPath()));
+                return new QueryResult(query, deletedCount, System.nanoTime() - start, null, "documents deleted");
+            }
+            List<String> paths = filesIn(input);
+            segmentedIndex.addDocuments(paths, this.threadCount);
+            return new QueryResult(query, paths.size(), System.nanoTime() - start, null, "documents added");
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // The files under input if it is a directory, or input itself.
+    private static List<String> filesIn(File input) {
+        ArrayList<String> paths = new ArrayList<String>();
+        if (input.isDirectory()) {
+            PositionalIndex.collectFilesInPath(input, paths);
+        } else {
+            paths.add(input.getPath());
+        }
+        return paths;
+    }
+
+    /*
+     * Submits every query line of in as it is read and prints each result,
+     * in input order, as soon as it and every result before it are done.
+     * Finishes with a summary whose throughput runs from the first submit
+     * to the last completion. Blank lines and lines starting with # are
+     * skipped; "quit" ends the batch early.
+     */
+    public void runBatch(BufferedReader in, PrintStream out) throws IOException {
+        IndexMetrics.LatencyHistogram batchLatencies = new IndexMetrics.LatencyHistogram();
+        AtomicLong lastCompletion = new AtomicLong();
+        long firstSubmit = -1;
+        // Completes once every result so far is printed; each result is chained onto it.
+        CompletableFuture<Void> printed = CompletableFuture.completedFuture(null);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.equals("quit") || line.equals("exit")) {
+                break;
+            }
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (firstSubmit < 0) {
+                firstSubmit = System.nanoTime();
+            }
+            CompletableFuture<String> result = submit(line).handle((answered, ex) -> {
+                lastCompletion.accumulateAndGet(System.nanoTime(), Math::max);
+                if (ex != null) {
+                    return "Query failed: " + ex;
+                }
+                batchLatencies.record(answered.latencyNanos);
+                return answered.toString();
+            });
+            printed = printed.thenCombine(result, (previous, text) -> {
+                out.println(text);
+                return null;
+            });
+        }
+        printed.join();
+        out.println(summary(batchLatencies, firstSubmit < 0 ? 0 : lastCompletion.get() - firstSubmit));
+    }
+
+    /*
+     * Serves GET /query?x=<first-word>&y=<second-word>&k=<k>,
+     * GET /query?q=<query line>, GET /stats and GET /metrics (the phase,
+     * latency histogram and JVM figures of IndexMetrics) on localhost.
+     */
+    public void startHttp(int port) throws IOException {
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.httpServer.createContext("/query", exchange -> {
+            Map<String, String> parameters = parseQueryString(exchange.getRequestURI().getRawQuery());
+            QueryResult result = execute(parameters.containsKey("q") ? parameters.get("q")
+                    : parameters.getOrDefault("x", "") + " " + parameters.getOrDefault("y", "") + " "
+                            + parameters.getOrDefault("k", ""));
+            respond(exchange, result.error == null ? 200 : 400, result.toString());
+        });
+        this.httpServer.createContext("/stats", exchange -> respond(exchange, 200, summary(this.latencies, -1)));
+        this.httpServer.createContext("/metrics", exchange -> respond(exchange, 200, IndexMetrics.report()));
+        this.httpServer.setExecutor(this.executor);
+        this.httpServer.start();
+    }
+
+    public int getHttpPort() {
+        return this.httpServer.getAddress().getPort();
+    }
+
+    public void close() {
+        if (this.httpServer != null) {
+            this.httpServer.stop(0);
+        }
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The number of queries in latencies, their rate over elapsedNanos
+     * (skipped if negative) and latency percentiles.
+     */
+    String summary(IndexMetrics.LatencyHistogram latencies, long elapsedNanos) {
+        long queryCount = latencies.getCount();
+        StringBuilder summary = new StringBuilder();
+        summary.append(queryCount).append(" queries");
+        if (elapsedNanos >= 0) {
+            summary.append(String.format(" in %.3f s (%.1f queries/s)", elapsedNanos / 1_000_000_000.0,
+                    queryCount / Math.max(elapsedNanos / 1_000_000_000.0, 1e-9)));
+        }
+        if (queryCount > 0) {
+            summary.append(String.format(", latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    latencies.percentile(0.50) / 1_000_000.0, latencies.percentile(0.90) / 1_000_000.0,
+                    latencies.percentile(0.99) / 1_000_000.0, latencies.getMax() / 1_000_000.0));
+        }
+        if (this.cache != null) {
+            summary.append(", ").append(this.cache.summary());
+        }
+        return summary.toString();
+    }
+
+    private QueryResult record(QueryResult result) {
+        this.latencies.record(result.latencyNanos);
+        return result;
+    }
+
+    private static int parseDistance(String k) {
+        return parsePositive(k, "<k>");
+    }
+
+    // value as a number greater than 0; name is the argument in the error message.
+    private static int parsePositive(String value, String name) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 1) {
+                throw new IllegalArgumentException(name + " must be greater than 0");
+            }
+            return number;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    // Lowercased words of parts[from..], which must only have alphabet letters and an optional trailing *.
+    private static String[] parseWords(String[] parts, int from) {
+        String[] words = new String[parts.length - from];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = parts[from + i].toLowerCase();
+            if (!PositionalIndex.isQueryWord(words[i])) {
+                throw new IllegalArgumentException("words must only have alphabet letters, optionally followed by *");
+            }
+        }
+        return words;
+    }
+
+    // Empties the CSV files of a query, so a query without matches leaves no stale results behind.
+    private void clearOutputFiles(String queryName) {
+        for (Path path : outputFiles(queryName)) {
+            try {
+                new PrintWriter(path.toString(), "UTF-8").close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    // The CSV files a query writes, as named by ProximityCsvWriter.
+    private Path[] outputFiles(String queryName) {
+        Path[] files = new Path[PositionalIndex.outputFiles.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = Paths.get(this.outputDirectory + "\\" + queryName + "_" + PositionalIndex.outputFiles[i]);
+        }
+        return files;
+    }
+
+    private static Map<String, String> parseQueryString(String rawQuery) throws UnsupportedEncodingException {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int split = pair.indexOf('=');
+            if (split > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                        URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+} // class
@@ -0,0 +1,224 @@
+/*
+    Ranked retrieval for two-term proximity queries: the n
+    documents where x and y occur within k words of each
+    other, best first, instead of every match.
+
+    A document scores BM25 for each of the two terms plus a
+    proximity score over every x, y pair at most k words
+    apart, each pair weighing 1 / d^2 for distance d, so
+    more and tighter pairs score higher (the BM25TP scheme).
+    The pair weights saturate like term frequency does in
+    BM25 and are capped by the rarer term's IDF, so a very
+    common pair cannot outweigh the terms themselves.
+
+    Documents are visited in DocID order by leapfrogging the
+    two cursors and the best n so far are kept in a bounded
+    min-heap. As in MaxScore, a document's positions are
+    only decoded once an upper bound of its score beats the
+    n-th best score: first a bound from the two term
+    frequencies alone, then one with the exact BM25 part.
+    Most documents of a frequent pair fall out at the first
+    bound once the heap holds a few good ones, so they cost
+    a docID and two freqs read from the postings, and the
+    visit stops early if no document at all could beat it.
+*/
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+public final class RankedSearch {
+    // BM25 term frequency saturation and document length normalization.
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+
+    // One document of a ranking and the parts of its score.
+    public static final class ScoredDocument {
+        final int docID;
+        final double score;
+        final double termScore;
+        final double proximityScore;
+
+        // Number of x, y pairs at most k words apart.
+        final int pairCount;
+
+        ScoredDocument(int docID, double termScore, double proximityScore, int pairCount) {
+            this.docID = docID;
+            this.score = termScore + proximityScore;
+            this.termScore = termScore;
+            this.proximityScore = proximityScore;
+            this.pairCount = pairCount;
+        }
+    }
+
+    // The best documents of a query, and how much of the postings it took to find them.
+    public static final class Ranking {
+        final ScoredDocument[] documents;
+
+        // Documents holding both terms.
+        final int candidateCount;
+
+        // Candidates whose positions were decoded and scored; the others could not make the top n.
+        final int scoredCount;
+
+        Ranking(ScoredDocument[] documents, int candidateCount, int scoredCount) {
+            this.documents = documents;
+            this.candidateCount = candidateCount;
+            this.scoredCount = scoredCount;
+        }
+    }
+
+    // Worst first: lower score, then higher DocID, since a tie goes to the earlier document.
+    static final Comparator<ScoredDocument> WORST_FIRST = Comparator.<ScoredDocument>comparingDouble(d -> d.score)
+            .thenComparing(Comparator.<ScoredDocument>comparingInt(d -> d.docID).reversed());
+
+    private RankedSearch() {
+    }
+
+    /*
+     * The n best documents of the postings x and y of index, for pairs at
+     * most k words apart, best first. Both cursors must be fresh.
+     */
+    public static Ranking topDocuments(IndexReader index, PostingsCursor x, PostingsCursor y, int k, int n) {
+        int documentCount = Math.max(index.getDocumentCount(), 1);
+        double averageLength = (double) index.getTokenCount() / documentCount;
+        double xIdf = idf(documentCount, x.documentCount());
+        double yIdf = idf(documentCount, y.documentCount());
+        double proximityWeight = Math.min(xIdf, yIdf);
+        // A document can't score more than this whatever its frequencies and length.
+        double maxScore = (xIdf + yIdf + proximityWeight) * (K1 + 1);
+        double shortest = K1 * (1 - B);
+        double pairWeightBound = 2 * pairWeightSum(k);
+
+        PriorityQueue<ScoredDocument> top = new PriorityQueue<ScoredDocument>(n + 1, WORST_FIRST);
+        double threshold = -1;
+        int candidateCount = 0;
+        int scoredCount = 0;
+        int xDoc = x.nextDoc();
+        int yDoc = y.nextDoc();
+        while (xDoc != PostingsCursor.NO_MORE_DOCS && yDoc != PostingsCursor.NO_MORE_DOCS) {
+            if (xDoc < yDoc) {
+                xDoc = x.advance(yDoc);
+                continue;
+            }
+            if (yDoc < xDoc) {
+                yDoc = y.advance(xDoc);
+                continue;
+            }
+            candidateCount++;
+            int docID = xDoc;
+            int xFreq = x.freq();
+            int yFreq = y.freq();
+            // Every x position has at most two y positions d words away, and the other way round.
+            double pairBound = Math.min((double) xFreq * yFreq, Math.min(xFreq, yFreq) * pairWeightBound);
+
+            // Bound with the shortest possible document, from the frequencies only.
+            if (threshold < 0 || termScore(xIdf, xFreq, shortest) + termScore(yIdf, yFreq, shortest)
+                    + saturate(proximityWeight, pairBound, shortest) > threshold) {
+                int length = index.getDocumentLength(docID);
+                double norm = averageLength > 0 ? K1 * (1 - B + B * length / averageLength) : K1;
+                double termScore = termScore(xIdf, xFreq, norm) + termScore(yIdf, yFreq, norm);
+                if (threshold < 0 || termScore + saturate(proximityWeight, pairBound, norm) > threshold) {
+                    scoredCount++;
+                    double[] pairWeight = new double[1];
+                    int pairCount = pairs(x.positions(), xFreq, y.positions(), yFreq, k, pairWeight, null, 0);
+                    if (pairCount > 0) {
+                        top.add(new ScoredDocument(docID, termScore,
+                                saturate(proximityWeight, pairWeight[0], norm), pairCount));
+                        if (top.size() > n) {
+                            top.poll();
+                        }
+                        if (top.size() == n) {
+                            threshold = top.peek().score;
+                            if (threshold >= maxScore) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            xDoc = x.nextDoc();
+            yDoc = y.nextDoc();
+        }
+
+        ScoredDocument[] documents = top.toArray(new ScoredDocument[0]);
+        Arrays.sort(documents, WORST_FIRST.reversed());
+        return new Ranking(documents, candidateCount, scoredCount);
+    }
+
+    /*
+     * Finds the pairs of one document's sorted positions xs and ys at most
+     * k words apart. Adds their 1 / d^2 weights to weight[0] and returns how
+     * many there are. If collector is not null, every pair is also passed
+     * to it as an x...y or y...x match of docID.
+     *
+     * As in PositionalJoin, the shorter list drives and the window in the
+     * longer one is found by galloping when it is much longer.
+     */
+    static int pairs(int[] xs, int xCount, int[] ys, int yCount, int k, double[] weight,
+            PositionalJoin.MatchCollector collector, int docID) {
+        boolean xDrives = xCount <= yCount;
+        int[] drivers = xDrives ? xs : ys;
+        int driverCount = xDrives ? xCount : yCount;
+        int[] others = xDrives ? ys : xs;
+        int otherCount = xDrives ? yCount : xCount;
+        boolean gallop = otherCount / Math.max(driverCount, 1) >= PositionalJoin.GALLOP_RATIO;
+
+        int pairCount = 0;
+        double sum = 0;
+        int from = 0;
+        for (int i = 0; i < driverCount && from < otherCount; i++) {
+            int position = drivers[i];
+            from = PositionalJoin.seek(others, from, otherCount, position - k, gallop);
+            for (int j = from; j < otherCount && others[j] - position <= k; j++) {
+                int distance = Math.abs(others[j] - position);
+                if (distance == 0) {
+                    continue;
+                }
+                pairCount++;
+                sum += 1.0 / ((double) distance * distance);
+                if (collector == null) {
+                    continue;
+                }
+                int xPosition = xDrives ? position : others[j];
+                int yPosition = xDrives ? others[j] : position;
+                if (xPosition < yPosition) {
+                    collector.xFirst(docID, xPosition, yPosition);
+                } else {
+                    collector.yFirst(docID, yPosition, xPosition);
+                }
+            }
+        }
+        weight[0] += sum;
+        return pairCount;
+    }
+
+    // Probabilistic IDF of a term in documentFrequency of documentCount documents; never negative.
+    static double idf(int documentCount, int documentFrequency) {
+        return Math.log(1 + (documentCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+    }
+
+    // BM25 of one term, with norm = K1 * (1 - B + B * length / average length).
+    static double termScore(double idf, double frequency, double norm) {
+        return idf * frequency * (K1 + 1) / (frequency + norm);
+    }
+
+    // Proximity score of pairs weighing pairWeight in total, saturating like termScore.
+    static double saturate(double weight, double pairWeight, double norm) {
+        return pairWeight == 0 ? 0 : termScore(weight, pairWeight, norm);
+    }
+
+    /*
+     * At least the sum of 1 / d^2 for d from 1 to k, the most the pairs of one
+     * position on one side can weigh. Past 64 terms the rest of the sum is
+     * bounded by 1 / 64 instead of adding it up.
+     */
+    static double pairWeightSum(int k) {
+        int terms = Math.min(k, 64);
+        double sum = 0;
+        for (int d = 1; d <= terms; d++) {
+            sum += 1.0 / ((double) d * d);
+        }
+        return k > terms ? sum + 1.0 / terms : sum;
+    }
+} // class
@@ -0,0 +1,904 @@
+/*
+    A positional index made of immutable segments, so new
+    documents can be added to it without rebuilding it.
+
+    Every segment is a complete index in the IndexFormat
+    layout, covering the consecutive DocIDs docBase + 1 to
+    docBase + docCount. New documents are tokenized into an
+    in-memory PositionalIndex and flushed as a new segment
+    behind the last one. Deleting a document only sets its
+    bit in the segment's tombstones, which queries skip.
+
+    A background thread merges MERGE_FACTOR adjacent
+    segments of the same size level into one, and rewrites a
+    segment once most of its documents are deleted. Merged
+    segments keep a slot for every DocID, deleted documents
+    included, so DocIDs never change once they are given out.
+
+    Queries read the current segment list, which is replaced
+    as a whole whenever a flush, delete or merge is committed,
+    so they never wait for indexing. A query that looks up
+    paths and offsets after its postings takes a Snapshot of
+    the list and reads everything through it. Only one
+    process may change an index at a time.
+
+    Once buildPairIndex has given the segments a pair index,
+    every segment added or merged later gets one of the same
+    frequent terms, so pair queries keep being covered.
+*/
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public final class SegmentedIndex implements IndexReader, AutoCloseable {
+    // Number of adjacent segments of the same level merged into one.
+    static final int MERGE_FACTOR = 4;
+
+    // Segments up to this size are all on the lowest level; each level above is MERGE_FACTOR times larger.
+    static final long LEVEL_FLOOR_BYTES = 1L << 20;
+
+    // A segment with a larger fraction of deleted documents is rewritten without them.
+    static final double MAX_DELETED_FRACTION = 0.5;
+
+    /*
+     * One segment as listed in segments.bin. Segments are never modified:
+     * a delete replaces the Segment with a copy holding new tombstones.
+     */
+    static final class Segment {
+        final int number;
+        final int docBase;
+        final int docCount;
+        final int deleteGeneration;
+        final BitSet deletes;
+        final DocBitmap deletedDocuments;
+        final DiskIndex index;
+
+        Segment(int number, int docBase, int docCount, int deleteGeneration, BitSet deletes, DiskIndex index) {
+            this.number = number;
+            this.docBase = docBase;
+            this.docCount = docCount;
+            this.deleteGeneration = deleteGeneration;
+            this.deletes = deletes;
+            this.deletedDocuments = DocBitmap.of(deletes);
+            this.index = index;
+        }
+
+        // Size level used by the merge policy.
+        int level() {
+            long size = this.index.getSizeInBytes();
+            if (size <= LEVEL_FLOOR_BYTES) {
+                return 0;
+            }
+            return 1 + (int) (Math.log((double) size / LEVEL_FLOOR_BYTES) / Math.log(MERGE_FACTOR));
+        }
+
+        int[] toRow() {
+            return new int[] { this.number, this.docBase, this.docCount, this.deleteGeneration };
+        }
+    }
+
+    private final Path directory;
+
+    // The committed segments in DocID order; replaced as a whole, never modified.
+    private volatile List<Segment> segments;
+
+    // Held while committing a change; also guards nextSegmentNumber and runningMerge.
+    private final Object commitLock = new Object();
+    private int nextSegmentNumber;
+
+    // Number of adds and deletes committed since the index was opened; merges don't change what queries find.
+    private volatile long changeCount;
+
+    // Runs one merge at a time, created by the first merge.
+    private ExecutorService mergeExecutor;
+    private Future<?> runningMerge;
+    private boolean closed;
+
+    private SegmentedIndex(Path directory, int nextSegmentNumber, List<Segment> segments) {
+        this.directory = directory;
+        this.nextSegmentNumber = nextSegmentNumber;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    // Opens the segmented index in directory; fails if any file is missing or of another version.
+    public static SegmentedIndex open(Path directory) throws IOException {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        int nextSegmentNumber = IndexFormat.readSegments(directory, rows);
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (int[] row : rows) {
+            Path segmentDirectory = directory.resolve(IndexFormat.segmentName(row[0]));
+            BitSet deletes = row[3] == 0 ? new BitSet()
+                    : IndexFormat.readDeletes(segmentDirectory.resolve(IndexFormat.deletesName(row[3])));
+            segments.add(new Segment(row[0], row[1], row[2], row[3], deletes, DiskIndex.open(segmentDirectory)));
+        }
+        return new SegmentedIndex(directory, nextSegmentNumber, segments);
+    }
+
+    /*
+     * Creates an empty segmented index in directory. The segments of a
+     * segmented index already there are removed.
+     */
+    public static SegmentedIndex create(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        if (Files.exists(directory.resolve(IndexFormat.SEGMENTS_FILE))) {
+            ArrayList<int[]> rows = new ArrayList<int[]>();
+            try {
+                IndexFormat.readSegments(directory, rows);
+            } catch (IOException ex) {
+                // An unreadable list is simply replaced.
+            }
+            for (int[] row : rows) {
+                deleteSegmentFiles(directory.resolve(IndexFormat.segmentName(row[0])));
+            }
+        }
+        IndexFormat.writeSegments(directory, 1, new ArrayList<int[]>());
+        return new SegmentedIndex(directory, 1, new ArrayList<Segment>());
+    }
+
+    /*
+     * Tokenizes the files in paths into a new segment and commits it. A file
+     * that is already indexed is replaced: its previous version is deleted.
+     * Queries keep running on the previous segments meanwhile.
+     */
+    public void addDocuments(List<String> paths, int threadCount) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        addSegment(PositionalIndex.buildPositionalIndex(paths, threadCount), paths);
+    }
+
+    // Writes the index files of a new segment into its directory.
+    interface SegmentWriter {
+        void write(Path segmentDirectory) throws IOException;
+    }
+
+    // Flushes an in-memory index whose DocID n is the file paths.get(n - 1) as a new segment.
+    public void addSegment(PositionalIndex memory, List<String> paths) throws IOException {
+        addSegment(paths, segmentDirectory -> memory.writePositionalIndex(segmentDirectory, paths));
+    }
+
+    // Same as above for a segment whose files writer writes, e.g. with an ExternalIndexBuilder.
+    void addSegment(List<String> paths, SegmentWriter writer) throws IOException {
+        int number;
+        synchronized (this.commitLock) {
+            number = this.nextSegmentNumber++;
+        }
+        Path segmentDirectory = this.directory.resolve(IndexFormat.segmentName(number));
+        writer.write(segmentDirectory);
+        DiskIndex index = openSegment(segmentDirectory, pairIndexOf(this.segments));
+
+        synchronized (this.commitLock) {
+            List<Segment> current = this.segments;
+            int docBase = getDocumentCount(current);
+            ArrayList<Segment> next = withDeletes(current, new HashSet<String>(paths), new int[1]);
+            next.add(new Segment(number, docBase, paths.size(), 0, new BitSet(), index));
+            commit(next);
+            this.changeCount++;
+        }
+        maybeMerge();
+    }
+
+    /*
+     * Writes a pair index (see PairIndex) of the terms occurring at least
+     * minCount times, for distances 1 to maxK, into every segment and returns
+     * the number of pair occurrences stored. Meant for a newly built index,
+     * before it is queried.
+     */
+    public long buildPairIndex(long minCount, int maxK) throws IOException {
+        List<String> terms = PairIndex.frequentTerms(this, minCount);
+        long occurrenceCount = 0;
+        synchronized (this.commitLock) {
+            List<Segment> current = this.segments;
+            ArrayList<Segment> next = new ArrayList<Segment>(current.size());
+            for (Segment segment : current) {
+                Path segmentDirectory = this.directory.resolve(IndexFormat.segmentName(segment.number));
+                occurrenceCount += PairIndex.write(segment.index, terms, minCount, maxK,
+                        segmentDirectory.resolve(IndexFormat.PAIRS_DIRECTORY));
+                next.add(new Segment(segment.number, segment.docBase, segment.docCount, segment.deleteGeneration,
+                        segment.deletes, DiskIndex.open(segmentDirectory)));
+            }
+            commit(next);
+            for (Segment segment : current) {
+                segment.index.close();
+            }
+        }
+        return occurrenceCount;
+    }
+
+    // Deletes the documents read from the given files and returns how many there were.
+    public int deleteDocuments(Collection<String> paths) throws IOException {
+        int[] deletedCount = new int[1];
+        synchronized (this.commitLock) {
+            List<Segment> next = withDeletes(this.segments, new HashSet<String>(paths), deletedCount);
+            if (deletedCount[0] > 0) {
+                commit(next);
+                this.changeCount++;
+            }
+        }
+        maybeMerge();
+        return deletedCount[0];
+    }
+
+    // Waits until no merge is running or pending.
+    public void awaitMerges() throws InterruptedException {
+        while (true) {
+            Future<?> merge;
+            synchronized (this.commitLock) {
+                merge = this.runningMerge;
+            }
+            if (merge == null) {
+                return;
+            }
+            try {
+                merge.get();
+            } catch (ExecutionException ex) {
+                // Reported by the merge itself.
+            }
+        }
+    }
+
+    /*
+     * Changes whenever documents are added or deleted, so results cached
+     * under one value are stale under another.
+     */
+    public long getChangeCount() {
+        return this.changeCount;
+    }
+
+    // The committed segments in DocID order.
+    public List<Segment> getSegments() {
+        return this.segments;
+    }
+
+    // Finishes the running merges and closes the segment files.
+    public void close() throws IOException {
+        try {
+            awaitMerges();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.commitLock) {
+            this.closed = true;
+            if (this.mergeExecutor != null) {
+                this.mergeExecutor.shutdown();
+            }
+        }
+        for (Segment segment : this.segments) {
+            segment.index.close();
+        }
+    }
+
+    /*
+     *
+     * QUERIES
+     *
+     */
+
+    /*
+     * A reader over the segments committed at one moment. A query reads
+     * its postings and then the paths and offsets of its matches through
+     * one snapshot, so a delete or merge committed meanwhile can't move its
+     * DocIDs onto other documents. Replaced segments stay mapped as long as
+     * a snapshot reads them.
+     */
+    public static final class Snapshot implements IndexReader {
+        private final List<Segment> segments;
+        private final long changeCount;
+
+        Snapshot(List<Segment> segments, long changeCount) {
+            this.segments = segments;
+            this.changeCount = changeCount;
+        }
+
+        /*
+         * The change count when the snapshot was taken; a QueryCache entry
+         * computed from the snapshot is valid for it. A change committed
+         * while the snapshot was taken may already be visible, which only
+         * makes the entry be dropped early.
+         */
+        public long getChangeCount() {
+            return this.changeCount;
+        }
+
+        // Counts every term once, however many segments it occurs in.
+        public int getTermCount() {
+            List<Segment> segments = this.segments;
+            if (segments.size() == 1) {
+                return segments.get(0).index.getTermCount();
+            }
+            int[] termCount = new int[1];
+            forEachTerm(segments, term -> termCount[0]++);
+            return termCount[0];
+        }
+
+        public int getDocumentCountByTerm(String term) {
+            int documentCount = 0;
+            for (Segment segment : this.segments) {
+                if (segment.deletes.isEmpty()) {
+                    documentCount += segment.index.getDocumentCountByTerm(term);
+                    continue;
+                }
+                DocBitmap documents = segment.index.documents(term);
+                if (documents != null) {
+                    documentCount += documents.andNot(segment.deletedDocuments).getCardinality();
+                }
+            }
+            return documentCount;
+        }
+
+        /*
+         * The documents of a single segment are returned as stored. With
+         * several segments, or deleted documents, the live ones are
+         * collected into one bitmap with global DocIDs.
+         */
+        public DocBitmap documents(String term) {
+            List<Segment> segments = this.segments;
+            if (segments.size() == 1 && segments.get(0).deletes.isEmpty()) {
+                return segments.get(0).index.documents(term);
+            }
+            DocBitmap documents = null;
+            for (Segment segment : segments) {
+                DocBitmap segmentDocuments = segment.index.documents(term);
+                if (segmentDocuments == null) {
+                    continue;
+                }
+                if (!segment.deletes.isEmpty()) {
+                    segmentDocuments = segmentDocuments.andNot(segment.deletedDocuments);
+                }
+                if (documents == null) {
+                    documents = new DocBitmap();
+                }
+                DocBitmap.Iterator iterator = segmentDocuments.iterator();
+                for (int docID = iterator.next(); docID != PostingsCursor.NO_MORE_DOCS; docID = iterator.next()) {
+                    documents.add(segment.docBase + docID);
+                }
+            }
+            return documents == null || documents.isEmpty() ? null : documents;
+        }
+
+        /*
+         * The postings of a term, read in place from the segments: a single
+         * segment's cursor as it is, otherwise a SegmentsCursor over them.
+         */
+        public PostingsCursor postings(String term) {
+            return spanSegments(segment -> segment.index.postings(term), segment -> segment.index.documents(term));
+        }
+
+        // Covered only if every segment has a pair index covering x, y and k.
+        public PostingsCursor pairPostings(String x, String y, int k) {
+            if (this.segments.isEmpty()) {
+                return null;
+            }
+            for (Segment segment : this.segments) {
+                if (segment.index.pairPostings(x, y, k) == null) {
+                    return null;
+                }
+            }
+            PostingsCursor cursor = spanSegments(segment -> segment.index.pairPostings(x, y, k),
+                    segment -> DocBitmap.of(segment.index.pairPostings(x, y, k)));
+            return cursor == null ? new PostingsList().cursor() : cursor;
+        }
+
+        /*
+         * A cursor over the cursors that postings opens on the segments, or
+         * null if none has a live document. documents gives the documents
+         * of a segment's cursor, used to count the live ones where some are
+         * deleted.
+         */
+        private PostingsCursor spanSegments(Function<Segment, PostingsCursor> postings,
+                Function<Segment, DocBitmap> documents) {
+            ArrayList<Segment> spanned = new ArrayList<Segment>(this.segments.size());
+            ArrayList<PostingsCursor> cursors = new ArrayList<PostingsCursor>(this.segments.size());
+            int documentCount = 0;
+            for (Segment segment : this.segments) {
+                PostingsCursor cursor = postings.apply(segment);
+                if (cursor == null) {
+                    continue;
+                }
+                int liveCount = segment.deletes.isEmpty() ? cursor.documentCount()
+                        : documents.apply(segment).andNot(segment.deletedDocuments).getCardinality();
+                if (liveCount > 0) {
+                    spanned.add(segment);
+                    cursors.add(cursor);
+                    documentCount += liveCount;
+                }
+            }
+            if (spanned.isEmpty()) {
+                return null;
+            }
+            if (spanned.size() == 1 && spanned.get(0).docBase == 0 && spanned.get(0).deletes.isEmpty()) {
+                return cursors.get(0);
+            }
+            return new SegmentsCursor(spanned.toArray(new Segment[0]), cursors.toArray(new PostingsCursor[0]),
+                    documentCount);
+        }
+
+        public List<String> expandPrefix(String prefix) {
+            List<Segment> segments = this.segments;
+            if (segments.size() == 1) {
+                return segments.get(0).index.expandPrefix(prefix);
+            }
+            TreeSet<String> terms = new TreeSet<String>();
+            for (Segment segment : segments) {
+                terms.addAll(segment.index.expandPrefix(prefix));
+            }
+            return new ArrayList<String>(terms);
+        }
+
+        // Deleted documents keep their DocID, so this counts them too.
+        public int getDocumentCount() {
+            return SegmentedIndex.getDocumentCount(this.segments);
+        }
+
+        public String getDocumentPath(int docID) {
+            Segment segment = segmentOf(docID);
+            return segment.index.getDocumentPath(docID - segment.docBase);
+        }
+
+        public TokenOffsets getTokenOffsets(int docID) {
+            Segment segment = segmentOf(docID);
+            return segment.index.getTokenOffsets(docID - segment.docBase);
+        }
+
+        // Including deleted documents, like getDocumentCount.
+        public long getTokenCount() {
+            long tokenCount = 0;
+            for (Segment segment : this.segments) {
+                tokenCount += segment.index.getTokenCount();
+            }
+            return tokenCount;
+        }
+
+        // The segment holding docID, found by binary search over the docBases.
+        private Segment segmentOf(int docID) {
+            int low = 0;
+            int high = this.segments.size() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (this.segments.get(middle).docBase < docID) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return this.segments.get(low);
+        }
+    }
+
+    /*
+     * The postings of one term over several segments, read in place from
+     * the cursor of each segment in turn. DocIDs are moved by the segment's
+     * docBase and deleted documents are skipped.
+     */
+    private static final class SegmentsCursor extends PostingsCursor {
+        private final Segment[] segments;
+        private final PostingsCursor[] cursors;
+        private int current;
+        private int docID = -1;
+
+        SegmentsCursor(Segment[] segments, PostingsCursor[] cursors, int documentCount) {
+            super(documentCount);
+            this.segments = segments;
+            this.cursors = cursors;
+        }
+
+        public int docID() {
+            return this.docID;
+        }
+
+        public int freq() {
+            return this.current < this.cursors.length ? this.cursors[this.current].freq() : 0;
+        }
+
+        public int nextDoc() {
+            while (this.current < this.cursors.length) {
+                Segment segment = this.segments[this.current];
+                PostingsCursor cursor = this.cursors[this.current];
+                for (int doc = cursor.nextDoc(); doc != NO_MORE_DOCS; doc = cursor.nextDoc()) {
+                    if (!segment.deletes.get(doc)) {
+                        return this.docID = segment.docBase + doc;
+                    }
+                }
+                this.current++;
+            }
+            return this.docID = NO_MORE_DOCS;
+        }
+
+        // Segments ending before target are passed over without reading them.
+        public int advance(int target) {
+            if (this.docID >= target) {
+                return this.docID;
+            }
+            while (this.current < this.cursors.length) {
+                Segment segment = this.segments[this.current];
+                if (target <= segment.docBase + segment.docCount) {
+                    PostingsCursor cursor = this.cursors[this.current];
+                    int doc = cursor.advance(Math.max(target - segment.docBase, 0));
+                    while (doc != NO_MORE_DOCS && segment.deletes.get(doc)) {
+                        doc = cursor.nextDoc();
+                    }
+                    if (doc != NO_MORE_DOCS) {
+                        return this.docID = segment.docBase + doc;
+                    }
+                }
+                this.current++;
+            }
+            return this.docID = NO_MORE_DOCS;
+        }
+
+        public int[] positions() {
+            return this.cursors[this.current].positions();
+        }
+    }
+
+    // The segments committed now, to read a whole query from.
+    public Snapshot snapshot() {
+        // A change publishes its segments before counting itself, so read the count first.
+        long changeCount = this.changeCount;
+        return new Snapshot(this.segments, changeCount);
+    }
+
+    public int getTermCount() {
+        return snapshot().getTermCount();
+    }
+
+    public int getDocumentCountByTerm(String term) {
+        return snapshot().getDocumentCountByTerm(term);
+    }
+
+    public DocBitmap documents(String term) {
+        return snapshot().documents(term);
+    }
+
+    public PostingsCursor postings(String term) {
+        return snapshot().postings(term);
+    }
+
+    public PostingsCursor pairPostings(String x, String y, int k) {
+        return snapshot().pairPostings(x, y, k);
+    }
+
+    public List<String> expandPrefix(String prefix) {
+        return snapshot().expandPrefix(prefix);
+    }
+
+    public int getDocumentCount() {
+        return snapshot().getDocumentCount();
+    }
+
+    public String getDocumentPath(int docID) {
+        return snapshot().getDocumentPath(docID);
+    }
+
+    public TokenOffsets getTokenOffsets(int docID) {
+        return snapshot().getTokenOffsets(docID);
+    }
+
+    public long getTokenCount() {
+        return snapshot().getTokenCount();
+    }
+
+    private static int getDocumentCount(List<Segment> segments) {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.docBase + last.docCount;
+    }
+
+    // Appends the postings of cursor that are not deleted in segment, with their DocIDs moved by docBase.
+    private static void copyLivePostings(PostingsCursor cursor, Segment segment, int docBase, PostingsList out) {
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            if (segment.deletes.get(cursor.docID())) {
+                continue;
+            }
+            int[] positions = cursor.positions();
+            for (int i = 0; i < cursor.freq(); i++) {
+                out.add(docBase + cursor.docID(), positions[i]);
+            }
+        }
+    }
+
+    // Passes every term of the segments to action once, in sorted order.
+    private static void forEachTerm(List<Segment> segments, Consumer<String> action) {
+        int[] ordinals = new int[segments.size()];
+        String[] terms = new String[segments.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(segments.size(), 1),
+                Comparator.comparing((Integer i) -> terms[i]));
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).index.getTermCount() > 0) {
+                terms[i] = segments.get(i).index.getTerm(0);
+                queue.add(i);
+            }
+        }
+
+        String previous = null;
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            if (!terms[i].equals(previous)) {
+                previous = terms[i];
+                action.accept(previous);
+            }
+            if (++ordinals[i] < segments.get(i).index.getTermCount()) {
+                terms[i] = segments.get(i).index.getTerm(ordinals[i]);
+                queue.add(i);
+            }
+        }
+    }
+
+    /*
+     *
+     * CHANGES AND MERGES
+     *
+     */
+
+    /*
+     * Copy of segments with the live documents read from one of paths
+     * deleted. The new tombstones are written to the next deletes generation
+     * of each changed segment; the count of deleted documents is added to
+     * deletedCount[0].
+     */
+    private ArrayList<Segment> withDeletes(List<Segment> segments, Set<String> paths, int[] deletedCount)
+            throws IOException {
+        ArrayList<Segment> next = new ArrayList<Segment>(segments.size() + 1);
+        for (Segment segment : segments) {
+            BitSet deletes = null;
+            for (int localDocID = 1; localDocID <= segment.docCount; localDocID++) {
+                if (!segment.deletes.get(localDocID) && paths.contains(segment.index.getDocumentPath(localDocID))) {
+                    if (deletes == null) {
+                        deletes = (BitSet) segment.deletes.clone();
+                    }
+                    deletes.set(localDocID);
+                    deletedCount[0]++;
+                }
+            }
+            if (deletes == null) {
+                next.add(segment);
+                continue;
+            }
+            int generation = segment.deleteGeneration + 1;
+            IndexFormat.writeDeletes(this.directory.resolve(IndexFormat.segmentName(segment.number))
+                    .resolve(IndexFormat.deletesName(generation)), deletes, segment.docCount);
+            next.add(new Segment(segment.number, segment.docBase, segment.docCount, generation, deletes,
+                    segment.index));
+        }
+        return next;
+    }
+
+    /*
+     * Writes next to segments.bin and publishes it to queries, then removes
+     * the files of segments and deletes generations no longer listed. Called
+     * with commitLock held.
+     */
+    private void commit(List<Segment> next) throws IOException {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        for (Segment segment : next) {
+            rows.add(segment.toRow());
+        }
+        IndexFormat.writeSegments(this.directory, this.nextSegmentNumber, rows);
+        List<Segment> previous = this.segments;
+        this.segments = Collections.unmodifiableList(new ArrayList<Segment>(next));
+
+        for (Segment old : previous) {
+            Segment kept = null;
+            for (Segment segment : next) {
+                if (segment.number == old.number) {
+                    kept = segment;
+                }
+            }
+            Path segmentDirectory = this.directory.resolve(IndexFormat.segmentName(old.number));
+            if (kept == null) {
+                // Snapshots still reading the segment keep its mappings, see DiskIndex.close.
+                old.index.close();
+                deleteSegmentFiles(segmentDirectory);
+            } else if (kept.deleteGeneration != old.deleteGeneration && old.deleteGeneration > 0) {
+                Files.deleteIfExists(segmentDirectory.resolve(IndexFormat.deletesName(old.deleteGeneration)));
+            }
+        }
+    }
+
+    /*
+     * The merge policy. Returns the first run of MERGE_FACTOR adjacent
+     * segments on the same size level, otherwise a segment with more than
+     * MAX_DELETED_FRACTION of its documents deleted, otherwise null.
+     */
+    static List<Segment> findMerge(List<Segment> segments) {
+        for (int start = 0; start + MERGE_FACTOR <= segments.size(); start++) {
+            int level = segments.get(start).level();
+            int end = start + 1;
+            while (end < start + MERGE_FACTOR && segments.get(end).level() == level) {
+                end++;
+            }
+            if (end == start + MERGE_FACTOR) {
+                return new ArrayList<Segment>(segments.subList(start, end));
+            }
+        }
+        for (Segment segment : segments) {
+            if (segment.deletes.cardinality() > segment.docCount * MAX_DELETED_FRACTION) {
+                return Collections.singletonList(segment);
+            }
+        }
+        return null;
+    }
+
+    // Starts a background merge if the policy finds one and no merge is running.
+    private void maybeMerge() {
+        synchronized (this.commitLock) {
+            if (this.runningMerge != null || this.closed) {
+                return;
+            }
+            List<Segment> run = findMerge(this.segments);
+            if (run == null) {
+                return;
+            }
+            if (this.mergeExecutor == null) {
+                this.mergeExecutor = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "segment-merge");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.runningMerge = this.mergeExecutor.submit(() -> {
+                boolean merged = false;
+                try {
+                    merge(run);
+                    merged = true;
+                } catch (IOException | RuntimeException ex) {
+                    System.err.println("Merging segments failed: " + ex);
+                } finally {
+                    // A merge may complete a run on the next level; a failed one waits for the next change.
+                    synchronized (this.commitLock) {
+                        this.runningMerge = null;
+                        if (merged) {
+                            maybeMerge();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Writes the adjacent segments of run as one new segment and swaps it in.
+     * Deleted documents keep their DocID but lose their path and postings.
+     * Documents deleted while the merge ran stay deleted in the new segment.
+     */
+    private void merge(List<Segment> run) throws IOException {
+        int number;
+        synchronized (this.commitLock) {
+            number = this.nextSegmentNumber++;
+        }
+        int docBase = run.get(0).docBase;
+        ArrayList<String> paths = new ArrayList<String>();
+        TreeMap<Integer, byte[]> tokenOffsets = new TreeMap<Integer, byte[]>();
+        for (Segment segment : run) {
+            for (int localDocID = 1; localDocID <= segment.docCount; localDocID++) {
+                if (segment.deletes.get(localDocID)) {
+                    paths.add("");
+                } else {
+                    paths.add(segment.index.getDocumentPath(localDocID));
+                    tokenOffsets.put(segment.docBase - docBase + localDocID,
+                            segment.index.getTokenOffsetBytes(localDocID));
+                }
+            }
+        }
+
+        TermDictionary.Builder terms = new TermDictionary.Builder();
+        ArrayList<PostingsList> termPostings = new ArrayList<PostingsList>();
+        forEachTerm(run, term -> {
+            PostingsList postings = new PostingsList();
+            for (Segment segment : run) {
+                PostingsCursor cursor = segment.index.postings(term);
+                if (cursor != null) {
+                    copyLivePostings(cursor, segment, segment.docBase - docBase, postings);
+                }
+            }
+            if (postings.getDocumentCount() > 0) {
+                terms.add(term);
+                termPostings.add(postings);
+            }
+        });
+        Path segmentDirectory = this.directory.resolve(IndexFormat.segmentName(number));
+        IndexFormat.write(terms.build(), termPostings.toArray(new PostingsList[0]), paths, tokenOffsets,
+                segmentDirectory);
+        DiskIndex index = openSegment(segmentDirectory, pairIndexOf(run));
+
+        synchronized (this.commitLock) {
+            List<Segment> current = this.segments;
+            int start = 0;
+            while (current.get(start).number != run.get(0).number) {
+                start++;
+            }
+            BitSet deletes = new BitSet();
+            for (int i = 0; i < run.size(); i++) {
+                BitSet newDeletes = (BitSet) current.get(start + i).deletes.clone();
+                newDeletes.andNot(run.get(i).deletes);
+                int shift = run.get(i).docBase - docBase;
+                for (int docID = newDeletes.nextSetBit(0); docID >= 0; docID = newDeletes.nextSetBit(docID + 1)) {
+                    deletes.set(shift + docID);
+                }
+            }
+            int generation = 0;
+            if (!deletes.isEmpty()) {
+                generation = 1;
+                IndexFormat.writeDeletes(segmentDirectory.resolve(IndexFormat.deletesName(generation)), deletes,
+                        paths.size());
+            }
+
+            ArrayList<Segment> next = new ArrayList<Segment>(current.subList(0, start));
+            next.add(new Segment(number, docBase, paths.size(), generation, deletes, index));
+            next.addAll(current.subList(start + run.size(), current.size()));
+            commit(next);
+        }
+    }
+
+    // The pair index of the first segment that has one, or null.
+    private static PairIndex pairIndexOf(List<Segment> segments) {
+        for (Segment segment : segments) {
+            if (segment.index.getPairIndex() != null) {
+                return segment.index.getPairIndex();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Opens a newly written segment. If the index has a pair index, like
+     * pairs, the segment first gets one of the same terms and distances.
+     */
+    private static DiskIndex openSegment(Path segmentDirectory, PairIndex pairs) throws IOException {
+        DiskIndex index = DiskIndex.open(segmentDirectory);
+        if (pairs == null) {
+            return index;
+        }
+        try {
+            PairIndex.write(index, pairs.getTerms(), pairs.getMinCount(), pairs.getMaxK(),
+                    segmentDirectory.resolve(IndexFormat.PAIRS_DIRECTORY));
+        } finally {
+            index.close();
+        }
+        return DiskIndex.open(segmentDirectory);
+    }
+
+    /*
+     * Removes a segment directory, its pair index included. Failures are
+     * ignored, since the files are no longer listed in segments.bin and
+     * never read again.
+     */
+    private static void deleteSegmentFiles(Path segmentDirectory) {
+        if (!Files.isDirectory(segmentDirectory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    deleteSegmentFiles(file);
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(segmentDirectory);
+        } catch (IOException ex) {
+            // Left for a later cleanup.
+        }
+    }
+} // class
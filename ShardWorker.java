@@ -0,0 +1,162 @@
+/*
+    One shard of a ShardedIndex, run in its own process by
+    the coordinator:
+
+    java PositionalIndex shard-worker <file-list> <first> <last> <thread-count>
+
+    Indexes the files on lines first to last - 1 of the file
+    list under their global DocIDs first + 1 to last, then
+    answers the coordinator's queries on a localhost port
+    chosen by the system, which it reports on stdout. Each
+    connection is served on its own thread; the rows of a
+    query are rendered here, where the token offsets and the
+    source files are, and streamed back in DocID order in
+    chunks of whole rows while the query runs.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+public final class ShardWorker {
+    private final IndexReader index;
+
+    private ShardWorker(IndexReader index) {
+        this.index = index;
+    }
+
+    static void run(String fileList, int first, int last, int threadCount) throws IOException {
+        List<String> paths = Files.readAllLines(Paths.get(fileList), StandardCharsets.UTF_8);
+        // Document paths are looked up by global DocID.
+        PositionalIndex.inputFileNames.addAll(paths);
+        PositionalIndex.printProgress = false;
+        ShardWorker worker = new ShardWorker(PositionalIndex.buildPositionalIndex(paths, first, last, threadCount));
+
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ExecutorService executor = QueryServer.newExecutor(threadCount);
+        System.out.println(ShardedIndex.READY + server.getLocalPort());
+        System.out.flush();
+
+        // The coordinator closes our stdin when it stops, or the pipe breaks when it dies.
+        Thread watchdog = new Thread(() -> {
+            try {
+                while (System.in.read() >= 0) {
+                    // nothing is sent on stdin
+                }
+            } catch (IOException ex) {
+                // same as end of input
+            }
+            System.exit(0);
+        }, "shard-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        while (true) {
+            Socket socket = server.accept();
+            executor.execute(() -> worker.serve(socket));
+        }
+    }
+
+    // Answers the queries of one connection until the coordinator closes it.
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream(), 1 << 16));
+            while (true) {
+                String query;
+                try {
+                    query = in.readUTF();
+                } catch (EOFException ex) {
+                    return;
+                }
+                answer(query, out);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("Shard connection closed: " + ex.getMessage());
+        }
+    }
+
+    private void answer(String query, DataOutputStream out) throws IOException {
+        RowChunks resultRows = new RowChunks(out, ShardedIndex.RESULT_ROWS);
+        RowChunks detailedRows = new RowChunks(out, ShardedIndex.DETAILED_ROWS);
+        // Flushing after every row lets the chunks end on whole rows.
+        PrintWriter resultWriter = new PrintWriter(resultRows, true);
+        PrintWriter detailedWriter = new PrintWriter(detailedRows, true);
+        long matchCount;
+        try (ProximityCsvWriter writer = new ProximityCsvWriter(this.index, resultWriter, detailedWriter)) {
+            matchCount = QueryServer.parse(query, this.index).search.applyAsLong(writer);
+        } catch (IllegalArgumentException | UncheckedIOException ex) {
+            out.writeByte(ShardedIndex.END_OF_ROWS);
+            out.writeLong(-1);
+            out.writeUTF(String.valueOf(ex.getMessage()));
+            return;
+        }
+        if (resultWriter.checkError() || detailedWriter.checkError()) {
+            throw new IOException("Cannot send the rows of " + query);
+        }
+        resultRows.send();
+        detailedRows.send();
+        out.writeByte(ShardedIndex.END_OF_ROWS);
+        out.writeLong(matchCount);
+    }
+
+    /*
+     * Sends the rows written to it in chunks: once CHUNK_CHARS characters
+     * have accumulated, the next flush sends them as the stream byte, the
+     * length and that many bytes of UTF-8.
+     */
+    private static final class RowChunks extends Writer {
+        static final int CHUNK_CHARS = 1 << 16;
+
+        private final DataOutputStream out;
+        private final int stream;
+        private final StringBuilder rows = new StringBuilder();
+
+        RowChunks(DataOutputStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        public void write(char[] chars, int offset, int length) {
+            this.rows.append(chars, offset, length);
+        }
+
+        public void flush() throws IOException {
+            if (this.rows.length() >= CHUNK_CHARS) {
+                send();
+            }
+        }
+
+        // Sends the rows written since the last chunk, if any.
+        void send() throws IOException {
+            if (this.rows.length() == 0) {
+                return;
+            }
+            byte[] bytes = this.rows.toString().getBytes(StandardCharsets.UTF_8);
+            this.out.writeByte(this.stream);
+            this.out.writeInt(bytes.length);
+            this.out.write(bytes);
+            this.rows.setLength(0);
+        }
+
+        public void close() {
+        }
+    }
+} // class
@@ -0,0 +1,265 @@
+/*
+    Coordinator of a positional index split by DocID range
+    into shards, each built and served by its own worker
+    process (see ShardWorker), so no single JVM heap has to
+    hold the postings of the whole corpus.
+
+    The corpus files are listed once, in the usual order, and
+    shard i gets the i-th of shardCount consecutive runs of
+    them. Workers index their files under the same DocIDs a
+    single index would give them, so their results need no
+    renumbering. A query is sent to every worker over a
+    localhost socket; each streams its rendered CSV rows back
+    in DocID order, and since the shards cover increasing
+    DocID ranges, copying the streams in shard order gives the
+    rows of a single index, in its order. The rows are copied
+    into the output files chunk by chunk, so neither side
+    holds a whole result; the shards after the one being
+    copied work ahead until their socket buffers fill.
+
+    Protocol, per request on a connection (DataOutputStream):
+        -> query line (UTF)
+        <- chunks of rows: RESULT_ROWS or DETAILED_ROWS (byte),
+           length (int), that many bytes of UTF-8 rows
+        <- END_OF_ROWS (byte), then matchCount (long), or -1
+           and an error message (UTF)
+    A worker exits when its stdin, a pipe from the
+    coordinator, is closed.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public final class ShardedIndex implements AutoCloseable {
+    // Line a worker prints on stdout once it accepts queries, followed by its port.
+    static final String READY = "Shard listening on port ";
+
+    // Stream bytes of the protocol above.
+    static final int RESULT_ROWS = 0;
+    static final int DETAILED_ROWS = 1;
+    static final int END_OF_ROWS = -1;
+
+    // One open connection to a worker, used by one query at a time.
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(int port) throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+        }
+    }
+
+    private final Process[] workers;
+    private final int[] ports;
+    private final int documentCount;
+
+    // Idle connections per shard; a query takes one or opens a new one.
+    private final List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<ConcurrentLinkedQueue<Connection>>();
+
+    private ShardedIndex(Process[] workers, int[] ports, int documentCount) {
+        this.workers = workers;
+        this.ports = ports;
+        this.documentCount = documentCount;
+        for (int shard = 0; shard < workers.length; shard++) {
+            this.idle.add(new ConcurrentLinkedQueue<Connection>());
+        }
+    }
+
+    /*
+     * Starts one worker process per shard over the files in paths, the file
+     * at index i being DocID i + 1, and waits until they have all built
+     * their part of the index. Each worker builds with threadCount threads.
+     */
+    public static ShardedIndex start(List<String> paths, int shardCount, int threadCount) throws IOException {
+        Path fileList = Files.createTempFile("positional-index-shards", ".txt");
+        fileList.toFile().deleteOnExit();
+        Files.write(fileList, paths, StandardCharsets.UTF_8);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process[] workers = new Process[shardCount];
+        int[] ports = new int[shardCount];
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                int first = (int) ((long) paths.size() * shard / shardCount);
+                int last = (int) ((long) paths.size() * (shard + 1) / shardCount);
+                workers[shard] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "PositionalIndex", "shard-worker", fileList.toString(), Integer.toString(first),
+                        Integer.toString(last), Integer.toString(threadCount))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            }
+            // The workers build their shards at the same time.
+            for (int shard = 0; shard < shardCount; shard++) {
+                BufferedReader out = new BufferedReader(
+                        new InputStreamReader(workers[shard].getInputStream(), StandardCharsets.UTF_8));
+                String line = out.readLine();
+                while (line != null && !line.startsWith(READY)) {
+                    line = out.readLine();
+                }
+                if (line == null) {
+                    throw new IOException("Shard " + shard + " failed to start");
+                }
+                ports[shard] = Integer.parseInt(line.substring(READY.length()).trim());
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (Process worker : workers) {
+                if (worker != null) {
+                    worker.destroyForcibly();
+                }
+            }
+            throw ex;
+        }
+        return new ShardedIndex(workers, ports, paths.size());
+    }
+
+    public int getShardCount() {
+        return this.workers.length;
+    }
+
+    // Number of documents over all shards; DocIDs run from 1 to this value.
+    public int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    /*
+     * Runs a query line, as parsed by QueryServer.parse, on every shard and
+     * appends their rows to writer in DocID order. Returns the number of
+     * matches. A query the workers reject throws IllegalArgumentException.
+     */
+    public long search(String query, ProximityCsvWriter writer) {
+        // Every shard starts on the query before the first one is copied.
+        Connection[] connections = new Connection[this.workers.length];
+        RuntimeException failure = null;
+        for (int shard = 0; shard < connections.length; shard++) {
+            try {
+                connections[shard] = send(shard, query);
+            } catch (UncheckedIOException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        long matchCount = 0;
+        for (int shard = 0; shard < connections.length; shard++) {
+            if (connections[shard] == null) {
+                continue;
+            }
+            try {
+                // After a failure the remaining answers are only read to keep the connections usable.
+                matchCount += receive(shard, connections[shard], failure == null ? writer : null);
+            } catch (RuntimeException ex) {
+                failure = failure == null ? ex : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return matchCount;
+    }
+
+    // Stops the workers and closes the connections to them.
+    public void close() {
+        for (ConcurrentLinkedQueue<Connection> connections : this.idle) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                closeQuietly(connection);
+            }
+        }
+        for (Process worker : this.workers) {
+            try {
+                worker.getOutputStream().close();
+                if (!worker.waitFor(10, TimeUnit.SECONDS)) {
+                    worker.destroyForcibly();
+                }
+            } catch (IOException ex) {
+                worker.destroyForcibly();
+            } catch (InterruptedException ex) {
+                worker.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Sends query to shard over an idle connection, or a new one, which is returned.
+    private Connection send(int shard, String query) {
+        Connection connection = this.idle.get(shard).poll();
+        try {
+            if (connection == null) {
+                connection = new Connection(this.ports[shard]);
+            }
+            connection.out.writeUTF(query);
+            connection.out.flush();
+            return connection;
+        } catch (IOException ex) {
+            if (connection != null) {
+                closeQuietly(connection);
+            }
+            throw new UncheckedIOException("Shard " + shard + " did not answer: " + ex.getMessage(), ex);
+        }
+    }
+
+    /*
+     * Copies the rows shard sends over connection into writer, or skips them
+     * if writer is null, and returns its match count. The connection goes
+     * back to the idle ones once the whole answer has been read.
+     */
+    private long receive(int shard, Connection connection, ProximityCsvWriter writer) {
+        boolean complete = false;
+        try {
+            byte[] chunk = new byte[0];
+            int stream;
+            while ((stream = connection.in.readByte()) != END_OF_ROWS) {
+                int length = connection.in.readInt();
+                if (chunk.length < length) {
+                    chunk = new byte[length];
+                }
+                connection.in.readFully(chunk, 0, length);
+                if (writer != null) {
+                    writer.appendRows(stream == DETAILED_ROWS, new String(chunk, 0, length, StandardCharsets.UTF_8));
+                }
+            }
+            long matchCount = connection.in.readLong();
+            String error = matchCount < 0 ? connection.in.readUTF() : null;
+            complete = true;
+            this.idle.get(shard).add(connection);
+            if (error != null) {
+                throw new IllegalArgumentException(error);
+            }
+            if (writer != null) {
+                writer.appendedMatches(matchCount);
+            }
+            return matchCount;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Shard " + shard + " did not answer: " + ex.getMessage(), ex);
+        } finally {
+            if (!complete) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.socket.close();
+        } catch (IOException ex) {
+            // Nothing left to do with it.
+        }
+    }
+} // class
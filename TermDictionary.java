@@ -0,0 +1,431 @@
+/*
+    Sorted, front-coded term dictionary. Maps every term to
+    its ordinal, which is the term ID used to find its
+    postings, and answers prefix ranges for wildcard terms
+    like learn*.
+
+    Terms are UTF-8 bytes in blocks of BLOCK_SIZE. The first
+    term of a block is stored whole, the others as the length
+    of the prefix shared with the previous term plus the rest.
+    An open-addressing hash table maps the hash of a term to
+    its ordinal. Layout, big-endian:
+
+        termCount(int), blockCount(int),
+        blockCount x blockOffset(int), dataLength(int),
+        data: per block vint(length) bytes, then
+              (BLOCK_SIZE - 1) x vint(prefix) vint(suffix) bytes,
+        slotCount(int), slotCount x (hash(int), ordinal + 1(int))
+
+    An exact lookup probes the hash table and checks the
+    candidate by walking its block, comparing bytes in place.
+    A prefix range binary-searches the first terms of the
+    blocks, whose first 8 bytes are loaded into a long[] when
+    the dictionary is opened, and scans one block. Neither
+    allocates for ASCII keys.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class TermDictionary {
+    static final int BLOCK_SIZE = 8;
+
+    // An empty dictionary.
+    static final TermDictionary EMPTY = new Builder().build();
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int termCount;
+    private final int blockCount;
+    private final int blockTable;
+    private final int dataStart;
+    private final int slotMask;
+    private final int slotTable;
+    private final int size;
+
+    // First 8 bytes of the first term of every block, big-endian and zero-padded.
+    private final long[] blockKeys;
+
+    // Reads a dictionary written by Builder.toByteArray() at base within buffer.
+    public TermDictionary(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+        this.termCount = buffer.getInt(base);
+        this.blockCount = buffer.getInt(base + 4);
+        this.blockTable = base + 8;
+        this.dataStart = this.blockTable + this.blockCount * 4 + 4;
+        int slotCountOffset = this.dataStart + buffer.getInt(this.dataStart - 4);
+        int slotCount = buffer.getInt(slotCountOffset);
+        this.slotMask = slotCount - 1;
+        this.slotTable = slotCountOffset + 4;
+        this.size = this.slotTable + slotCount * 8 - base;
+
+        this.blockKeys = new long[this.blockCount];
+        for (int block = 0; block < this.blockCount; block++) {
+            int start = this.dataStart + buffer.getInt(this.blockTable + block * 4);
+            int length = readVInt(start);
+            start += vIntSize(length);
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (i < length ? buffer.get(start + i) & 0xFF : 0);
+            }
+            this.blockKeys[block] = key;
+        }
+    }
+
+    public int getTermCount() {
+        return this.termCount;
+    }
+
+    // Bytes taken by the serialized dictionary.
+    public int getSize() {
+        return this.size;
+    }
+
+    // Copies the serialized dictionary into out, which holds getSize() bytes.
+    public void copyTo(byte[] out) {
+        this.buffer.get(this.base, out, 0, this.size);
+    }
+
+    // Ordinal of term, or -1 if it is not in the dictionary.
+    public int lookup(CharSequence term) {
+        if (!isAscii(term)) {
+            byte[] bytes = term.toString().getBytes(StandardCharsets.UTF_8);
+            return lookup(bytes, 0, bytes.length);
+        }
+        // For ASCII, String.hashCode() is hash() of the UTF-8 bytes, and Strings cache it.
+        int hash = term instanceof String ? term.hashCode() : hash(null, 0, term, term.length());
+        return find(hash, null, 0, term, term.length());
+    }
+
+    // Ordinal of the term stored in key[offset, offset + length), or -1.
+    public int lookup(byte[] key, int offset, int length) {
+        return find(hash(key, offset, null, length), key, offset, null, length);
+    }
+
+    /*
+     * The ordinals [from, to) of all terms starting with prefix, packed as
+     * (from << 32) | to. Empty when from == to.
+     */
+    public long prefixRange(CharSequence prefix) {
+        byte[] bytes = isAscii(prefix) ? null : prefix.toString().getBytes(StandardCharsets.UTF_8);
+        int length = bytes == null ? prefix.length() : bytes.length;
+        int from = lowerBound(bytes, 0, prefix, length, false);
+        int to = lowerBound(bytes, 0, prefix, length, true);
+        return ((long) from << 32) | to;
+    }
+
+    // The term with the given ordinal.
+    public String term(int ordinal) {
+        int block = ordinal / BLOCK_SIZE;
+        int offset = this.dataStart + this.buffer.getInt(this.blockTable + block * 4);
+        byte[] term = new byte[64];
+        int length = 0;
+        for (int i = block * BLOCK_SIZE; i <= ordinal; i++) {
+            int prefix = 0;
+            if (i != block * BLOCK_SIZE) {
+                prefix = readVInt(offset);
+                offset += vIntSize(prefix);
+            }
+            int suffix = readVInt(offset);
+            offset += vIntSize(suffix);
+            length = prefix + suffix;
+            if (length > term.length) {
+                term = Arrays.copyOf(term, Math.max(length, term.length * 2));
+            }
+            this.buffer.get(offset, term, prefix, suffix);
+            offset += suffix;
+        }
+        return new String(term, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The key of the lookup methods below is either bytes[offset, offset +
+     * length) or, when bytes is null, the ASCII characters of chars.
+     */
+
+    // Probes the hash table; the slots hold (hash, ordinal + 1), 0 marks an empty one.
+    private int find(int hash, byte[] bytes, int offset, CharSequence chars, int length) {
+        int slot = mix(hash) & this.slotMask;
+        while (true) {
+            int entry = this.slotTable + slot * 8;
+            int ordinal = this.buffer.getInt(entry + 4) - 1;
+            if (ordinal < 0) {
+                return -1;
+            }
+            if (this.buffer.getInt(entry) == hash && equalsAt(ordinal, bytes, offset, chars, length)) {
+                return ordinal;
+            }
+            slot = (slot + 1) & this.slotMask;
+        }
+    }
+
+    /*
+     * Whether the term with the given ordinal equals the key. Walks the block
+     * up to the ordinal while tracking how many leading bytes the current
+     * term shares with the key: a term that shares fewer bytes with its
+     * predecessor than that differs from the key right there, one that
+     * shares more differs where its predecessor did, so the bytes are only
+     * compared when the shared prefix is exactly as long.
+     */
+    private boolean equalsAt(int ordinal, byte[] bytes, int offset, CharSequence chars, int length) {
+        int first = ordinal - ordinal % BLOCK_SIZE;
+        int position = this.dataStart + this.buffer.getInt(this.blockTable + first / BLOCK_SIZE * 4);
+        int matched = 0;
+        int termLength = 0;
+        for (int i = first; i <= ordinal; i++) {
+            int prefix = 0;
+            if (i != first) {
+                prefix = readVInt(position);
+                position += vIntSize(prefix);
+            }
+            int suffix = readVInt(position);
+            position += vIntSize(suffix);
+            termLength = prefix + suffix;
+
+            if (prefix < matched) {
+                matched = prefix;
+            } else if (prefix == matched) {
+                matched = (int) (compare(position, termLength, prefix, bytes, offset, chars, length, false) >>> 32);
+            }
+            position += suffix;
+        }
+        return matched == length && termLength == length;
+    }
+
+    /*
+     * Ordinal of the first term >= key. With pastPrefix set, every term
+     * starting with the key counts as smaller than it, which turns the lower
+     * bound into the end of the key's prefix range.
+     */
+    private int lowerBound(byte[] bytes, int offset, CharSequence chars, int length, boolean pastPrefix) {
+        // The key's first 8 bytes, padded like blockKeys; past a prefix with 0xFF, which UTF-8 never uses.
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            int keyByte = pastPrefix ? 0xFF : 0;
+            if (i < length) {
+                keyByte = bytes != null ? bytes[offset + i] & 0xFF : chars.charAt(i);
+            }
+            key = (key << 8) | keyByte;
+        }
+
+        // Last block whose first term is <= key (or the first block); term bytes are only read on a tie.
+        int low = 0;
+        int high = this.blockCount - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Long.compareUnsigned(this.blockKeys[mid], key);
+            if (cmp == 0) {
+                int start = this.dataStart + this.buffer.getInt(this.blockTable + mid * 4);
+                int termLength = readVInt(start);
+                cmp = (int) compare(start + vIntSize(termLength), termLength, 0, bytes, offset, chars, length,
+                        pastPrefix);
+            }
+            if (cmp <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        /*
+         * Scan the block, tracking the prefix the previous term shares with
+         * the key as in equalsAt(). All terms before the first one >= key are
+         * smaller, so one sharing fewer bytes with its predecessor than that
+         * is larger than the key and one sharing more is still smaller.
+         */
+        int first = block * BLOCK_SIZE;
+        int last = Math.min(first + BLOCK_SIZE, this.termCount);
+        int position = this.blockCount == 0 ? 0 : this.dataStart + this.buffer.getInt(this.blockTable + block * 4);
+        int matched = 0;
+        for (int ordinal = first; ordinal < last; ordinal++) {
+            int prefix = 0;
+            if (ordinal != first) {
+                prefix = readVInt(position);
+                position += vIntSize(prefix);
+            }
+            int suffix = readVInt(position);
+            position += vIntSize(suffix);
+
+            if (ordinal == first || prefix == matched) {
+                long cmp = compare(position, prefix + suffix, prefix, bytes, offset, chars, length, pastPrefix);
+                matched = (int) (cmp >>> 32);
+                if ((int) cmp >= 0) {
+                    return ordinal;
+                }
+            } else if (prefix < matched) {
+                return ordinal;
+            }
+            position += suffix;
+        }
+        return last;
+    }
+
+    /*
+     * Compares a term with the key, given that their first `from` bytes are
+     * equal; the term bytes from `from` on start at position. Returns the
+     * common prefix length in the high 32 bits and the sign of term - key in
+     * the low 32 bits.
+     */
+    private long compare(int position, int termLength, int from, byte[] bytes, int offset, CharSequence chars,
+            int length, boolean pastPrefix) {
+        int i = from;
+        while (i < termLength && i < length) {
+            int termByte = this.buffer.get(position + i - from) & 0xFF;
+            int keyByte = bytes != null ? bytes[offset + i] & 0xFF : chars.charAt(i);
+            if (termByte != keyByte) {
+                return ((long) i << 32) | ((termByte < keyByte ? -1 : 1) & 0xFFFFFFFFL);
+            }
+            i++;
+        }
+        int sign;
+        if (i == length) {
+            sign = pastPrefix ? -1 : (termLength == length ? 0 : 1);
+        } else {
+            sign = -1;
+        }
+        return ((long) i << 32) | (sign & 0xFFFFFFFFL);
+    }
+
+    // 31-polynomial over the UTF-8 bytes, the same as String.hashCode() for ASCII.
+    private static int hash(byte[] bytes, int offset, CharSequence chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (bytes != null ? bytes[offset + i] & 0xFF : chars.charAt(i));
+        }
+        return hash;
+    }
+
+    // Spreads the polynomial hash over the slot bits.
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private int readVInt(int position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int vIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static boolean isAscii(CharSequence chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            if (chars.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Collects terms in increasing UTF-8 byte order.
+    public static final class Builder {
+        private int termCount;
+        private int[] blockOffsets = new int[16];
+        private byte[] data = new byte[1024];
+        private int dataLength;
+        private byte[] previous = new byte[64];
+        private int previousLength;
+        private int[] hashes = new int[16];
+
+        public void add(String term) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            add(bytes, 0, bytes.length);
+        }
+
+        public void add(byte[] term, int offset, int length) {
+            if (this.termCount > 0 && Arrays.compareUnsigned(this.previous, 0, this.previousLength, term, offset,
+                    offset + length) >= 0) {
+                throw new IllegalArgumentException("Terms must be added in increasing order");
+            }
+
+            int prefix = 0;
+            if (this.termCount % BLOCK_SIZE == 0) {
+                int block = this.termCount / BLOCK_SIZE;
+                if (block == this.blockOffsets.length) {
+                    this.blockOffsets = Arrays.copyOf(this.blockOffsets, block * 2);
+                }
+                this.blockOffsets[block] = this.dataLength;
+            } else {
+                int max = Math.min(length, this.previousLength);
+                while (prefix < max && this.previous[prefix] == term[offset + prefix]) {
+                    prefix++;
+                }
+            }
+
+            int suffix = length - prefix;
+            if (this.dataLength + suffix + 10 > this.data.length) {
+                this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.dataLength + suffix + 10));
+            }
+            if (this.termCount % BLOCK_SIZE != 0) {
+                this.dataLength = PostingsList.writeVInt(this.data, this.dataLength, prefix);
+            }
+            this.dataLength = PostingsList.writeVInt(this.data, this.dataLength, suffix);
+            System.arraycopy(term, offset + prefix, this.data, this.dataLength, suffix);
+            this.dataLength += suffix;
+
+            if (length > this.previous.length) {
+                this.previous = Arrays.copyOf(this.previous, Math.max(length, this.previous.length * 2));
+            }
+            System.arraycopy(term, offset, this.previous, 0, length);
+            this.previousLength = length;
+
+            if (this.termCount == this.hashes.length) {
+                this.hashes = Arrays.copyOf(this.hashes, this.termCount * 2);
+            }
+            this.hashes[this.termCount++] = hash(term, offset, null, length);
+        }
+
+        public byte[] toByteArray() {
+            int blockCount = (this.termCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            // A power of two with at least a quarter of the slots empty.
+            int slotCount = Integer.highestOneBit(Math.max(this.termCount + this.termCount / 3, 1)) << 1;
+            int[] slots = new int[slotCount * 2];
+            for (int ordinal = 0; ordinal < this.termCount; ordinal++) {
+                int slot = mix(this.hashes[ordinal]) & (slotCount - 1);
+                while (slots[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+                slots[slot * 2] = this.hashes[ordinal];
+                slots[slot * 2 + 1] = ordinal + 1;
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(16 + blockCount * 4 + this.dataLength + slotCount * 8);
+            out.putInt(this.termCount);
+            out.putInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                out.putInt(this.blockOffsets[i]);
+            }
+            out.putInt(this.dataLength);
+            out.put(this.data, 0, this.dataLength);
+            out.putInt(slotCount);
+            for (int slot : slots) {
+                out.putInt(slot);
+            }
+            return out.array();
+        }
+
+        public TermDictionary build() {
+            return new TermDictionary(ByteBuffer.wrap(toByteArray()), 0);
+        }
+    }
+} // class
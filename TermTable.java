@@ -0,0 +1,186 @@
+/*
+    Growable hash table giving every distinct term a dense
+    term ID, 0, 1, 2... in the order the terms are first seen.
+    Used while an index is built, before its terms are sorted
+    into a TermDictionary.
+
+    Terms are byte strings, lowercase ASCII for the words of
+    the tokenizer. Their bytes are appended to one byte[]
+    pool and the open-addressing slots hold term IDs, so a
+    term costs no objects, and looking up a term that is
+    already known allocates nothing.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class TermTable {
+    // Term bytes, one term after the other.
+    private byte[] pool = new byte[1 << 12];
+    private int poolLength;
+
+    // Term ID -> start of its bytes in pool; termStarts[size] is the end of the last term.
+    private int[] termStarts = new int[64];
+
+    // Term ID -> polynomial hash of its bytes.
+    private int[] termHashes = new int[64];
+
+    /*
+     * Per slot the term hash in the high 32 bits and term ID + 1 in the low
+     * ones, 0 for an empty slot, so a probe only loads the slot to rule out
+     * most other terms. The length is a power of two.
+     */
+    private long[] slots = new long[128];
+    private int size;
+
+    // Number of distinct terms.
+    public int size() {
+        return this.size;
+    }
+
+    // Bytes allocated for the terms and the hash table, including unused capacity.
+    public long getAllocatedSize() {
+        return this.pool.length + (this.termStarts.length + this.termHashes.length) * 4L + this.slots.length * 8L;
+    }
+
+    /*
+     * The ID of the term in bytes[offset, offset + length), added as a new
+     * term if it is not known yet. hash must be hash(bytes, offset, length);
+     * the tokenizer computes it while it scans the word.
+     */
+    public int add(byte[] bytes, int offset, int length, int hash) {
+        int mask = this.slots.length - 1;
+        int slot = mix(hash) & mask;
+        long entry;
+        while ((entry = this.slots[slot]) != 0) {
+            int termID = (int) entry - 1;
+            if ((int) (entry >>> 32) == hash && equals(termID, bytes, offset, length)) {
+                return termID;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return insert(bytes, offset, length, hash, slot);
+    }
+
+    // Adds a new term in the empty slot found by add; kept apart so the lookup in add stays small enough to inline.
+    private int insert(byte[] bytes, int offset, int length, int hash, int slot) {
+        int termID = this.size++;
+        if (this.size == this.termStarts.length) {
+            this.termStarts = Arrays.copyOf(this.termStarts, this.termStarts.length * 2);
+            this.termHashes = Arrays.copyOf(this.termHashes, this.termHashes.length * 2);
+        }
+        if (this.poolLength + length > this.pool.length) {
+            this.pool = Arrays.copyOf(this.pool, Math.max(this.poolLength + length, this.pool.length * 2));
+        }
+        System.arraycopy(bytes, offset, this.pool, this.poolLength, length);
+        this.termStarts[termID] = this.poolLength;
+        this.poolLength += length;
+        this.termStarts[termID + 1] = this.poolLength;
+        this.termHashes[termID] = hash;
+        this.slots[slot] = slotEntry(hash, termID);
+
+        // Keep the table at most three quarters full.
+        if (this.size * 4 > this.slots.length * 3) {
+            rehash();
+        }
+        return termID;
+    }
+
+    // The ID of term, or -1 if it is not in the table.
+    public int find(CharSequence term) {
+        int length = term.length();
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            char c = term.charAt(i);
+            if (c > 0xFF) {
+                return -1;
+            }
+            hash = 31 * hash + c;
+        }
+
+        int mask = this.slots.length - 1;
+        int slot = mix(hash) & mask;
+        long entry;
+        while ((entry = this.slots[slot]) != 0) {
+            int termID = (int) entry - 1;
+            if ((int) (entry >>> 32) == hash && termLength(termID) == length) {
+                int start = this.termStarts[termID];
+                int i = 0;
+                while (i < length && (this.pool[start + i] & 0xFF) == term.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return termID;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // The term with the given ID as a String; allocates, so not meant for every occurrence.
+    public String term(int termID) {
+        return new String(this.pool, this.termStarts[termID], termLength(termID), StandardCharsets.ISO_8859_1);
+    }
+
+    // The pool holding the bytes of every term, valid until the next add.
+    byte[] pool() {
+        return this.pool;
+    }
+
+    int termStart(int termID) {
+        return this.termStarts[termID];
+    }
+
+    int termLength(int termID) {
+        return this.termStarts[termID + 1] - this.termStarts[termID];
+    }
+
+    // Compares two terms by their unsigned bytes, the order of the TermDictionary.
+    int compare(int termID, int otherTermID) {
+        return Arrays.compareUnsigned(this.pool, this.termStarts[termID], this.termStarts[termID + 1], this.pool,
+                this.termStarts[otherTermID], this.termStarts[otherTermID + 1]);
+    }
+
+    // 31-polynomial over the bytes, the same as String.hashCode() for ASCII.
+    static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (bytes[offset + i] & 0xFF);
+        }
+        return hash;
+    }
+
+    private boolean equals(int termID, byte[] bytes, int offset, int length) {
+        int start = this.termStarts[termID];
+        if (this.termStarts[termID + 1] - start != length) {
+            return false;
+        }
+        return Arrays.equals(this.pool, start, start + length, bytes, offset, offset + length);
+    }
+
+    private static long slotEntry(int hash, int termID) {
+        return ((long) hash << 32) | (termID + 1);
+    }
+
+    private void rehash() {
+        long[] slots = new long[this.slots.length * 2];
+        int mask = slots.length - 1;
+        for (int termID = 0; termID < this.size; termID++) {
+            int slot = mix(this.termHashes[termID]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = slotEntry(this.termHashes[termID], termID);
+        }
+        this.slots = slots;
+    }
+
+    // Spreads the polynomial hash over the slot bits.
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+} // class
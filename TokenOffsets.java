@@ -0,0 +1,102 @@
+/*
+    Byte offset of every token position of one document, so
+    a phrase can be cut out of the source file with a single
+    seek instead of re-tokenizing it from the start.
+
+    Offsets are grouped in blocks of 64 positions. Each block
+    stores the absolute offset of its first token and a
+    pointer to the varint deltas of the other 63, so a lookup
+    decodes at most 63 small deltas. Layout, big-endian:
+
+        tokenCount(int), blockCount(int),
+        blockCount x (firstOffset(int), deltaPointer(int)),
+        varint deltas of all blocks
+*/
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public final class TokenOffsets {
+    static final int BLOCK_SHIFT = 6;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int tokenCount;
+    private final int deltaStart;
+
+    // Reads a table written by Builder.toByteArray() at base within buffer.
+    public TokenOffsets(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+        this.tokenCount = buffer.getInt(base);
+        this.deltaStart = base + 8 + buffer.getInt(base + 4) * 8;
+    }
+
+    public int getTokenCount() {
+        return this.tokenCount;
+    }
+
+    // Byte offset of the token at position (1-based, as in the postings).
+    public int offsetOf(int position) {
+        if (position < 1 || position > this.tokenCount) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + this.tokenCount);
+        }
+        int index = position - 1;
+        int block = this.base + 8 + (index >>> BLOCK_SHIFT) * 8;
+        int offset = this.buffer.getInt(block);
+        int pointer = this.deltaStart + this.buffer.getInt(block + 4);
+        for (int i = index & (BLOCK_SIZE - 1); i > 0; i--) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.buffer.get(pointer++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += delta;
+        }
+        return offset;
+    }
+
+    // Collects the offsets of one document while it is tokenized.
+    public static final class Builder {
+        private int tokenCount;
+        private int lastOffset;
+        private int[] blocks = new int[16];
+        private byte[] deltas = new byte[256];
+        private int deltaLength;
+
+        // Records the offset of the next token position.
+        public void add(int offset) {
+            if ((this.tokenCount & (BLOCK_SIZE - 1)) == 0) {
+                int block = (this.tokenCount >>> BLOCK_SHIFT) * 2;
+                if (block + 2 > this.blocks.length) {
+                    this.blocks = Arrays.copyOf(this.blocks, this.blocks.length * 2);
+                }
+                this.blocks[block] = offset;
+                this.blocks[block + 1] = this.deltaLength;
+            } else {
+                if (this.deltaLength + 5 > this.deltas.length) {
+                    this.deltas = Arrays.copyOf(this.deltas, this.deltas.length * 2);
+                }
+                this.deltaLength = PostingsList.writeVInt(this.deltas, this.deltaLength, offset - this.lastOffset);
+            }
+            this.lastOffset = offset;
+            this.tokenCount++;
+        }
+
+        public byte[] toByteArray() {
+            int blockCount = (this.tokenCount + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+            ByteBuffer out = ByteBuffer.allocate(8 + blockCount * 8 + this.deltaLength);
+            out.putInt(this.tokenCount);
+            out.putInt(blockCount);
+            for (int i = 0; i < blockCount * 2; i++) {
+                out.putInt(this.blocks[i]);
+            }
+            out.put(this.deltas, 0, this.deltaLength);
+            return out.array();
+        }
+    }
+} // class
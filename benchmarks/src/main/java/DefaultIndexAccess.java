@@ -0,0 +1,148 @@
+/*
+    IndexAccess on top of the index classes, for the JMH
+    benchmarks in the benchmarks package. Lives in the default
+    package so it can call them, including the package-private
+    parts the command line uses.
+*/
+
+import benchmarks.IndexAccess;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class DefaultIndexAccess implements IndexAccess {
+    // Term IDs of the words tokenized so far; like during a build, most words are already known.
+    private final TermTable terms = new TermTable();
+
+    public DefaultIndexAccess() {
+        // Building an index would print a line per file.
+        PositionalIndex.printProgress = false;
+    }
+
+    public List<String> listCorpus(String directory) {
+        ArrayList<String> paths = new ArrayList<String>();
+        PositionalIndex.collectFilesInPath(new File(directory), paths);
+        return paths;
+    }
+
+    public long tokenize(byte[] text) {
+        long[] checksum = new long[1];
+        ByteTokenizer.tokenize(text, text.length, this.terms, (termID, position, offset) -> checksum[0] += termID + offset);
+        return checksum[0];
+    }
+
+    public Object build(List<String> paths, int threadCount) {
+        return PositionalIndex.buildPositionalIndex(paths, threadCount);
+    }
+
+    public long getPositionCount(Object index) {
+        return ((PositionalIndex) index).getPositionCount();
+    }
+
+    public Object writeAndOpen(Object index, List<String> paths, Path directory) throws IOException {
+        ((PositionalIndex) index).writePositionalIndex(directory, paths);
+        return DiskIndex.open(directory);
+    }
+
+    public int getDocumentCountByTerm(Object index, String term) {
+        return ((IndexReader) index).getDocumentCountByTerm(term);
+    }
+
+    public long proximity(Object index, String x, String y, int k) {
+        PostingsCursor xCursor = PositionalIndex.postingsMatching((IndexReader) index, x);
+        PostingsCursor yCursor = PositionalIndex.postingsMatching((IndexReader) index, y);
+        if (xCursor == null || yCursor == null) {
+            return 0;
+        }
+        MatchCounter counter = new MatchCounter();
+        PositionalJoin.join(xCursor, yCursor, k, counter);
+        return counter.matchCount;
+    }
+
+    public long join(Object index, String x, String y, int k) {
+        Checksum checksum = new Checksum();
+        PositionalJoin.join(((IndexReader) index).postings(x), ((IndexReader) index).postings(y), k, checksum);
+        return checksum.value();
+    }
+
+    public long nestedLoopJoin(Object index, String x, String y, int k) {
+        IndexReader reader = (IndexReader) index;
+        Checksum checksum = new Checksum();
+        PostingsCursor xCursor = reader.postings(x);
+        PostingsCursor yCursor = reader.postings(y);
+        while (xCursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            if (yCursor.advance(xCursor.docID()) == xCursor.docID()) {
+                int[] xPositions = xCursor.positions();
+                int[] yPositions = yCursor.positions();
+                for (int i = 0; i < xCursor.freq(); i++) {
+                    for (int j = 0; j < yCursor.freq(); j++) {
+                        if (xPositions[i] + k == yPositions[j]) {
+                            checksum.xFirst(xCursor.docID(), xPositions[i], yPositions[j]);
+                        }
+                    }
+                }
+            }
+        }
+        yCursor = reader.postings(y);
+        xCursor = reader.postings(x);
+        while (yCursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            if (xCursor.advance(yCursor.docID()) == yCursor.docID()) {
+                int[] yPositions = yCursor.positions();
+                int[] xPositions = xCursor.positions();
+                for (int i = 0; i < yCursor.freq(); i++) {
+                    for (int j = 0; j < xCursor.freq(); j++) {
+                        if (yPositions[i] + k == xPositions[j]) {
+                            checksum.yFirst(yCursor.docID(), yPositions[i], xPositions[j]);
+                        }
+                    }
+                }
+            }
+        }
+        return checksum.value();
+    }
+
+    public int top(Object index, String x, String y, int k, int n) {
+        PostingsCursor xCursor = PositionalIndex.postingsMatching((IndexReader) index, x);
+        PostingsCursor yCursor = PositionalIndex.postingsMatching((IndexReader) index, y);
+        if (xCursor == null || yCursor == null) {
+            return 0;
+        }
+        return RankedSearch.topDocuments((IndexReader) index, xCursor, yCursor, k, n).documents.length;
+    }
+
+    // Counts the matches of a join instead of writing them to the CSV files.
+    static final class MatchCounter implements PositionalJoin.MatchCollector {
+        long matchCount;
+
+        public void xFirst(int docID, int xPosition, int yPosition) {
+            this.matchCount++;
+        }
+
+        public void yFirst(int docID, int yPosition, int xPosition) {
+            this.matchCount++;
+        }
+    }
+
+    // Order-sensitive hash of the matches of each direction.
+    static final class Checksum implements PositionalJoin.MatchCollector {
+        long count;
+        long xFirstHash;
+        long yFirstHash;
+
+        public void xFirst(int docID, int xPosition, int yPosition) {
+            this.count++;
+            this.xFirstHash = ((this.xFirstHash * 31 + docID) * 31 + xPosition) * 31 + yPosition;
+        }
+
+        public void yFirst(int docID, int yPosition, int xPosition) {
+            this.count++;
+            this.yFirstHash = ((this.yFirstHash * 31 + docID) * 31 + yPosition) * 31 + xPosition;
+        }
+
+        long value() {
+            return (this.count * 31 + this.xFirstHash) * 31 + this.yFirstHash;
+        }
+    }
+} // class
@@ -0,0 +1,60 @@
+/*
+    The calls the benchmarks make into the positional index.
+
+    The index classes are in the default package, which a
+    class in a named package cannot refer to, while JMH only
+    accepts benchmarks in a named package. The benchmarks
+    therefore go through this interface, implemented in the
+    default package by DefaultIndexAccess. It has a single
+    implementation, so the JIT inlines the calls and they do
+    not show in the measurements.
+
+    Index handles are passed around as Object; they are the
+    IndexReader instances of the index code.
+*/
+
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+public interface IndexAccess {
+    // Text files under directory, in the order the index gives them DocIDs.
+    List<String> listCorpus(String directory);
+
+    // Tokenizes text the way the index build does, lowercasing it in place; returns a checksum of the term IDs.
+    long tokenize(byte[] text);
+
+    // Builds an in-memory index over the files in paths.
+    Object build(List<String> paths, int threadCount);
+
+    // Number of postings, one per token position, of an index returned by build.
+    long getPositionCount(Object index);
+
+    // Writes an index returned by build into directory and memory-maps it from there.
+    Object writeAndOpen(Object index, List<String> paths, Path directory) throws IOException;
+
+    // Number of documents containing term.
+    int getDocumentCountByTerm(Object index, String term);
+
+    // Number of x...y and y...x matches k words apart, found as proximitySearch does but not written out.
+    long proximity(Object index, String x, String y, int k);
+
+    // Order-sensitive checksum of the x...y and y...x matches k words apart, found by PositionalJoin.join.
+    long join(Object index, String x, String y, int k);
+
+    // Same as join, found the way proximitySearch did before PositionalJoin: every x position against every y one.
+    long nestedLoopJoin(Object index, String x, String y, int k);
+
+    // Number of the n best documents of x and y at most k words apart, ranked as the top command does but not written out.
+    int top(Object index, String x, String y, int k, int n);
+
+    static IndexAccess load() {
+        try {
+            return (IndexAccess) Class.forName("DefaultIndexAccess").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("DefaultIndexAccess is missing from the class path", ex);
+        }
+    }
+}
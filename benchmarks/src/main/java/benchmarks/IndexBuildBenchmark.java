@@ -0,0 +1,100 @@
+/*
+    Index build speed and memory use over the whole corpus,
+    reading the files from disk like the build command.
+
+    build reports documents indexed per second through the
+    documents counter. heapPerPosting builds one index per
+    iteration and reports the heap it keeps alive, after a
+    full GC, divided by its number of postings (one per token
+    position) as heapBytesPerPosting; its time is a single
+    build including the GCs and is not meant to be compared.
+*/
+
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class IndexBuildBenchmark {
+    // Directory of the corpus, relative to where the benchmarks are started.
+    @Param("gutenberg-corpus-sample")
+    public String corpus;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private IndexAccess access;
+    private List<String> paths;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Documents {
+        public long documents;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.documents = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public double heapBytesPerPosting;
+    }
+
+    @Setup(Level.Trial)
+    public void listCorpus() {
+        this.access = IndexAccess.load();
+        this.paths = this.access.listCorpus(this.corpus);
+    }
+
+    // One operation builds the index over every file of the corpus.
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 3, time = 5)
+    public Object build(Documents documents) {
+        Object index = this.access.build(this.paths, this.threads);
+        documents.documents += this.paths.size();
+        return index;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public Object heapPerPosting(Heap heap) {
+        long before = usedHeapAfterGc();
+        Object index = this.access.build(this.paths, this.threads);
+        long positionCount = this.access.getPositionCount(index);
+        long after = usedHeapAfterGc();
+        heap.heapBytesPerPosting = (double) (after - before) / positionCount;
+        return index;
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+    Compares the nested-loop proximity join proximitySearch
+    used before PositionalJoin with the PositionalJoin merge,
+    on high-frequency term pairs of an in-memory index. Both
+    joins read the same postings and must report the same
+    matches in the same order; the setup fails otherwise.
+    The speedup of the merge is the ratio of the nestedLoop
+    and merge scores of the same pair and k.
+*/
+
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProximityJoinBenchmark {
+    // Directory of the corpus, relative to where the benchmarks are started.
+    @Param("gutenberg-corpus-sample")
+    public String corpus;
+
+    @Param({ "of the", "the and", "in a", "to be", "learning the" })
+    public String pair;
+
+    @Param({ "1", "2", "5" })
+    public int k;
+
+    private IndexAccess access;
+    private Object index;
+    private String x;
+    private String y;
+
+    @Setup(Level.Trial)
+    public void buildIndex() {
+        this.access = IndexAccess.load();
+        List<String> paths = this.access.listCorpus(this.corpus);
+        this.index = this.access.build(paths, Runtime.getRuntime().availableProcessors());
+
+        String[] terms = this.pair.split(" ");
+        this.x = terms[0];
+        this.y = terms[1];
+        for (String term : terms) {
+            if (this.access.getDocumentCountByTerm(this.index, term) == 0) {
+                throw new IllegalStateException("Term " + term + " of pair " + this.pair + " is not in " + this.corpus);
+            }
+        }
+        if (merge() != nestedLoop()) {
+            throw new IllegalStateException("Joins disagree for " + this.pair + " " + this.k);
+        }
+    }
+
+    @Benchmark
+    public long nestedLoop() {
+        return this.access.nestedLoopJoin(this.index, this.x, this.y, this.k);
+    }
+
+    @Benchmark
+    public long merge() {
+        return this.access.join(this.index, this.x, this.y, this.k);
+    }
+}
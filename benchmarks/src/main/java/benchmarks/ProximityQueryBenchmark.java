@@ -0,0 +1,120 @@
+/*
+    Latency of two-term proximity queries. The term pairs are
+    picked by how many of the 463 sample documents hold them:
+
+        rare-rare           gaze (23)   eye (56)
+        rare-frequent       gaze (23)   the (462)
+        frequent-frequent   of (462)    the (462)
+
+    Each query runs the same postings lookup and join as
+    proximitySearch, but counts the matches instead of
+    writing CSV files, so output I/O is not measured. The
+    index is either kept in memory or written to a temporary
+    directory and memory-mapped, like the query command.
+    top10 ranks the ten best documents of the same pair
+    instead, as the top command does.
+*/
+
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProximityQueryBenchmark {
+    // Directory of the corpus, relative to where the benchmarks are started.
+    @Param("gutenberg-corpus-sample")
+    public String corpus;
+
+    @Param({ "rare-rare", "rare-frequent", "frequent-frequent" })
+    public String pair;
+
+    @Param({ "1", "5", "20" })
+    public int k;
+
+    @Param({ "memory", "disk" })
+    public String source;
+
+    private IndexAccess access;
+    private Object index;
+    private Path indexDirectory;
+    private String x;
+    private String y;
+
+    @Setup(Level.Trial)
+    public void buildIndex() throws IOException {
+        this.access = IndexAccess.load();
+        List<String> paths = this.access.listCorpus(this.corpus);
+        this.index = this.access.build(paths, Runtime.getRuntime().availableProcessors());
+        if (this.source.equals("disk")) {
+            this.indexDirectory = Files.createTempDirectory("positional-index-benchmark");
+            this.index = this.access.writeAndOpen(this.index, paths, this.indexDirectory);
+        }
+
+        String[] terms = termsOf(this.pair);
+        this.x = terms[0];
+        this.y = terms[1];
+        for (String term : terms) {
+            if (this.access.getDocumentCountByTerm(this.index, term) == 0) {
+                throw new IllegalStateException("Term " + term + " of pair " + this.pair + " is not in " + this.corpus);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteIndex() throws IOException {
+        if (this.indexDirectory != null) {
+            try (Stream<Path> files = Files.walk(this.indexDirectory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public long query() {
+        return this.access.proximity(this.index, this.x, this.y, this.k);
+    }
+
+    @Benchmark
+    public int top10() {
+        return this.access.top(this.index, this.x, this.y, this.k, 10);
+    }
+
+    private static String[] termsOf(String pair) {
+        switch (pair) {
+            case "rare-rare":
+                return new String[] { "gaze", "eye" };
+            case "rare-frequent":
+                return new String[] { "gaze", "the" };
+            case "frequent-frequent":
+                return new String[] { "of", "the" };
+            default:
+                throw new IllegalArgumentException("Unknown term pair " + pair);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+    Tokenization throughput: how fast the index build splits
+    the corpus into lowercased words, before any of them are
+    indexed. The files are read into memory once, so disk
+    speed is not measured.
+
+    The megabytes counter is reported per second, i.e. as
+    MB/s of corpus text.
+*/
+
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+    // Directory of the corpus, relative to where the benchmarks are started.
+    @Param("gutenberg-corpus-sample")
+    public String corpus;
+
+    private IndexAccess access;
+    private byte[][] texts;
+    private long corpusBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void readCorpus() throws IOException {
+        this.access = IndexAccess.load();
+        List<String> paths = this.access.listCorpus(this.corpus);
+        this.texts = new byte[paths.size()][];
+        this.corpusBytes = 0;
+        for (int i = 0; i < this.texts.length; i++) {
+            this.texts[i] = Files.readAllBytes(Paths.get(paths.get(i)));
+            this.corpusBytes += this.texts[i].length;
+        }
+    }
+
+    // One operation tokenizes every file of the corpus.
+    @Benchmark
+    public void tokenizeCorpus(Throughput throughput, Blackhole blackhole) {
+        for (byte[] text : this.texts) {
+            blackhole.consume(this.access.tokenize(text));
+        }
+        throughput.megabytes += this.corpusBytes / 1_000_000.0;
+    }
+}